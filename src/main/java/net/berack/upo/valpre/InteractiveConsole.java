@@ -160,7 +160,7 @@ public class InteractiveConsole {
      */
     private Distribution askDistribution(String ask) {
         var choice = choose(ask + ":", "Exponential", "Uniform", "Erlang",
-                "UnavailableTime", "Normal", "NormalBoxMuller", "None");
+                "UnavailableTime", "Normal", "NormalBoxMuller", "ExponentialZiggurat", "NormalZiggurat", "None");
 
         return switch (choice) {
             case 1 -> {
@@ -192,6 +192,15 @@ public class InteractiveConsole {
                 var stdDev = ask("Standard deviation: ", Double::parseDouble);
                 yield new Distribution.NormalBoxMuller(mean, stdDev);
             }
+            case 7 -> {
+                var lambda = ask("Lambda: ", Double::parseDouble);
+                yield new Distribution.ExponentialZiggurat(lambda);
+            }
+            case 8 -> {
+                var mean = ask("Mean: ", Double::parseDouble);
+                var stdDev = ask("Standard deviation: ", Double::parseDouble);
+                yield new Distribution.NormalZiggurat(mean, stdDev);
+            }
             default -> null;
         };
     }
@@ -2,12 +2,18 @@ package net.berack.upo.valpre;
 
 import java.io.File;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+
+import net.berack.upo.valpre.sim.FutureEventList;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.Namespace;
 
 public class Main {
     private final static String NAME;
+    private final static String[] FEL_KINDS = Arrays.stream(FutureEventList.Kind.values())
+            .map(kind -> kind.name().toLowerCase())
+            .toArray(String[]::new);
 
     /**
      * The name of the program, used for the help message.
@@ -40,6 +46,7 @@ public class Main {
                             .setMaxRuns(param.getInt("runs"))
                             .setSeed(param.getLong("seed"))
                             .setParallel(param.getBoolean("p"))
+                            .parseFutureEventList(param.getString("fel"))
                             .parseEndCriteria(param.getString("end"))
                             .parseConfidenceIndices(param.getString("indices"))
                             .run();
@@ -76,8 +83,10 @@ public class Main {
         sim.addArgument("-csv").help("The filename for saving every run statistics.");
         sim.addArgument("-runs").type(Integer.class).help("How many runs the simulator should run.").setDefault(100);
         sim.addArgument("-seed").type(Long.class).help("The seed of the simulation.").setDefault(0L);
-        sim.addArgument("-p").action(Arguments.storeTrue()).help("Parallel (one thread each run).").setDefault(false);
-        sim.addArgument("-end").help("When the simulation should end. Format:\n\"[ClassName:param1,..,paramN];[..]\"");
+        sim.addArgument("-p").action(Arguments.storeTrue()).help("Parallel (chunks of runs on one worker per thread).").setDefault(false);
+        sim.addArgument("-fel").help("The future event list used by each run.").choices(FEL_KINDS).setDefault("heap");
+        sim.addArgument("-end").help("When the simulation should end: when any of the criteria separated by ';' is"
+                + " met, where the ones joined by '&' must be met together. Format:\n\"[ClassName:param1,..,paramN]&[..];[..]\"");
         sim.addArgument("-indices").help("The confidence indices to use for the simulation. If active -p is ignored."
                 + " Format:\n\"[node:stat=confidence:relativeError];[..]\"");
 
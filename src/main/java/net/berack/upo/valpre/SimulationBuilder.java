@@ -8,9 +8,11 @@ import com.esotericsoftware.kryo.KryoException;
 
 import net.berack.upo.valpre.sim.ConfidenceIndices;
 import net.berack.upo.valpre.sim.EndCriteria;
+import net.berack.upo.valpre.sim.EndCriteria.And;
 import net.berack.upo.valpre.sim.EndCriteria.MaxArrivals;
 import net.berack.upo.valpre.sim.EndCriteria.MaxDepartures;
 import net.berack.upo.valpre.sim.EndCriteria.MaxTime;
+import net.berack.upo.valpre.sim.FutureEventList;
 import net.berack.upo.valpre.sim.Net;
 import net.berack.upo.valpre.sim.SimulationMultiple;
 import net.berack.upo.valpre.sim.stats.CsvResult;
@@ -26,6 +28,7 @@ public class SimulationBuilder {
     private long seed = 0;
     private EndCriteria[] endCriteria = new EndCriteria[0];
     private Type type = Type.Normal;
+    private FutureEventList.Kind fel = FutureEventList.Kind.HEAP;
     private Net net;
     private ConfidenceIndices confidences;
 
@@ -87,7 +90,8 @@ public class SimulationBuilder {
 
     /**
      * Set if the simulation should run in parallel.
-     * The parallelization is done by running each simulation in a separate thread.
+     * The parallelization is done by one worker for each processor, that runs
+     * the replications in chunks, reusing its own simulation for all of them.
      * 
      * @param parallel if the simulation should run in parallel
      * @return this simulation
@@ -98,6 +102,41 @@ public class SimulationBuilder {
         return this;
     }
 
+    /**
+     * Set the kind of future event list used by each run of the simulation.
+     * 
+     * @param fel the kind of future event list
+     * @return this simulation
+     * @throws IllegalArgumentException if the kind is null
+     */
+    public SimulationBuilder setFutureEventList(FutureEventList.Kind fel) {
+        if (fel == null)
+            throw new IllegalArgumentException("Future event list cannot be null!");
+        this.fel = fel;
+        return this;
+    }
+
+    /**
+     * Set the kind of future event list used by each run of the simulation.
+     * The string passed must be the name of one of the kinds available in
+     * {@link FutureEventList.Kind}, case insensitive.
+     * If the string is null, the kind is not changed.
+     * 
+     * @param fel the name of the kind of future event list
+     * @return this simulation
+     * @throws IllegalArgumentException if the name is not valid
+     */
+    public SimulationBuilder parseFutureEventList(String fel) {
+        if (fel == null)
+            return this;
+
+        try {
+            return this.setFutureEventList(FutureEventList.Kind.valueOf(fel.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid future event list: " + fel);
+        }
+    }
+
     /**
      * Set the CSV file to save the results.
      * 
@@ -134,6 +173,10 @@ public class SimulationBuilder {
      * and each criteria must be in the following format:
      * ClassName:param1,param2,...,paramN
      * 
+     * The simulation ends when any of the criteria is met. Multiple criteria can
+     * be joined with '&amp;' so that all of them must be met, as in:
+     * [criteria1]&amp;[criteria2];[criteria3]
+     * 
      * If the string is empty or null, no criteria are set.
      * If one of the criteria is not valid, an exception is thrown.
      * 
@@ -148,23 +191,43 @@ public class SimulationBuilder {
         var criteria = criterias.split(";");
         this.endCriteria = new EndCriteria[criteria.length];
         for (int i = 0; i < criteria.length; i++) {
-            var current = criteria[i].substring(1, criteria[i].length() - 1); // Remove the brackets
-            var parts = current.split(":");
-            if (parts.length != 2)
-                throw new IllegalArgumentException("Invalid criteria: " + current);
+            var joined = criteria[i].split("&");
+            if (joined.length == 1) {
+                this.endCriteria[i] = parseSingleCriteria(joined[0]);
+                continue;
+            }
 
-            var className = parts[0];
-            var params = parts[1].split(",");
-            this.endCriteria[i] = switch (className) {
-                case "MaxArrivals" -> new MaxArrivals(params[0], Integer.parseInt(params[1]));
-                case "MaxDepartures" -> new MaxDepartures(params[0], Integer.parseInt(params[1]));
-                case "MaxTime" -> new MaxTime(Double.parseDouble(params[0]));
-                default -> throw new IllegalArgumentException("Invalid criteria: " + current);
-            };
+            var all = new EndCriteria[joined.length];
+            for (int j = 0; j < joined.length; j++)
+                all[j] = parseSingleCriteria(joined[j]);
+            this.endCriteria[i] = new And(all);
         }
         return this;
     }
 
+    /**
+     * Parse a single criteria in the format [ClassName:param1,...,paramN].
+     * 
+     * @param criteria The string to parse.
+     * @return the criteria
+     * @throws IllegalArgumentException If the criteria is not valid.
+     */
+    private static EndCriteria parseSingleCriteria(String criteria) {
+        var current = criteria.substring(1, criteria.length() - 1); // Remove the brackets
+        var parts = current.split(":");
+        if (parts.length != 2)
+            throw new IllegalArgumentException("Invalid criteria: " + current);
+
+        var className = parts[0];
+        var params = parts[1].split(",");
+        return switch (className) {
+            case "MaxArrivals" -> new MaxArrivals(params[0], Integer.parseInt(params[1]));
+            case "MaxDepartures" -> new MaxDepartures(params[0], Integer.parseInt(params[1]));
+            case "MaxTime" -> new MaxTime(Double.parseDouble(params[0]));
+            default -> throw new IllegalArgumentException("Invalid criteria: " + current);
+        };
+    }
+
     /**
      * Add a confidence index for the given node and stat.
      * The confidence index is used to determine when the simulation should stop.
@@ -245,7 +308,7 @@ public class SimulationBuilder {
      */
     public Result.Summary run(PrintStream out) throws InterruptedException, ExecutionException, IOException {
         var nano = System.nanoTime();
-        var sim = new SimulationMultiple(this.net);
+        var sim = new SimulationMultiple(this.net, this.fel);
         var summary = switch (this.type) {
             case Incremental -> sim.runIncremental(this.seed, this.runs, out, this.confidences, this.endCriteria);
             case Parallel -> sim.runParallel(this.seed, this.runs, this.endCriteria);
@@ -1,7 +1,11 @@
 package net.berack.upo.valpre.rand;
 
+import java.util.Objects;
+
 /**
  * Represents a probability distribution.
+ * Any function of a random number generator is a distribution, while the ones
+ * of this library are the {@link Standard} ones.
  */
 public interface Distribution {
     /**
@@ -10,7 +14,27 @@ public interface Distribution {
      * @param rng The random number generator to use.
      * @return A number given from the distribution.
      */
-    public double sample(Rng rng);
+    public double sample(RandomStream rng);
+
+    /**
+     * Fill the first positions of the array with samples from the distribution,
+     * the same that many calls to {@link #sample(RandomStream)} would return in
+     * that order. The distributions that use the same amount of random numbers
+     * for each sample take all of them at once with
+     * {@link RandomStream#fill(double[], int, int)}, so it is faster than one
+     * call at a time.
+     * 
+     * @param rng The random number generator to use.
+     * @param out The array where to put the samples.
+     * @param n   The number of samples.
+     * @throws IndexOutOfBoundsException if n is negative or more than the length
+     *                                   of the array
+     */
+    public default void sample(RandomStream rng, double[] out, int n) {
+        Objects.checkFromToIndex(0, n, out.length);
+        for (var i = 0; i < n; i++)
+            out[i] = this.sample(rng);
+    }
 
     /**
      * Gets a positive sample from the distribution.
@@ -21,7 +45,7 @@ public interface Distribution {
      * @param rng          The random number generator to use.
      * @return A positive or 0 value from the distribution.
      */
-    public static double getPositiveSample(Distribution distribution, Rng rng) {
+    public static double getPositiveSample(Distribution distribution, RandomStream rng) {
         if (distribution == null)
             return 0;
 
@@ -62,10 +86,23 @@ public interface Distribution {
         return builder.toString();
     }
 
+    /**
+     * The distributions of this library. Since the set is closed, a switch on
+     * them covers all of them without a default, and the simulator uses one to
+     * compute their samples without calling them through the interface.
+     * Each of them is non-sealed, so they can still be extended: the simulator
+     * computes only the samples of their own classes, and calls the subclasses
+     * through the interface as any other distribution.
+     */
+    public static sealed interface Standard extends Distribution
+            permits Exponential, ExponentialZiggurat, Normal, NormalBoxMuller, NormalZiggurat, Uniform, Erlang,
+            HyperExponential, UnavailableTime {
+    }
+
     /**
      * Represents an exponential distribution.
      */
-    public static class Exponential implements Distribution {
+    public static non-sealed class Exponential implements Standard {
         public final double lambda;
 
         /**
@@ -78,15 +115,47 @@ public interface Distribution {
         }
 
         @Override
-        public double sample(Rng rng) {
+        public double sample(RandomStream rng) {
             return -Math.log(rng.random()) / lambda;
         }
+
+        @Override
+        public void sample(RandomStream rng, double[] out, int n) {
+            rng.fill(out, 0, n);
+            for (var i = 0; i < n; i++)
+                out[i] = -Math.log(out[i]) / lambda;
+        }
+    }
+
+    /**
+     * Represents an exponential distribution, with the samples made by the
+     * ziggurat method: most of the times they need only a random number and a
+     * multiplication, without the logarithm of {@link Exponential}.
+     * The samples are not the same of {@link Exponential}, but they have the
+     * same distribution.
+     */
+    public static non-sealed class ExponentialZiggurat implements Standard {
+        public final double lambda;
+
+        /**
+         * Creates a new exponential distribution with the given rate.
+         * 
+         * @param lambda The rate of the distribution.
+         */
+        public ExponentialZiggurat(double lambda) {
+            this.lambda = lambda;
+        }
+
+        @Override
+        public double sample(RandomStream rng) {
+            return Ziggurat.exponential(rng) / lambda;
+        }
     }
 
     /**
      * Represents a normal distribution.
      */
-    public static class Normal implements Distribution {
+    public static non-sealed class Normal implements Standard {
         public final double mean;
         public final double sigma;
 
@@ -102,16 +171,25 @@ public interface Distribution {
         }
 
         @Override
-        public double sample(Rng rng) {
+        public double sample(RandomStream rng) {
             var sample = rng.random();
             return mean + sigma * Math.sqrt(-2 * Math.log(sample)) * Math.cos(2 * Math.PI * sample);
         }
+
+        @Override
+        public void sample(RandomStream rng, double[] out, int n) {
+            rng.fill(out, 0, n);
+            for (var i = 0; i < n; i++) {
+                var sample = out[i];
+                out[i] = mean + sigma * Math.sqrt(-2 * Math.log(sample)) * Math.cos(2 * Math.PI * sample);
+            }
+        }
     }
 
     /**
      * Represents a normal distribution using the Box-Muller transform.
      */
-    public static class NormalBoxMuller implements Distribution {
+    public static non-sealed class NormalBoxMuller implements Standard {
         public final double mean;
         public final double sigma;
 
@@ -127,7 +205,7 @@ public interface Distribution {
         }
 
         @Override
-        public double sample(Rng rng) {
+        public double sample(RandomStream rng) {
             var sample1 = rng.random();
             var sample2 = rng.random();
             // remove the other value for thread safety
@@ -135,12 +213,61 @@ public interface Distribution {
             // Math.PI * sample2);
             return mean + sigma * Math.sqrt(-2 * Math.log(sample1)) * Math.cos(2 * Math.PI * sample2);
         }
+
+        @Override
+        public void sample(RandomStream rng, double[] out, int n) {
+            Objects.checkFromToIndex(0, n, out.length);
+            // the numbers of the samples left are put in out, from where the next
+            // sample goes: a sample is written after the numbers that it uses and
+            // before the ones of the samples after it
+            var start = 0;
+            for (var count = n / 2; count > 0; count = (n - start) / 2) {
+                rng.fill(out, start, start + 2 * count);
+                for (var i = 0; i < count; i++) {
+                    var sample1 = out[start + 2 * i];
+                    var sample2 = out[start + 2 * i + 1];
+                    out[start + i] = mean + sigma * Math.sqrt(-2 * Math.log(sample1)) * Math.cos(2 * Math.PI * sample2);
+                }
+                start += count;
+            }
+            if (start < n)
+                out[start] = this.sample(rng);
+        }
+    }
+
+    /**
+     * Represents a normal distribution, with the samples made by the ziggurat
+     * method: most of the times they need only a random number and a
+     * multiplication, without the logarithm, the square root and the cosine of
+     * {@link NormalBoxMuller}, and no value is thrown away.
+     * The samples are not the same of {@link NormalBoxMuller}, but they have the
+     * same distribution.
+     */
+    public static non-sealed class NormalZiggurat implements Standard {
+        public final double mean;
+        public final double sigma;
+
+        /**
+         * Creates a new normal distribution with the given mean and standard deviation.
+         * 
+         * @param mean  The mean of the distribution.
+         * @param sigma The standard deviation of the distribution.
+         */
+        public NormalZiggurat(double mean, double sigma) {
+            this.mean = mean;
+            this.sigma = sigma;
+        }
+
+        @Override
+        public double sample(RandomStream rng) {
+            return mean + sigma * Ziggurat.normal(rng);
+        }
     }
 
     /**
      * Represent a uniform distribution.
      */
-    public static class Uniform implements Distribution {
+    public static non-sealed class Uniform implements Standard {
         public final double min;
         public final double max;
 
@@ -156,15 +283,22 @@ public interface Distribution {
         }
 
         @Override
-        public double sample(Rng rng) {
+        public double sample(RandomStream rng) {
             return min + rng.random() * (max - min);
         }
+
+        @Override
+        public void sample(RandomStream rng, double[] out, int n) {
+            rng.fill(out, 0, n);
+            for (var i = 0; i < n; i++)
+                out[i] = min + out[i] * (max - min);
+        }
     }
 
     /**
      * Represent an Erlang distribution.
      */
-    public static class Erlang implements Distribution {
+    public static non-sealed class Erlang implements Standard {
         public final int k;
         public final double lambda;
 
@@ -181,19 +315,41 @@ public interface Distribution {
         }
 
         @Override
-        public double sample(Rng rng) {
+        public double sample(RandomStream rng) {
             var product = 1.0;
             for (int i = 0; i < this.k; i++) {
                 product *= rng.random();
             }
             return -Math.log(product) / this.lambda;
         }
+
+        @Override
+        public void sample(RandomStream rng, double[] out, int n) {
+            Objects.checkFromToIndex(0, n, out.length);
+            // the numbers of the samples left are put in out, from where the next
+            // sample goes, as in NormalBoxMuller
+            // with k less than 1 the samples do not use any number and are all 0
+            var k = Math.max(this.k, 0);
+            var start = 0;
+            for (var count = n / Math.max(k, 1); count > 0; count = (n - start) / Math.max(k, 1)) {
+                rng.fill(out, start, start + k * count);
+                for (var i = 0; i < count; i++) {
+                    var product = 1.0;
+                    for (var j = start + i * k; j < start + (i + 1) * k; j++)
+                        product *= out[j];
+                    out[start + i] = -Math.log(product) / this.lambda;
+                }
+                start += count;
+            }
+            for (; start < n; start++)
+                out[start] = this.sample(rng);
+        }
     }
 
     /**
      * Represent a HyperExponential distribution.
      */
-    public static class HyperExponential implements Distribution {
+    public static non-sealed class HyperExponential implements Standard {
         private final double[] lambdas;
         private final double[] probabilities;
 
@@ -214,7 +370,7 @@ public interface Distribution {
         }
 
         @Override
-        public double sample(Rng rng) {
+        public double sample(RandomStream rng) {
             var randomValue = rng.random();
             var i = 0;
 
@@ -227,14 +383,44 @@ public interface Distribution {
 
             return -Math.log(rng.random()) / lambdas[i];
         }
+
+        @Override
+        public void sample(RandomStream rng, double[] out, int n) {
+            Objects.checkFromToIndex(0, n, out.length);
+            // the numbers of the samples left are put in out, from where the next
+            // sample goes, as in NormalBoxMuller
+            var start = 0;
+            for (var count = n / 2; count > 0; count = (n - start) / 2) {
+                rng.fill(out, start, start + 2 * count);
+                for (var s = 0; s < count; s++) {
+                    var randomValue = out[start + 2 * s];
+                    var i = 0;
+
+                    while (i < probabilities.length) {
+                        randomValue -= probabilities[i];
+                        if (randomValue <= 0.0d)
+                            break;
+                        i += 1;
+                    }
+
+                    out[start + s] = -Math.log(out[start + 2 * s + 1]) / lambdas[i];
+                }
+                start += count;
+            }
+            if (start < n)
+                out[start] = this.sample(rng);
+        }
     }
 
     /**
      * Distribution of the UnavailableTime that has a probability of happening.
      * In case the node is unavailable then a value of the second distribution is
      * returned.
+     * The random numbers used by a sample depend on the ones before it, so the
+     * samples of {@link #sample(RandomStream, double[], int)} are taken one at a
+     * time.
      */
-    public static class UnavailableTime implements Distribution {
+    public static non-sealed class UnavailableTime implements Standard {
         public final double probability;
         public final Distribution distribution;
 
@@ -251,7 +437,7 @@ public interface Distribution {
         }
 
         @Override
-        public double sample(Rng rng) {
+        public double sample(RandomStream rng) {
             if (rng.random() < this.probability)
                 return Distribution.getPositiveSample(this.distribution, rng);
             return 0.0;
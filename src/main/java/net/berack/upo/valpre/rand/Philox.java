@@ -0,0 +1,226 @@
+package net.berack.upo.valpre.rand;
+
+import java.util.Objects;
+
+/**
+ * A counter-based generator of random numbers, the Philox4x32-10 of
+ * J.K. Salmon et al. «Parallel random numbers: as easy as 1, 2, 3».
+ * Instead of making each number from the previous one, as {@link Rng} does,
+ * it encrypts a counter of 128 bits with a key of 64 bits, doing 10 rounds of
+ * multiplications and xors, and the 128 bits of the result are two random
+ * numbers. The key is the seed, the upper 64 bits of the counter identify the
+ * stream and the lower ones are the position in the stream, so any number of
+ * any stream can be computed directly, without generating the ones before it.
+ * Each stream has 2^63 numbers and there are 2^64 streams for each seed.
+ * The streams can be identified by the replication, the node and the
+ * {@link Purpose} of their numbers: in this way the numbers used by a node for
+ * a purpose are always the same, whatever happens in the other nodes or for
+ * the other purposes, which is needed to compare two configurations of a net
+ * with the same random numbers.
+ */
+public final class Philox implements RandomStream {
+    /** The maximum number of replications with streams for each node */
+    public static final long MAX_REPLICATIONS = 1L << 32;
+    /** The maximum number of nodes with streams in each replication */
+    public static final int MAX_NODES = 1 << 30;
+
+    private static final long M0 = 0xD2511F53L;
+    private static final long M1 = 0xCD9E8D57L;
+    private static final long W0 = 0x9E3779B9L;
+    private static final long W1 = 0xBB67AE85L;
+    private static final double UNIT = 0x1.0p-53;
+
+    private final long seed;
+    private final long stream;
+    private long position = 0;
+    private long low;
+    private long high;
+
+    /**
+     * The uses of the random numbers in a node, each one with its own stream.
+     */
+    public enum Purpose {
+        /** The service times */
+        SERVICE,
+        /** The choice of the child that receives a request */
+        ROUTING,
+        /** The unavailable times */
+        UNAVAILABLE
+    }
+
+    /**
+     * Build the generator of the stream passed, from its first number.
+     *
+     * @param seed   the seed, any value is valid
+     * @param stream the identifier of the stream, any value is valid
+     */
+    public Philox(long seed, long stream) {
+        this.seed = seed;
+        this.stream = stream;
+    }
+
+    /**
+     * Build the generator of the stream used by a node for a purpose in a
+     * replication, from its first number. The streams of two different
+     * replications, nodes or purposes never overlap.
+     *
+     * @param seed        the seed, any value is valid
+     * @param replication the index of the replication
+     * @param node        the index of the node
+     * @param purpose     the use of the numbers
+     * @throws IllegalArgumentException if the replication is not between 0 and
+     *                                  {@link #MAX_REPLICATIONS} or the node is
+     *                                  not between 0 and {@link #MAX_NODES}
+     * @throws NullPointerException     if the purpose is null
+     */
+    public Philox(long seed, long replication, int node, Purpose purpose) {
+        this(seed, Philox.streamOf(replication, node, purpose));
+    }
+
+    /**
+     * Get the identifier of the stream used by a node for a purpose in a
+     * replication: the replication is in the upper 32 bits, then the node and
+     * then the purpose in the lower 2 bits.
+     */
+    private static long streamOf(long replication, int node, Purpose purpose) {
+        if (replication < 0 || replication >= MAX_REPLICATIONS)
+            throw new IllegalArgumentException("The replication must be between 0 and " + MAX_REPLICATIONS);
+        if (node < 0 || node >= MAX_NODES)
+            throw new IllegalArgumentException("The node must be between 0 and " + MAX_NODES);
+        if (purpose == null)
+            throw new NullPointerException("Purpose can't be null");
+
+        return (replication << 32) | ((long) node << 2) | purpose.ordinal();
+    }
+
+    @Override
+    public double random() {
+        var position = this.position++;
+        if ((position & 1) == 0)
+            this.encrypt(position >>> 1);
+
+        // 53 bits for each number, moved by half a step so that 0 and 1 are
+        // never returned
+        var bits = (position & 1) == 0 ? this.low : this.high;
+        return ((bits >>> 11) + 0.5d) * UNIT;
+    }
+
+    /**
+     * Fill a range of the array with the next random numbers of the stream, the
+     * same that many calls to {@link #random()} would return, encrypting each
+     * block only once for its two numbers.
+     *
+     * @param out  the array to fill
+     * @param from the first index to fill, inclusive
+     * @param to   the last index to fill, exclusive
+     * @throws IndexOutOfBoundsException if the range is not inside the array
+     */
+    @Override
+    public void fill(double[] out, int from, int to) {
+        Objects.checkFromToIndex(from, to, out.length);
+
+        var i = from;
+        if (i < to && (this.position & 1) == 1)
+            out[i++] = this.random();
+        for (; i + 2 <= to; i += 2) {
+            this.encrypt(this.position >>> 1);
+            this.position += 2;
+            out[i] = ((this.low >>> 11) + 0.5d) * UNIT;
+            out[i + 1] = ((this.high >>> 11) + 0.5d) * UNIT;
+        }
+        if (i < to)
+            out[i] = this.random();
+    }
+
+    /**
+     * Encrypt the counter made by the stream and the block passed, saving the
+     * lower and the upper 64 bits of the result. Each block gives two numbers.
+     *
+     * @param block the lower 64 bits of the counter
+     */
+    private void encrypt(long block) {
+        var c0 = block & 0xFFFFFFFFL;
+        var c1 = block >>> 32;
+        var c2 = this.stream & 0xFFFFFFFFL;
+        var c3 = this.stream >>> 32;
+        var k0 = this.seed & 0xFFFFFFFFL;
+        var k1 = this.seed >>> 32;
+
+        for (var round = 0; round < 10; round++) {
+            var p0 = M0 * c0;
+            var p1 = M1 * c2;
+            c0 = (p1 >>> 32) ^ c1 ^ k0;
+            c1 = p1 & 0xFFFFFFFFL;
+            c2 = (p0 >>> 32) ^ c3 ^ k1;
+            c3 = p0 & 0xFFFFFFFFL;
+            k0 = (k0 + W0) & 0xFFFFFFFFL;
+            k1 = (k1 + W1) & 0xFFFFFFFFL;
+        }
+
+        this.low = c1 << 32 | c0;
+        this.high = c3 << 32 | c2;
+    }
+
+    /**
+     * Get the seed of the generator, the key used to encrypt the counter.
+     *
+     * @return the seed
+     */
+    @Override
+    public long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     * Get the identifier of the stream of the generator.
+     *
+     * @return the stream
+     */
+    public long getStream() {
+        return this.stream;
+    }
+
+    /**
+     * Get the position in the stream, that is the number of calls to
+     * {@link #random()} done since its first number.
+     *
+     * @return the position
+     */
+    public long getPosition() {
+        return this.position;
+    }
+
+    /**
+     * Move the generator to the position passed, in constant time, so that the
+     * next call to {@link #random()} returns the number at that position of the
+     * stream.
+     *
+     * @param position the number of calls since the first number
+     * @throws IllegalArgumentException if the position is negative
+     */
+    public void setPosition(long position) {
+        if (position < 0)
+            throw new IllegalArgumentException("The position can't be negative");
+
+        // the block of an odd position is the one of the number before it
+        this.position = position;
+        if ((position & 1) == 1)
+            this.encrypt(position >>> 1);
+    }
+
+    /**
+     * Get the 128 bits made by the Philox4x32-10 function from a counter and a
+     * key, to check them against the known answers of the reference
+     * implementation.
+     *
+     * @param low  the lower 64 bits of the counter
+     * @param high the upper 64 bits of the counter
+     * @param key  the key
+     * @return the lower and the upper 64 bits of the result
+     */
+    static long[] block(long low, long high, long key) {
+        var philox = new Philox(key, high);
+        philox.encrypt(low);
+        return new long[] { philox.low, philox.high };
+    }
+}
@@ -0,0 +1,48 @@
+package net.berack.upo.valpre.rand;
+
+import java.util.Objects;
+
+/**
+ * A source of random numbers uniformly distributed between 0.0 and 1.0, the
+ * only thing needed by a {@link Distribution} to draw its samples.
+ * The generators are {@link Rng}, a Lehmer generator where each number is made
+ * from the previous one, and {@link Philox}, a counter-based generator where
+ * each number is made from its position in the stream, so that any stream can
+ * be built directly from its identifier.
+ */
+public interface RandomStream {
+    /**
+     * Get the next random number of the stream, uniformly distributed in the
+     * open interval between 0.0 and 1.0, so that it can be used as the argument
+     * of a logarithm.
+     *
+     * @return the next random number
+     */
+    public double random();
+
+    /**
+     * Get the seed of the stream, the one saved in the results of the runs that
+     * use it. For {@link Rng} it is the current state, for {@link Philox} it is
+     * the key shared by all its streams.
+     *
+     * @return the seed
+     */
+    public long getSeed();
+
+    /**
+     * Fill a range of the array with the next random numbers of the stream, the
+     * same that many calls to {@link #random()} would return in that order.
+     * The generators can do it faster than one call at a time, so it is useful
+     * when many numbers are needed at once.
+     *
+     * @param out  the array to fill
+     * @param from the first index to fill, inclusive
+     * @param to   the last index to fill, exclusive
+     * @throws IndexOutOfBoundsException if the range is not inside the array
+     */
+    public default void fill(double[] out, int from, int to) {
+        Objects.checkFromToIndex(from, to, out.length);
+        for (var i = from; i < to; i++)
+            out[i] = this.random();
+    }
+}
@@ -1,5 +1,9 @@
 package net.berack.upo.valpre.rand;
 
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Objects;
+
 /**
  * This class has been modified by Giacomo Bertolazzi in a way that doesn`t
  * resemble the original. It still has the same role, but has been extended and
@@ -17,13 +21,15 @@ package net.berack.upo.valpre.rand;
  * respectively. For more details see:
  * "Random Number Generators: Good Ones Are Hard To Find"
  */
-public class Rng {
+public class Rng implements RandomStream {
 	// Streams multipliers values taken from the table at page 114 of
 	// L.M. Leemis, S.K. Park «Discrete event simulation: a first course»
 	public static final long MULT_128 = 40509L;
 	public static final long MULT_256 = 22925L;
 	public static final long MULT_512 = 44857L;
 	public static final long MULT_1024 = 97070L;
+	// MULTIPLIER^4 mod MODULUS, to jump four steps at a time
+	private static final long MULT_4 = 1914720637L;
 
 	// Single Rng values
 	public final static long DEFAULT = 123456789L;
@@ -54,11 +60,95 @@ public class Rng {
 	 * where m = 2,147,483,647 amd the smallest and largest possible values
 	 * are (1 / m) and 1 - (1 / m) respectively.
 	 */
+	@Override
 	public double random() {
 		this.seed = Rng.newSeed(MODULUS, MULTIPLIER, this.seed);
 		return ((double) this.seed / MODULUS);
 	}
 
+	/**
+	 * Fill the array with the next numbers of the generator, the same that many
+	 * calls to {@link #random()} would return, but faster.
+	 * Since the modulus is the Mersenne prime 2^31 - 1, the remainder of a
+	 * product is found with a shift, a mask and a sum instead of the divisions
+	 * of {@link #newSeed(long, long, long)}. The numbers are made by four chains
+	 * that jump four steps at a time, so that each multiplication does not wait
+	 * for the one before it.
+	 * 
+	 * @param out  the array to fill
+	 * @param from the first index to fill, inclusive
+	 * @param to   the last index to fill, exclusive
+	 * @throws IndexOutOfBoundsException if the range is not inside the array
+	 */
+	@Override
+	public void fill(double[] out, int from, int to) {
+		Objects.checkFromToIndex(from, to, out.length);
+
+		var seed = this.seed;
+		if (seed <= 0 || seed >= MODULUS) {
+			// the seed of a multiple of the modulus is not in the period
+			for (var i = from; i < to; i++)
+				out[i] = this.random();
+			return;
+		}
+
+		var i = from;
+		if (to - from >= 8) {
+			var s0 = Rng.mersenne(seed * MULTIPLIER);
+			var s1 = Rng.mersenne(s0 * MULTIPLIER);
+			var s2 = Rng.mersenne(s1 * MULTIPLIER);
+			var s3 = Rng.mersenne(s2 * MULTIPLIER);
+			for (; i + 4 <= to; i += 4) {
+				out[i] = (double) s0 / MODULUS;
+				out[i + 1] = (double) s1 / MODULUS;
+				out[i + 2] = (double) s2 / MODULUS;
+				out[i + 3] = (double) s3 / MODULUS;
+				seed = s3;
+				s0 = Rng.mersenne(s0 * MULT_4);
+				s1 = Rng.mersenne(s1 * MULT_4);
+				s2 = Rng.mersenne(s2 * MULT_4);
+				s3 = Rng.mersenne(s3 * MULT_4);
+			}
+		}
+		for (; i < to; i++) {
+			seed = Rng.mersenne(seed * MULTIPLIER);
+			out[i] = (double) seed / MODULUS;
+		}
+		this.seed = seed;
+	}
+
+	/**
+	 * Fill the segment with the next numbers of the generator, as doubles in the
+	 * native byte order, the same that many calls to {@link #random()} would
+	 * return. The numbers are made in blocks by {@link #fill(double[], int, int)}.
+	 * 
+	 * @param segment the segment to fill, its size must be a multiple of 8 bytes
+	 * @throws IllegalArgumentException if the size is not a multiple of 8 bytes
+	 */
+	public void fill(MemorySegment segment) {
+		var size = segment.byteSize();
+		if (size % Double.BYTES != 0)
+			throw new IllegalArgumentException("The size of the segment must be a multiple of 8 bytes");
+
+		var block = new double[(int) Math.min(size / Double.BYTES, 1024)];
+		for (var offset = 0L; offset < size; offset += (long) block.length * Double.BYTES) {
+			var count = (int) Math.min(block.length, (size - offset) / Double.BYTES);
+			this.fill(block, 0, count);
+			MemorySegment.copy(block, 0, segment, ValueLayout.JAVA_DOUBLE_UNALIGNED, offset, count);
+		}
+	}
+
+	/**
+	 * The remainder of the division by {@link #MODULUS} of a product of two
+	 * numbers less than it, exact since the modulus is 2^31 - 1: the bits above
+	 * the 31st are worth the same as if they were added to the lower ones.
+	 * The result is never 0 since the modulus is prime.
+	 */
+	private static long mersenne(long product) {
+		var sum = (product & MODULUS) + (product >>> 31);
+		return sum >= MODULUS ? sum - MODULUS : sum;
+	}
+
 	/**
 	 * Use this (optional) procedure to initialize or reset the state of
 	 * the random number generator according to the following conventions:
@@ -76,43 +166,170 @@ public class Rng {
 	/**
 	 * Use this procedure to get the current state of the random number generator.
 	 */
+	@Override
 	public long getSeed() {
 		return this.seed;
 	}
 
 	/**
-	 * Get multiple streams for the generation of random numbers. The streams
-	 * generated will have the seeds spaced enough that the sequences will not
-	 * overlap (if not after many calls)
-	 * Note that for efficiency the total number of streams cannot suprass 1024 and
-	 * will be casted to a pow of 2 no less than 128 giving the array only 4
-	 * possible lengths: 128, 256, 512, 1024
+	 * Make the generator jump ahead, as if {@link #random()} was called the number
+	 * of times passed. It takes O(log steps) operations, whatever the number of
+	 * steps. A negative number makes the generator go back.
+	 * 
+	 * @param steps the number of calls to skip
+	 */
+	public void jump(long steps) {
+		this.seed = (this.seed * Rng.jumpMultiplier(steps)) % MODULUS;
+	}
+
+	/**
+	 * Get the multiplier that makes the generator jump ahead by the number of
+	 * steps passed: a seed multiplied by it modulo {@link #MODULUS} is the seed
+	 * after that many calls to {@link #random()}. It is {@link #MULTIPLIER} raised
+	 * to the number of steps modulo {@link #MODULUS}, calculated by repeated
+	 * squaring. The multipliers of the streams {@link #MULT_128},
+	 * {@link #MULT_256}, {@link #MULT_512} and {@link #MULT_1024} are some of
+	 * them.
+	 * 
+	 * @param steps the number of calls to skip, negative to go back
+	 * @return the multiplier
+	 */
+	public static long jumpMultiplier(long steps) {
+		// the period of the generator is MODULUS - 1
+		var exponent = Math.floorMod(steps, MODULUS - 1);
+		var base = MULTIPLIER;
+		var result = 1L;
+		while (exponent > 0) {
+			if ((exponent & 1) == 1)
+				result = (result * base) % MODULUS;
+			base = (base * base) % MODULUS;
+			exponent >>= 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Get multiple streams for the generation of random numbers, one for each
+	 * position of the array. The streams are the first ones of
+	 * {@link #getStreams(long, long)}, so their seeds are spaced enough that the
+	 * sequences will not overlap (if not after many calls).
 	 * 
 	 * @param seed  the initial seed of the rngs
-	 * @param total the total number of streams
+	 * @param total the total number of streams, at least one is created
 	 * @return the streams
 	 */
 	public static Rng[] getMultipleStreams(long seed, int total) {
-		if (total > 1024)
-			throw new IllegalArgumentException("Cannot genrate more than 1024 streams");
+		var streams = Rng.getStreams(seed, Math.max(1, total));
+		var rngs = new Rng[(int) streams.size()];
+		var current = streams.first;
+		for (var i = 0; i < rngs.length; i++) {
+			rngs[i] = new Rng(current);
+			current = (current * streams.jump) % MODULUS;
+		}
+		return rngs;
+	}
+
+	/**
+	 * Get a factory of streams for the generation of random numbers, that builds
+	 * each of them only when it is requested. The period of the generator is split
+	 * in the same number of parts of a power of 2 no less than 128 and the total
+	 * passed: up to 1024 parts the jump between two streams is the one of the
+	 * multipliers {@link #MULT_128}, {@link #MULT_256}, {@link #MULT_512} and
+	 * {@link #MULT_1024}, otherwise it is the size of a part.
+	 * Note that the period is about 2.1e9 numbers, so with many streams each one
+	 * has few numbers before it reaches the start of the next one: with 1e6
+	 * streams they are about 2000.
+	 * 
+	 * @param seed  the initial seed of the first stream
+	 * @param total the number of streams
+	 * @return the factory of the streams
+	 * @throws IllegalArgumentException if the total is not positive or more than
+	 *                                  the period of the generator
+	 */
+	public static Streams getStreams(long seed, long total) {
+		if (total < 1 || total >= MODULUS)
+			throw new IllegalArgumentException("The streams must be between 1 and " + (MODULUS - 1));
 
-		// rounding to the highest pow2
-		total = Math.max(total, 128);
-		total = 1 << (32 - Integer.numberOfLeadingZeros(total - 1));
-		var mult = switch (total) {
+		var parts = Math.max(128L, Long.highestOneBit(total - 1) << 1);
+		var jump = switch ((int) Math.min(parts, 2048L)) {
 			case 128 -> MULT_128;
 			case 256 -> MULT_256;
 			case 512 -> MULT_512;
-			default -> MULT_1024;
+			case 1024 -> MULT_1024;
+			default -> Rng.jumpMultiplier(MODULUS / parts);
 		};
+		return new Streams(new Rng(seed).seed, total, jump);
+	}
+
+	/**
+	 * Get a factory of streams for the generation of random numbers, where each
+	 * stream starts the number of steps passed after the previous one.
+	 * 
+	 * @param seed   the initial seed of the first stream
+	 * @param total  the number of streams
+	 * @param stride the numbers of each stream before the start of the next one
+	 * @return the factory of the streams
+	 * @throws IllegalArgumentException if the total or the stride are not positive
+	 *                                  or the streams together are longer than the
+	 *                                  period of the generator
+	 */
+	public static Streams getStreams(long seed, long total, long stride) {
+		if (total < 1 || stride < 1 || total > (MODULUS - 1) / stride)
+			throw new IllegalArgumentException("The streams must fit in the period of the generator");
+		return new Streams(new Rng(seed).seed, total, Rng.jumpMultiplier(stride));
+	}
+
+	/**
+	 * A factory of streams of random numbers, that builds each of them only when
+	 * it is requested. It only saves the seed of the first stream and the
+	 * multiplier that jumps from a stream to the next one, so it uses the same
+	 * memory for any number of streams.
+	 */
+	public static final class Streams {
+		private final long first;
+		private final long total;
+		private final long jump;
+
+		private Streams(long first, long total, long jump) {
+			this.first = first;
+			this.total = total;
+			this.jump = jump;
+		}
+
+		/**
+		 * Get the number of streams of this factory.
+		 * 
+		 * @return the number of streams
+		 */
+		public long size() {
+			return this.total;
+		}
+
+		/**
+		 * Build the stream with the index passed, in O(log index) operations.
+		 * Each call returns a new object that starts from the beginning of the
+		 * stream.
+		 * 
+		 * @param index the index of the stream
+		 * @return a new generator at the start of the stream
+		 * @throws IndexOutOfBoundsException if the index is not one of the streams
+		 */
+		public Rng get(long index) {
+			if (index < 0 || index >= this.total)
+				throw new IndexOutOfBoundsException("Stream " + index + " of " + this.total);
 
-		// Building the streams
-		var streams = new Rng[total];
-		for (int i = 0; i < total; i++) {
-			streams[i] = new Rng(seed);
-			seed = (streams[i].seed * mult) % MODULUS;
+			// the jump of many streams is the jump of one raised to their number
+			var exponent = index;
+			var base = this.jump;
+			var seed = this.first;
+			while (exponent > 0) {
+				if ((exponent & 1) == 1)
+					seed = (seed * base) % MODULUS;
+				base = (base * base) % MODULUS;
+				exponent >>= 1;
+			}
+			return new Rng(seed);
 		}
-		return streams;
 	}
 
 	/**
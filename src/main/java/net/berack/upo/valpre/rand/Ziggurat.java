@@ -0,0 +1,121 @@
+package net.berack.upo.valpre.rand;
+
+/**
+ * The ziggurat method of G. Marsaglia, W.W. Tsang «The ziggurat method for
+ * generating random variables», for the standard normal and exponential
+ * distributions.
+ * The area under the density is covered by layers of the same area: a base
+ * layer that also has the tail, and rectangles stacked on it. A random number
+ * chooses a layer and a point inside it, and most of the times the point is
+ * inside the part of the layer that is all under the density, so the sample is
+ * just a multiplication. Only the rare points in the wedge of a layer, or in
+ * the tail, need an exponential or a logarithm.
+ * The tables are computed once and never changed, so the methods are
+ * stateless and can be used by many threads at once.
+ */
+final class Ziggurat {
+    /** The number of layers of the normal, for each sign */
+    private static final int NORMAL_LAYERS = 128;
+    /** The start of the tail of the normal */
+    private static final double NORMAL_R = 3.442619855899;
+    /** The area of each layer of the normal, with the density exp(-x^2/2) */
+    private static final double NORMAL_AREA = 9.91256303526217e-3;
+
+    /** The number of layers of the exponential */
+    private static final int EXPONENTIAL_LAYERS = 256;
+    /** The start of the tail of the exponential */
+    private static final double EXPONENTIAL_R = 7.697117470131487;
+    /** The area of each layer of the exponential, with the density exp(-x) */
+    private static final double EXPONENTIAL_AREA = 3.949659822581572e-3;
+
+    // the layer i goes from the density at x[i] to the one at x[i + 1], and it
+    // is all under the density until x[i + 1]; x[0] is the width that the base
+    // layer would have if its tail were a rectangle
+    private static final double[] NORMAL_X = new double[NORMAL_LAYERS + 1];
+    private static final double[] NORMAL_F = new double[NORMAL_LAYERS + 1];
+    private static final double[] EXPONENTIAL_X = new double[EXPONENTIAL_LAYERS + 1];
+    private static final double[] EXPONENTIAL_F = new double[EXPONENTIAL_LAYERS + 1];
+
+    static {
+        NORMAL_X[0] = NORMAL_AREA / Math.exp(-0.5 * NORMAL_R * NORMAL_R);
+        NORMAL_X[1] = NORMAL_R;
+        for (var i = 1; i < NORMAL_LAYERS - 1; i++) {
+            var x = NORMAL_X[i];
+            NORMAL_X[i + 1] = Math.sqrt(-2 * Math.log(NORMAL_AREA / x + Math.exp(-0.5 * x * x)));
+        }
+        for (var i = 0; i <= NORMAL_LAYERS; i++)
+            NORMAL_F[i] = Math.exp(-0.5 * NORMAL_X[i] * NORMAL_X[i]);
+
+        EXPONENTIAL_X[0] = EXPONENTIAL_AREA / Math.exp(-EXPONENTIAL_R);
+        EXPONENTIAL_X[1] = EXPONENTIAL_R;
+        for (var i = 1; i < EXPONENTIAL_LAYERS - 1; i++) {
+            var x = EXPONENTIAL_X[i];
+            EXPONENTIAL_X[i + 1] = -Math.log(EXPONENTIAL_AREA / x + Math.exp(-x));
+        }
+        for (var i = 0; i <= EXPONENTIAL_LAYERS; i++)
+            EXPONENTIAL_F[i] = Math.exp(-EXPONENTIAL_X[i]);
+    }
+
+    private Ziggurat() {
+    }
+
+    /**
+     * Get a sample of the standard normal distribution, with mean 0 and
+     * standard deviation 1.
+     * A random number is split in the layer, its sign and the point inside it.
+     *
+     * @param rng the random number generator to use
+     * @return the sample
+     */
+    static double normal(RandomStream rng) {
+        while (true) {
+            var scaled = rng.random() * (2 * NORMAL_LAYERS);
+            var index = (int) scaled;
+            var layer = index >> 1;
+            var x = (scaled - index) * NORMAL_X[layer];
+            if (x < NORMAL_X[layer + 1])
+                return (index & 1) == 0 ? x : -x;
+
+            if (layer == 0) {
+                // the tail, with the method of G. Marsaglia
+                double tail;
+                double y;
+                do {
+                    tail = -Math.log(rng.random()) / NORMAL_R;
+                    y = -Math.log(rng.random());
+                } while (y + y < tail * tail);
+                x = NORMAL_R + tail;
+                return (index & 1) == 0 ? x : -x;
+            }
+
+            var f = NORMAL_F[layer] + rng.random() * (NORMAL_F[layer + 1] - NORMAL_F[layer]);
+            if (f < Math.exp(-0.5 * x * x))
+                return (index & 1) == 0 ? x : -x;
+        }
+    }
+
+    /**
+     * Get a sample of the standard exponential distribution, with rate 1.
+     * A random number is split in the layer and the point inside it.
+     *
+     * @param rng the random number generator to use
+     * @return the sample
+     */
+    static double exponential(RandomStream rng) {
+        while (true) {
+            var scaled = rng.random() * EXPONENTIAL_LAYERS;
+            var layer = (int) scaled;
+            var x = (scaled - layer) * EXPONENTIAL_X[layer];
+            if (x < EXPONENTIAL_X[layer + 1])
+                return x;
+
+            // the tail of an exponential is an exponential moved to its start
+            if (layer == 0)
+                return EXPONENTIAL_R - Math.log(rng.random());
+
+            var f = EXPONENTIAL_F[layer] + rng.random() * (EXPONENTIAL_F[layer + 1] - EXPONENTIAL_F[layer]);
+            if (f < Math.exp(-x))
+                return x;
+        }
+    }
+}
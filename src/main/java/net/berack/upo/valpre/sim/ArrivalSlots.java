@@ -0,0 +1,211 @@
+package net.berack.upo.valpre.sim;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The pending arrivals that the source nodes schedule to themselves, kept
+ * outside of the future event list.
+ * A source node always has at most one arrival to itself waiting, so each one
+ * of them has a fixed slot with its time and an indexed tournament tree keeps
+ * the slot with the lowest time on top. Setting or emptying a slot only replays
+ * the path from its leaf to the root, that is O(log sources), and never moves
+ * any memory around.
+ * When two slots have the same time, the one of the node with the lower index
+ * comes first.
+ */
+final class ArrivalSlots {
+    private final int[] slotOf;
+    private final int[] nodeOf;
+    private final double[] times;
+    private final int[] tree;
+    private final int leaves;
+    private int size = 0;
+
+    /**
+     * Create the slots for the nodes that can spawn arrivals to themselves.
+     *
+     * @param net the compiled net of the simulation
+     */
+    ArrivalSlots(CompiledNet net) {
+        this.slotOf = new int[net.size()];
+        Arrays.fill(this.slotOf, -1);
+
+        var count = 0;
+        for (var i = 0; i < net.size(); i++)
+            if (net.getSpawnArrivals(i) != 0)
+                this.slotOf[i] = count++;
+
+        var leaves = 2;
+        while (leaves < count)
+            leaves <<= 1;
+
+        this.leaves = leaves;
+        this.nodeOf = new int[count];
+        this.times = new double[leaves];
+        this.tree = new int[leaves];
+        for (var i = 0; i < this.slotOf.length; i++)
+            if (this.slotOf[i] >= 0)
+                this.nodeOf[this.slotOf[i]] = i;
+
+        this.clear();
+    }
+
+    /**
+     * Empty all the slots.
+     */
+    void clear() {
+        Arrays.fill(this.times, Double.POSITIVE_INFINITY);
+        for (var k = this.leaves - 1; k > 0; k--)
+            this.tree[k] = this.play(k);
+        this.size = 0;
+    }
+
+    /**
+     * Get the number of arrivals waiting.
+     *
+     * @return the number of arrivals
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Check if there are no arrivals waiting.
+     *
+     * @return true if there are no arrivals
+     */
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Save the arrival of the node at the given time, if the node has a slot and
+     * it is empty.
+     *
+     * @param node the index of the node
+     * @param time the time of the arrival
+     * @return true if the arrival is saved, false if it must go somewhere else
+     */
+    boolean offer(int node, double time) {
+        var slot = this.slotOf[node];
+        if (slot < 0 || this.times[slot] != Double.POSITIVE_INFINITY)
+            return false;
+
+        this.times[slot] = time;
+        this.size += 1;
+        this.replay(slot);
+        return true;
+    }
+
+    /**
+     * Get the time of the next arrival.
+     *
+     * @return the time of the next arrival
+     * @throws NoSuchElementException if there are no arrivals
+     */
+    double peekTime() {
+        return this.times[this.winner()];
+    }
+
+    /**
+     * Get the node index of the next arrival.
+     *
+     * @return the node of the next arrival
+     * @throws NoSuchElementException if there are no arrivals
+     */
+    int peekNode() {
+        return this.nodeOf[this.winner()];
+    }
+
+    /**
+     * Empty the slot of the next arrival.
+     *
+     * @throws NoSuchElementException if there are no arrivals
+     */
+    void remove() {
+        var slot = this.winner();
+        this.times[slot] = Double.POSITIVE_INFINITY;
+        this.size -= 1;
+        this.replay(slot);
+    }
+
+    /**
+     * Add an arrival event to the list passed for each slot that is not empty.
+     *
+     * @param list the list where to add the events
+     */
+    void addTo(List<Event> list) {
+        for (var slot = 0; slot < this.nodeOf.length; slot++)
+            if (this.times[slot] != Double.POSITIVE_INFINITY)
+                list.add(Event.newArrival(this.nodeOf[slot], this.times[slot]));
+    }
+
+    /**
+     * Write the times of all the slots.
+     *
+     * @param out where to write
+     * @throws IOException if the output fails
+     */
+    void write(DataOutput out) throws IOException {
+        for (var slot = 0; slot < this.nodeOf.length; slot++)
+            out.writeDouble(this.times[slot]);
+    }
+
+    /**
+     * Replace the times of all the slots with the ones written by
+     * {@link #write(DataOutput)}, for the same net.
+     *
+     * @param in where to read
+     * @throws IOException if the input fails
+     */
+    void read(DataInput in) throws IOException {
+        this.clear();
+        for (var slot = 0; slot < this.nodeOf.length; slot++) {
+            this.times[slot] = in.readDouble();
+            if (this.times[slot] != Double.POSITIVE_INFINITY)
+                this.size += 1;
+        }
+        for (var k = this.leaves - 1; k > 0; k--)
+            this.tree[k] = this.play(k);
+    }
+
+    /**
+     * Get the slot with the next arrival.
+     *
+     * @throws NoSuchElementException if there are no arrivals
+     */
+    private int winner() {
+        if (this.size == 0)
+            throw new NoSuchElementException("No arrivals waiting");
+        return this.tree[1];
+    }
+
+    /**
+     * Update the tree from the leaf of the slot to the root.
+     */
+    private void replay(int slot) {
+        for (var k = (this.leaves + slot) >> 1; k > 0; k >>= 1)
+            this.tree[k] = this.play(k);
+    }
+
+    /**
+     * Get the slot that wins between the two children of the position passed.
+     */
+    private int play(int k) {
+        var left = this.slotAt(k << 1);
+        var right = this.slotAt((k << 1) + 1);
+        return this.times[left] <= this.times[right] ? left : right;
+    }
+
+    /**
+     * Get the slot saved at the position of the tree passed.
+     */
+    private int slotAt(int k) {
+        return k >= this.leaves ? k - this.leaves : this.tree[k];
+    }
+}
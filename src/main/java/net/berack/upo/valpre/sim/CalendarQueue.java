@@ -0,0 +1,311 @@
+package net.berack.upo.valpre.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A calendar queue of events, as described by R. Brown in «Calendar queues: a
+ * fast O(1) priority queue implementation for the simulation event set
+ * problem».
+ * The time is divided in buckets of the same width, like the days of a year,
+ * and each event is saved in the sorted list of the bucket of its time. When
+ * the number of events is too high or too low compared to the number of
+ * buckets, the calendar is rebuilt with a width calculated from the separation
+ * of the next events.
+ * In the adaptive mode the width is also calculated from the average time
+ * between the extracted events, and the calendar is rebuilt when the width is
+ * too far from it, even if the number of events did not change.
+ * Events with the same time are extracted in the same order they were added.
+ */
+public final class CalendarQueue implements FutureEventList {
+    private static final int MIN_BUCKETS = 2;
+    private static final int SAMPLE_SIZE = 25;
+    private static final double GAP_WEIGHT = 1.0 / 64.0;
+
+    private final EventPool pool = new EventPool(16);
+    private final int[] sample = new int[SAMPLE_SIZE];
+    private final boolean adaptive;
+    private int[] buckets;
+    private double width = 1.0;
+    private long current = 0;
+    private int size = 0;
+    private int next = -1;
+    private int nextBucket = -1;
+
+    private double lastTime = 0.0;
+    private double avgGap = 0.0;
+    private int removed = 0;
+
+    /**
+     * Create a new empty calendar queue.
+     *
+     * @param adaptive if the width of the buckets should follow the observed time
+     *                 between the extracted events
+     */
+    public CalendarQueue(boolean adaptive) {
+        this.adaptive = adaptive;
+        this.buckets = new int[MIN_BUCKETS];
+        Arrays.fill(this.buckets, -1);
+    }
+
+    /**
+     * Get the current number of buckets of the calendar.
+     *
+     * @return the number of buckets
+     */
+    public int getBuckets() {
+        return this.buckets.length;
+    }
+
+    /**
+     * Get the current width of the buckets of the calendar.
+     *
+     * @return the width of the buckets
+     */
+    public double getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Get the average time between the extracted events, used by the adaptive
+     * mode to choose the width of the buckets.
+     *
+     * @return the average time between the extracted events
+     */
+    double getAverageGap() {
+        return this.avgGap;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void add(Event.Type type, int node, double time) {
+        var index = this.pool.alloc(type, node, time);
+        var day = this.dayOf(time);
+        this.insert(index, day);
+
+        if (day < this.current)
+            this.current = day;
+        if (this.next >= 0 && time < this.pool.times[this.next])
+            this.next = -1;
+
+        this.size += 1;
+        if (this.size > this.buckets.length << 1)
+            this.resize(this.buckets.length << 1);
+    }
+
+    @Override
+    public double peekTime() {
+        return this.pool.times[this.findNext()];
+    }
+
+    @Override
+    public Event.Type peekType() {
+        return EventPool.TYPES[this.pool.types[this.findNext()]];
+    }
+
+    @Override
+    public int peekNode() {
+        return this.pool.nodes[this.findNext()];
+    }
+
+    @Override
+    public void remove() {
+        var index = this.findNext();
+        var time = this.pool.times[index];
+        this.buckets[this.nextBucket] = this.pool.next[index];
+        this.pool.release(index);
+        this.next = -1;
+        this.size -= 1;
+
+        if (this.adaptive)
+            this.updateGap(time);
+        if (this.size < this.buckets.length >> 1 && this.buckets.length > MIN_BUCKETS)
+            this.resize(this.buckets.length >> 1);
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.buckets, -1);
+        this.pool.clear();
+        this.size = 0;
+        this.next = -1;
+        this.current = 0;
+        this.lastTime = 0.0;
+        this.avgGap = 0.0;
+        this.removed = 0;
+    }
+
+    @Override
+    public List<Event> toList() {
+        var list = new ArrayList<Event>(this.size);
+        for (var head : this.buckets)
+            for (var i = head; i >= 0; i = this.pool.next[i])
+                list.add(this.pool.toEvent(i));
+        return list;
+    }
+
+    /**
+     * Get the day of the time passed, that is the index of its bucket if the
+     * calendar had infinite buckets.
+     */
+    private long dayOf(double time) {
+        return (long) Math.floor(time / this.width);
+    }
+
+    /**
+     * Insert the event in its bucket, after all the events with a time lower or
+     * equal to it.
+     */
+    private void insert(int index, long day) {
+        var bucket = (int) (day & (this.buckets.length - 1));
+        var time = this.pool.times[index];
+        var prev = -1;
+        var curr = this.buckets[bucket];
+
+        while (curr >= 0 && this.pool.times[curr] <= time) {
+            prev = curr;
+            curr = this.pool.next[curr];
+        }
+
+        this.pool.next[index] = curr;
+        if (prev < 0)
+            this.buckets[bucket] = index;
+        else
+            this.pool.next[prev] = index;
+    }
+
+    /**
+     * Find the position of the next event and save it, together with its bucket.
+     * The search starts from the current day and goes on for a whole year; if
+     * nothing is found then the lowest event of all the buckets is used.
+     */
+    private int findNext() {
+        if (this.next >= 0)
+            return this.next;
+        if (this.size == 0)
+            throw new NoSuchElementException("No events in the calendar");
+
+        var mask = this.buckets.length - 1;
+        var day = this.current;
+        for (var i = 0; i < this.buckets.length; i++, day++) {
+            var bucket = (int) (day & mask);
+            var head = this.buckets[bucket];
+            if (head >= 0 && this.dayOf(this.pool.times[head]) <= day) {
+                this.current = day;
+                this.nextBucket = bucket;
+                return this.next = head;
+            }
+        }
+
+        // Direct search, the events are too far in the future
+        var min = -1;
+        for (var bucket = 0; bucket < this.buckets.length; bucket++) {
+            var head = this.buckets[bucket];
+            if (head >= 0 && (min < 0 || this.pool.times[head] < this.pool.times[min])) {
+                min = head;
+                this.nextBucket = bucket;
+            }
+        }
+        this.current = this.dayOf(this.pool.times[min]);
+        return this.next = min;
+    }
+
+    /**
+     * Update the average time between the extracted events and rebuild the
+     * calendar if the width is too far from the ideal one.
+     */
+    private void updateGap(double time) {
+        var gap = time - this.lastTime;
+        this.lastTime = time;
+        this.avgGap += (gap - this.avgGap) * GAP_WEIGHT;
+        this.removed += 1;
+
+        if (this.removed >= Math.max(64, this.buckets.length)) {
+            this.removed = 0;
+            var ideal = 3.0 * this.avgGap;
+            if (ideal > 0 && (this.width > 2.0 * ideal || this.width < 0.5 * ideal))
+                this.resize(this.buckets.length);
+        }
+    }
+
+    /**
+     * Calculate the new width of the buckets.
+     * In the adaptive mode it is three times the average time between the
+     * extracted events. Otherwise the next events are removed and the average
+     * separation between them is used, ignoring the separations that are more
+     * than twice the average.
+     * The positions of the removed events are saved in the array passed and the
+     * number of them is returned.
+     */
+    private int sampleWidth(int[] sample) {
+        if (this.adaptive && this.avgGap > 0) {
+            this.width = 3.0 * this.avgGap;
+            return 0;
+        }
+
+        var count = Math.min(SAMPLE_SIZE, this.size);
+        for (var i = 0; i < count; i++) {
+            sample[i] = this.findNext();
+            this.buckets[this.nextBucket] = this.pool.next[sample[i]];
+            this.next = -1;
+        }
+        if (count < 2)
+            return count;
+
+        var times = this.pool.times;
+        var total = times[sample[count - 1]] - times[sample[0]];
+        var avg = total / (count - 1);
+        var sum = 0.0;
+        var num = 0;
+        for (var i = 1; i < count; i++) {
+            var separation = times[sample[i]] - times[sample[i - 1]];
+            if (separation <= 2.0 * avg) {
+                sum += separation;
+                num += 1;
+            }
+        }
+
+        if (sum > 0)
+            this.width = 3.0 * sum / num;
+        return count;
+    }
+
+    /**
+     * Rebuild the calendar with the number of buckets passed and a new width.
+     * All the events are moved in the new buckets keeping the order of the ones
+     * with the same time.
+     */
+    private void resize(int numBuckets) {
+        var sample = this.sample;
+        var count = this.sampleWidth(sample);
+        var old = this.buckets;
+
+        this.buckets = new int[numBuckets];
+        Arrays.fill(this.buckets, -1);
+        this.next = -1;
+
+        var min = Double.MAX_VALUE;
+        for (var i = 0; i < count; i++) {
+            var time = this.pool.times[sample[i]];
+            this.insert(sample[i], this.dayOf(time));
+            min = Math.min(min, time);
+        }
+        for (var head : old) {
+            for (var i = head; i >= 0;) {
+                var following = this.pool.next[i];
+                var time = this.pool.times[i];
+                this.insert(i, this.dayOf(time));
+                min = Math.min(min, time);
+                i = following;
+            }
+        }
+
+        this.current = this.size > 0 ? this.dayOf(min) : 0;
+    }
+}
@@ -0,0 +1,246 @@
+package net.berack.upo.valpre.sim;
+
+import java.util.HashMap;
+import java.util.List;
+
+import net.berack.upo.valpre.sim.Net.Connection;
+
+/**
+ * A frozen copy of a {@link Net}, ready to be simulated.
+ * The connections are saved in compressed sparse rows: the children of the node
+ * {@code i} are at the positions from {@link #getChildStart(int)} (included) to
+ * {@link #getChildEnd(int)} (excluded) of the child and weight arrays. The
+ * parameters of the nodes are also saved in arrays, and the routing table and
+ * the distributions of each node are compiled only once.
+ * Since nothing can be changed after the creation, the same object can be
+ * shared by all the simulations and threads that run the net, so that each run
+ * only has to create the states of the nodes.
+ */
+public final class CompiledNet {
+    private final ServerNode[] nodes;
+    private final HashMap<String, Integer> indices = new HashMap<>();
+    private final int[] maxQueue;
+    private final int[] maxServers;
+    private final int[] spawnArrivals;
+
+    private final int[] childStart;
+    private final int[] childIndex;
+    private final double[] childWeight;
+    private final List<List<Connection>> children;
+    private final RoutingTable[] routing;
+    private final Sampler[] service;
+    private final Sampler[] unavailable;
+
+    /**
+     * Compile the nodes and the connections passed.
+     *
+     * @param servers     the nodes of the net
+     * @param connections the outgoing connections of each node
+     */
+    CompiledNet(List<ServerNode> servers, List<List<Connection>> connections) {
+        var size = servers.size();
+        this.nodes = servers.toArray(new ServerNode[0]);
+        this.maxQueue = new int[size];
+        this.maxServers = new int[size];
+        this.spawnArrivals = new int[size];
+        this.childStart = new int[size + 1];
+        this.routing = new RoutingTable[size];
+        this.service = new Sampler[size];
+        this.unavailable = new Sampler[size];
+
+        var total = 0;
+        for (var i = 0; i < size; i++) {
+            var node = this.nodes[i];
+            this.indices.put(node.name, i);
+            this.maxQueue[i] = node.maxQueue;
+            this.maxServers[i] = node.maxServers;
+            this.spawnArrivals[i] = node.spawnArrivals;
+            this.service[i] = Sampler.of(node.service);
+            this.unavailable[i] = Sampler.of(node.unavailable);
+            this.childStart[i] = total;
+            total += connections.get(i).size();
+        }
+        this.childStart[size] = total;
+
+        this.childIndex = new int[total];
+        this.childWeight = new double[total];
+        this.children = connections.stream().map(List::copyOf).toList();
+        for (var i = 0; i < size; i++) {
+            var position = this.childStart[i];
+            for (var conn : this.children.get(i)) {
+                this.childIndex[position] = conn.index;
+                this.childWeight[position] = conn.weight;
+                position += 1;
+            }
+            this.routing[i] = new RoutingTable(this.children.get(i));
+        }
+    }
+
+    /**
+     * Get the number of nodes of the net.
+     *
+     * @return the number of nodes
+     */
+    public int size() {
+        return this.nodes.length;
+    }
+
+    /**
+     * Return the index of the node with the name passed.
+     * Unlike {@link Net#getNodeIndex(String)} this does not iterate over the nodes.
+     *
+     * @param name the name of the node
+     * @return the index of the node or -1 if it does not exist
+     */
+    public int getNodeIndex(String name) {
+        var index = this.indices.get(name);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Return the node at the index passed.
+     *
+     * @param index the index of the node
+     * @return the node
+     * @throws IndexOutOfBoundsException if the index is not in the range
+     */
+    public ServerNode getNode(int index) {
+        return this.nodes[index];
+    }
+
+    /**
+     * Get the maximum number of requests in the queue of the node.
+     *
+     * @param index the index of the node
+     * @return the maximum length of the queue
+     * @throws IndexOutOfBoundsException if the index is not in the range
+     */
+    public int getMaxQueue(int index) {
+        return this.maxQueue[index];
+    }
+
+    /**
+     * Get the number of servers of the node.
+     *
+     * @param index the index of the node
+     * @return the number of servers
+     * @throws IndexOutOfBoundsException if the index is not in the range
+     */
+    public int getMaxServers(int index) {
+        return this.maxServers[index];
+    }
+
+    /**
+     * Get the number of arrivals that the node spawns, -1 if infinite.
+     *
+     * @param index the index of the node
+     * @return the number of arrivals to spawn
+     * @throws IndexOutOfBoundsException if the index is not in the range
+     */
+    public int getSpawnArrivals(int index) {
+        return this.spawnArrivals[index];
+    }
+
+    /**
+     * Get the position of the first child of the node in the child arrays.
+     *
+     * @param index the index of the node
+     * @return the position of the first child
+     * @throws IndexOutOfBoundsException if the index is not in the range
+     */
+    public int getChildStart(int index) {
+        return this.childStart[index];
+    }
+
+    /**
+     * Get the position after the last child of the node in the child arrays.
+     *
+     * @param index the index of the node
+     * @return the position after the last child
+     * @throws IndexOutOfBoundsException if the index is not in the range
+     */
+    public int getChildEnd(int index) {
+        return this.childStart[index + 1];
+    }
+
+    /**
+     * Get the index of the node saved at the position passed of the child array.
+     *
+     * @param position the position in the child array
+     * @return the index of the child node
+     * @throws IndexOutOfBoundsException if the position is not in the range
+     */
+    public int getChildIndex(int position) {
+        return this.childIndex[position];
+    }
+
+    /**
+     * Get the weight of the connection saved at the position passed of the child
+     * array.
+     *
+     * @param position the position in the child array
+     * @return the weight of the connection
+     * @throws IndexOutOfBoundsException if the position is not in the range
+     */
+    public double getChildWeight(int position) {
+        return this.childWeight[position];
+    }
+
+    /**
+     * Get the unmodifiable list of the children of the node.
+     *
+     * @param index the index of the node
+     * @return the connections of the node
+     * @throws IndexOutOfBoundsException if the index is not in the range
+     */
+    public List<Connection> getChildren(int index) {
+        return this.children.get(index);
+    }
+
+    /**
+     * Get the routing table of the node.
+     *
+     * @param index the index of the node
+     * @return the routing table of the node
+     * @throws IndexOutOfBoundsException if the index is not in the range
+     */
+    public RoutingTable getRoutingTable(int index) {
+        return this.routing[index];
+    }
+
+    /**
+     * Get the compiled distribution of the service times of the node.
+     *
+     * @param index the index of the node
+     * @return the sampler of the service times
+     * @throws IndexOutOfBoundsException if the index is not in the range
+     */
+    Sampler getServiceSampler(int index) {
+        return this.service[index];
+    }
+
+    /**
+     * Get the compiled distribution of the unavailable times of the node.
+     * If the node has no such distribution it is {@link Sampler#ZERO}.
+     *
+     * @param index the index of the node
+     * @return the sampler of the unavailable times
+     * @throws IndexOutOfBoundsException if the index is not in the range
+     */
+    Sampler getUnavailableSampler(int index) {
+        return this.unavailable[index];
+    }
+
+    /**
+     * Build the node states for a simulation.
+     * Note that each call to this method will create a new state for each node.
+     *
+     * @return the array of node states
+     */
+    public ServerNodeState[] buildNodeStates() {
+        var states = new ServerNodeState[this.nodes.length];
+        for (var i = 0; i < states.length; i++)
+            states[i] = new ServerNodeState(i, this);
+        return states;
+    }
+}
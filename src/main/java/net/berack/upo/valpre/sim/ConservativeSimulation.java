@@ -0,0 +1,338 @@
+package net.berack.upo.valpre.sim;
+
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.berack.upo.valpre.rand.RandomStream;
+import net.berack.upo.valpre.sim.stats.Result;
+
+/**
+ * An engine that runs a single replication of a net on many threads, with a
+ * conservative synchronization.
+ * The nodes are split in logical processes of consecutive indices, each one
+ * with its own future event list and its own thread. The processes advance
+ * together in windows of time: at the start of each window every process
+ * computes the earliest time at which it could send a request to another one,
+ * and the window ends at the minimum of them, so all the events inside it can
+ * be processed without waiting for anything (the YAWNS protocol). The requests
+ * sent to the other processes are delivered at the end of the window.
+ * The earliest time of a process is the first departure already scheduled for
+ * one of its nodes that have children in other processes, or its next event
+ * plus the lookahead, that is the minimum service time of those nodes. The
+ * distributions with a known minimum give longer windows, the others still
+ * work but with windows of one departure at a time.
+ * Each node uses its own random number generator, so the results are the same
+ * of a {@link Simulation} created with the same generators, for any number of
+ * processes, as long as two events of the same node never happen at the same
+ * time (always true with continuous distributions). The only difference is
+ * that a request sent to another process is dropped by the child when it
+ * arrives, instead of by the parent when it departs, since the state of the
+ * child is not visible to the parent.
+ * Only the nets that end by themselves are supported, since the end criteria
+ * would need the state of all the processes at once.
+ */
+public final class ConservativeSimulation {
+    private final CompiledNet net;
+    private final int processes;
+    private final int[] owner;
+    private final boolean[] boundary;
+    private final double[] lookahead;
+
+    /**
+     * Create the engine for the net passed.
+     *
+     * @param net       the compiled net
+     * @param processes the maximum number of logical processes, each with a thread
+     * @throws IllegalArgumentException if the net does not end by itself or the
+     *                                  processes are less than 1
+     * @see #supports(CompiledNet)
+     */
+    public ConservativeSimulation(CompiledNet net, int processes) {
+        if (!supports(net))
+            throw new IllegalArgumentException("The net must have only sources with a limited number of arrivals");
+        if (processes < 1)
+            throw new IllegalArgumentException("At least one process is needed");
+
+        var size = net.size();
+        this.net = net;
+        this.processes = Math.max(1, Math.min(processes, size));
+        this.owner = new int[size];
+        this.boundary = new boolean[size];
+        this.lookahead = new double[this.processes];
+        Arrays.fill(this.lookahead, Double.POSITIVE_INFINITY);
+
+        for (var node = 0; node < size; node++)
+            this.owner[node] = (int) ((long) node * this.processes / size);
+        for (var node = 0; node < size; node++) {
+            for (var i = net.getChildStart(node); i < net.getChildEnd(node); i++)
+                if (this.owner[net.getChildIndex(i)] != this.owner[node])
+                    this.boundary[node] = true;
+
+            if (this.boundary[node]) {
+                var process = this.owner[node];
+                var minimum = net.getServiceSampler(node).minimum();
+                this.lookahead[process] = Math.min(this.lookahead[process], minimum);
+            }
+        }
+    }
+
+    /**
+     * Check if the net passed can be run by this engine, that is if all its
+     * sources spawn a limited number of arrivals.
+     *
+     * @param net the compiled net
+     * @return true if the net ends by itself
+     */
+    public static boolean supports(CompiledNet net) {
+        for (var node = 0; node < net.size(); node++)
+            if (net.getSpawnArrivals(node) < 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Run the net until there are no more events.
+     *
+     * @param streams the random number generators, one for each node
+     * @return the statistics of the run
+     * @throws IllegalArgumentException if there is not one generator for each node
+     * @throws InterruptedException     If the threads are interrupted.
+     * @throws ExecutionException       If the one of the threads has been aborted.
+     */
+    public Result run(RandomStream[] streams) throws InterruptedException, ExecutionException {
+        if (streams.length == 0 || streams.length < this.net.size())
+            throw new IllegalArgumentException("One random number generator for each node is needed");
+
+        var timeStartedNano = System.nanoTime();
+        var seed = streams[0].getSeed();
+        var states = new NodeStateArrays(this.net);
+        var window = new Window(this.processes);
+        var all = new Process[this.processes];
+        for (var p = 0; p < this.processes; p++)
+            all[p] = new Process(p, states, streams, window, all);
+        for (var node = 0; node < this.net.size(); node++)
+            if (states.shouldSpawnArrival(node))
+                all[this.owner[node]].arrivals.offer(node, 0.0d);
+
+        var futures = new Future[this.processes];
+        try (var executor = Executors.newFixedThreadPool(this.processes)) {
+            for (var process : all)
+                futures[process.id] = executor.submit(() -> {
+                    try {
+                        return process.loop();
+                    } catch (Throwable e) {
+                        executor.shutdownNow(); // breaks the barrier, so the others do not wait forever
+                        throw e;
+                    }
+                });
+            for (var future : futures)
+                future.get();
+        }
+
+        var time = 0.0d;
+        for (var process : all)
+            time = Math.max(time, process.time);
+
+        var elapsed = System.nanoTime() - timeStartedNano;
+        var builder = new Result.Builder();
+        for (var i = 0; i < this.net.size(); i++)
+            builder.addNode(this.net.getNode(i).name, states.getStats(i));
+        return builder.seed(seed).times(time, elapsed * 1e-6).build();
+    }
+
+    /**
+     * The data shared by the processes to agree on the end of each window.
+     * The barrier action runs when all of them have set their bounds, and its
+     * results are visible to all the processes after the barrier.
+     */
+    private static final class Window {
+        final double[] bounds;
+        final boolean[] empty;
+        final CyclicBarrier barrier;
+        double end;
+        boolean finished;
+
+        Window(int processes) {
+            this.bounds = new double[processes];
+            this.empty = new boolean[processes];
+            this.barrier = new CyclicBarrier(processes, () -> {
+                var end = Double.POSITIVE_INFINITY;
+                var finished = true;
+                for (var p = 0; p < processes; p++) {
+                    end = Math.min(end, this.bounds[p]);
+                    finished &= this.empty[p];
+                }
+                this.end = end;
+                this.finished = finished;
+            });
+        }
+    }
+
+    /**
+     * A logical process: the nodes it owns and their events.
+     */
+    private final class Process {
+        final int id;
+        final ArrivalSlots arrivals;
+        double time = 0.0d;
+
+        private final NodeStateArrays states;
+        private final RandomStream[] streams;
+        private final Window window;
+        private final Process[] all;
+        private final FutureEventList fel = new EventHeap();
+        private final FutureEventList remote = new EventHeap();
+        private final FutureEventList departures = new EventHeap();
+        private final FutureEventList[] outbox;
+
+        Process(int id, NodeStateArrays states, RandomStream[] streams, Window window, Process[] all) {
+            var net = ConservativeSimulation.this.net;
+            this.id = id;
+            this.arrivals = new ArrivalSlots(net);
+            this.states = states;
+            this.streams = streams;
+            this.window = window;
+            this.all = all;
+            this.outbox = new FutureEventList[all.length];
+            for (var p = 0; p < all.length; p++)
+                this.outbox[p] = new EventHeap();
+        }
+
+        /**
+         * Process the windows until all the processes have no more events.
+         */
+        Void loop() throws InterruptedException, BrokenBarrierException {
+            while (true) {
+                this.receive();
+                this.window.bounds[this.id] = this.bound();
+                this.window.empty[this.id] = this.nextTime() == Double.POSITIVE_INFINITY;
+                this.window.barrier.await();
+                if (this.window.finished)
+                    return null;
+
+                this.processUntil(this.window.end);
+                this.window.barrier.await();
+            }
+        }
+
+        /**
+         * Move the requests sent by the other processes in the last window to the
+         * list of the remote arrivals.
+         */
+        private void receive() {
+            for (var process : this.all) {
+                var box = process.outbox[this.id];
+                while (!box.isEmpty()) {
+                    this.remote.add(Event.Type.ARRIVAL, box.peekNode(), box.peekTime());
+                    box.remove();
+                }
+            }
+        }
+
+        /**
+         * The earliest time at which this process could send a request to another.
+         */
+        private double bound() {
+            var departure = this.departures.isEmpty() ? Double.POSITIVE_INFINITY : this.departures.peekTime();
+            var lookahead = ConservativeSimulation.this.lookahead[this.id];
+            return Math.min(departure, this.nextTime() + lookahead);
+        }
+
+        /**
+         * The time of the next event of this process, or infinity if there is none.
+         */
+        private double nextTime() {
+            var next = this.arrivals.isEmpty() ? Double.POSITIVE_INFINITY : this.arrivals.peekTime();
+            if (!this.fel.isEmpty())
+                next = Math.min(next, this.fel.peekTime());
+            if (!this.remote.isEmpty())
+                next = Math.min(next, this.remote.peekTime());
+            return next;
+        }
+
+        /**
+         * Process all the events that are not later than the end of the window.
+         * The events come in the same order of {@link Simulation}: the arrivals
+         * of the sources, then the future event list, then the remote arrivals.
+         */
+        private void processUntil(double end) {
+            while (true) {
+                var next = this.nextTime();
+                if (next == Double.POSITIVE_INFINITY || next > end)
+                    return;
+
+                this.time = next;
+                if (!this.arrivals.isEmpty() && this.arrivals.peekTime() == next) {
+                    var index = this.arrivals.peekNode();
+                    this.arrivals.remove();
+                    this.arrival(index);
+                } else if (!this.fel.isEmpty() && this.fel.peekTime() == next) {
+                    var type = this.fel.peekType();
+                    var index = this.fel.peekNode();
+                    this.fel.remove();
+                    switch (type) {
+                        case AVAILABLE -> {
+                            this.states.updateAvailable(index, next);
+                            this.spawnDepartureIfPossible(index);
+                        }
+                        case ARRIVAL -> this.arrival(index);
+                        case DEPARTURE -> this.departure(index);
+                    }
+                } else {
+                    var index = this.remote.peekNode();
+                    this.remote.remove();
+                    if (!this.states.isQueueFull(index))
+                        this.arrival(index);
+                }
+            }
+        }
+
+        private void arrival(int index) {
+            this.states.updateArrival(index, this.time);
+            this.spawnDepartureIfPossible(index);
+        }
+
+        private void departure(int index) {
+            var self = ConservativeSimulation.this;
+            var states = this.states;
+            var rng = this.streams[index];
+            if (self.boundary[index])
+                this.departures.remove();
+            states.updateDeparture(index, this.time);
+
+            if (states.canBeUnavailable(index)) {
+                var unavailable = states.startUnavailableIfPossible(index, rng);
+                if (unavailable > 0)
+                    this.fel.add(Event.Type.AVAILABLE, index, this.time + unavailable);
+            }
+
+            this.spawnDepartureIfPossible(index);
+            if (states.shouldSpawnArrival(index) && !this.arrivals.offer(index, this.time))
+                this.fel.add(Event.Type.ARRIVAL, index, this.time);
+
+            // the state of a remote child is not known, so it checks the drop itself
+            var child = states.getRandomChild(index, rng);
+            if (child < 0)
+                return;
+            var process = self.owner[child];
+            if (process != this.id)
+                this.outbox[process].add(Event.Type.ARRIVAL, child, this.time);
+            else if (!states.isQueueFull(child))
+                this.fel.add(Event.Type.ARRIVAL, child, this.time);
+        }
+
+        private void spawnDepartureIfPossible(int index) {
+            var delay = this.states.startServiceIfPossible(index, this.streams[index]);
+            if (delay < 0)
+                return;
+
+            this.fel.add(Event.Type.DEPARTURE, index, this.time + delay);
+            if (ConservativeSimulation.this.boundary[index])
+                this.departures.add(Event.Type.DEPARTURE, index, this.time + delay);
+        }
+    }
+}
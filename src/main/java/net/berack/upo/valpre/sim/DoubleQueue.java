@@ -0,0 +1,174 @@
+package net.berack.upo.valpre.sim;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * A FIFO queue of primitive doubles saved in a ring buffer.
+ * It is used instead of a {@code ArrayDeque<Double>} to avoid boxing a value
+ * for each element added. The capacity is always a power of two and it is
+ * doubled when the buffer is full, so once the queue has grown enough it does
+ * not allocate anymore.
+ */
+public final class DoubleQueue {
+    private static final int MAX_INITIAL_CAPACITY = 1 << 4;
+
+    private double[] elements;
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * Create a new empty queue with the default capacity.
+     */
+    public DoubleQueue() {
+        this(16);
+    }
+
+    /**
+     * Create a new empty queue that can hold the given number of elements before
+     * growing. Since the hint is usually the maximum length of the queue of a node
+     * that can be huge, and most queues stay short, it is capped to a small value
+     * and the buffer grows only when it is needed.
+     *
+     * @param capacity the hint on the number of elements
+     */
+    public DoubleQueue(int capacity) {
+        var actual = 2;
+        while (actual < capacity && actual < MAX_INITIAL_CAPACITY)
+            actual <<= 1;
+        this.elements = new double[actual];
+    }
+
+    /**
+     * Get the number of elements in the queue.
+     *
+     * @return the number of elements
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Check if the queue has no elements.
+     *
+     * @return true if there are no elements
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Add the value at the end of the queue.
+     *
+     * @param value the value to add
+     */
+    public void add(double value) {
+        if (this.size == this.elements.length)
+            this.grow();
+
+        var tail = (this.head + this.size) & (this.elements.length - 1);
+        this.elements[tail] = value;
+        this.size += 1;
+    }
+
+    /**
+     * Get the first value of the queue without removing it.
+     *
+     * @return the first value
+     * @throws NoSuchElementException if the queue is empty
+     */
+    public double peek() {
+        if (this.size == 0)
+            throw new NoSuchElementException("The queue is empty");
+        return this.elements[this.head];
+    }
+
+    /**
+     * Remove the first value of the queue and return it.
+     *
+     * @return the first value
+     * @throws NoSuchElementException if the queue is empty
+     */
+    public double poll() {
+        var value = this.peek();
+        this.head = (this.head + 1) & (this.elements.length - 1);
+        this.size -= 1;
+        return value;
+    }
+
+    /**
+     * Remove all the values of the queue.
+     */
+    public void clear() {
+        this.head = 0;
+        this.size = 0;
+    }
+
+    /**
+     * Create a new queue with the same values of this one, in the same order.
+     * The two queues do not share anything, so the changes to one of them are
+     * not seen by the other.
+     *
+     * @return the copy of the queue
+     */
+    DoubleQueue copy() {
+        var copy = new DoubleQueue(0);
+        copy.elements = this.elements.clone();
+        copy.head = this.head;
+        copy.size = this.size;
+        return copy;
+    }
+
+    /**
+     * Add the value passed to all the values of the queue.
+     *
+     * @param delta the value to add
+     */
+    void shift(double delta) {
+        for (var i = 0; i < this.size; i++)
+            this.elements[(this.head + i) & (this.elements.length - 1)] += delta;
+    }
+
+    /**
+     * Write the values of the queue, from the first to the last.
+     *
+     * @param out where to write
+     * @throws IOException if the output fails
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(this.size);
+        for (var i = 0; i < this.size; i++)
+            out.writeDouble(this.elements[(this.head + i) & (this.elements.length - 1)]);
+    }
+
+    /**
+     * Replace the values of the queue with the ones written by
+     * {@link #write(DataOutput)}.
+     *
+     * @param in where to read
+     * @throws IOException if the input fails
+     */
+    void read(DataInput in) throws IOException {
+        this.clear();
+        var size = in.readInt();
+        for (var i = 0; i < size; i++)
+            this.add(in.readDouble());
+    }
+
+    /**
+     * Double the capacity of the buffer, moving the values so that the first one
+     * is at the start.
+     */
+    private void grow() {
+        var old = this.elements;
+        var elements = new double[old.length << 1];
+        var first = old.length - this.head;
+        System.arraycopy(old, this.head, elements, 0, first);
+        System.arraycopy(old, 0, elements, first, this.head);
+
+        this.elements = elements;
+        this.head = 0;
+    }
+}
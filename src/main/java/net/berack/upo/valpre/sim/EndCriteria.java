@@ -2,6 +2,9 @@ package net.berack.upo.valpre.sim;
 
 /**
  * Criteria to determine when to end the simulation.
+ * The criteria that can be compiled into a {@link Trigger} are checked by the
+ * simulation only when the counter or the time they depend on changes, the
+ * others are checked with {@link #shouldEnd(Simulation)} after every event.
  */
 public interface EndCriteria {
     /**
@@ -12,6 +15,35 @@ public interface EndCriteria {
      */
     public boolean shouldEnd(Simulation run);
 
+    /**
+     * Compile the criteria against the net passed, resolving the names of the
+     * nodes into their indices.
+     * The default implementation returns null, meaning that the criteria can only
+     * be checked by calling {@link #shouldEnd(Simulation)}.
+     * 
+     * @param net The net that will be simulated.
+     * @return The trigger of the criteria or null if it cannot be compiled.
+     * @throws NullPointerException if a node of the criteria is not in the net.
+     */
+    public default Trigger compile(CompiledNet net) {
+        return null;
+    }
+
+    /**
+     * Get the index of the node in the net passed.
+     * 
+     * @param net  The net where the node is.
+     * @param name The name of the node.
+     * @return The index of the node.
+     * @throws NullPointerException if the node does not exist.
+     */
+    private static int indexOf(CompiledNet net, String name) {
+        var index = net.getNodeIndex(name);
+        if (index < 0)
+            throw new NullPointerException("Node not found: " + name);
+        return index;
+    }
+
     /**
      * Ends the simulation when the given node has reached the specified number of
      * arrivals.
@@ -36,6 +68,11 @@ public interface EndCriteria {
         public boolean shouldEnd(Simulation run) {
             return run.getNodeState(nodeName).stats.numArrivals >= this.maxArrivals;
         }
+
+        @Override
+        public Trigger compile(CompiledNet net) {
+            return Trigger.arrivals(indexOf(net, this.nodeName), this.maxArrivals);
+        }
     }
 
     /**
@@ -62,6 +99,11 @@ public interface EndCriteria {
         public boolean shouldEnd(Simulation run) {
             return run.getNodeState(nodeName).stats.numDepartures >= this.maxDepartures;
         }
+
+        @Override
+        public Trigger compile(CompiledNet net) {
+            return Trigger.departures(indexOf(net, this.nodeName), this.maxDepartures);
+        }
     }
 
     /**
@@ -85,5 +127,210 @@ public interface EndCriteria {
         public boolean shouldEnd(Simulation run) {
             return run.getTime() >= this.maxTime;
         }
+
+        @Override
+        public Trigger compile(CompiledNet net) {
+            return Trigger.time(this.maxTime);
+        }
+    }
+
+    /**
+     * Ends the simulation when all the given criteria are met.
+     */
+    public static class And implements EndCriteria {
+        private final EndCriteria[] criterias;
+
+        /**
+         * Creates a new criteria that is met when all the criteria passed are met.
+         * 
+         * @param criterias The criteria to combine.
+         * @throws IllegalArgumentException if there are no criteria.
+         */
+        public And(EndCriteria... criterias) {
+            if (criterias == null || criterias.length == 0)
+                throw new IllegalArgumentException("At least one criteria is needed!");
+            this.criterias = criterias;
+        }
+
+        @Override
+        public boolean shouldEnd(Simulation run) {
+            for (var criteria : this.criterias)
+                if (!criteria.shouldEnd(run))
+                    return false;
+            return true;
+        }
+
+        @Override
+        public Trigger compile(CompiledNet net) {
+            var triggers = compileAll(net, this.criterias);
+            return triggers == null ? null : Trigger.all(triggers);
+        }
+    }
+
+    /**
+     * Ends the simulation when at least one of the given criteria is met.
+     */
+    public static class Or implements EndCriteria {
+        private final EndCriteria[] criterias;
+
+        /**
+         * Creates a new criteria that is met when any of the criteria passed is met.
+         * 
+         * @param criterias The criteria to combine.
+         * @throws IllegalArgumentException if there are no criteria.
+         */
+        public Or(EndCriteria... criterias) {
+            if (criterias == null || criterias.length == 0)
+                throw new IllegalArgumentException("At least one criteria is needed!");
+            this.criterias = criterias;
+        }
+
+        @Override
+        public boolean shouldEnd(Simulation run) {
+            for (var criteria : this.criterias)
+                if (criteria.shouldEnd(run))
+                    return true;
+            return false;
+        }
+
+        @Override
+        public Trigger compile(CompiledNet net) {
+            var triggers = compileAll(net, this.criterias);
+            return triggers == null ? null : Trigger.any(triggers);
+        }
+    }
+
+    /**
+     * Compile all the criteria passed.
+     * 
+     * @param net       The net that will be simulated.
+     * @param criterias The criteria to compile.
+     * @return The triggers or null if at least one criteria cannot be compiled.
+     */
+    private static Trigger[] compileAll(CompiledNet net, EndCriteria[] criterias) {
+        var triggers = new Trigger[criterias.length];
+        for (var i = 0; i < criterias.length; i++) {
+            triggers[i] = criterias[i].compile(net);
+            if (triggers[i] == null)
+                return null;
+        }
+        return triggers;
+    }
+
+    /**
+     * A criteria compiled against a net.
+     * It is made of thresholds on the counters of the nodes, identified by their
+     * index, and on the time of the simulation, combined with AND and OR.
+     * Since all the counters and the time can only grow, once a threshold is
+     * reached it stays reached, so the simulation only has to check the
+     * thresholds of a counter when that counter changes.
+     */
+    public static final class Trigger {
+        /**
+         * The kinds of trigger.
+         */
+        public static enum Kind {
+            /** The number of arrivals of a node reached a value */
+            ARRIVALS,
+            /** The number of departures of a node reached a value */
+            DEPARTURES,
+            /** The time of the simulation reached a value */
+            TIME,
+            /** All the children are met */
+            ALL,
+            /** At least one of the children is met */
+            ANY
+        }
+
+        public final Kind kind;
+        public final int node;
+        public final double value;
+        private final Trigger[] children;
+
+        /**
+         * Creates a new trigger.
+         */
+        private Trigger(Kind kind, int node, double value, Trigger[] children) {
+            this.kind = kind;
+            this.node = node;
+            this.value = value;
+            this.children = children;
+        }
+
+        /**
+         * Get the number of children of this trigger.
+         * 
+         * @return the number of children, 0 if it is not ALL or ANY.
+         */
+        public int size() {
+            return this.children.length;
+        }
+
+        /**
+         * Get the child at the position passed.
+         * 
+         * @param index The position of the child.
+         * @return The child.
+         * @throws IndexOutOfBoundsException if the position is not valid.
+         */
+        public Trigger get(int index) {
+            return this.children[index];
+        }
+
+        /**
+         * Creates a trigger met when the node has at least the arrivals passed.
+         * 
+         * @param node     The index of the node.
+         * @param arrivals The number of arrivals.
+         * @return The new trigger.
+         */
+        public static Trigger arrivals(int node, double arrivals) {
+            return new Trigger(Kind.ARRIVALS, node, arrivals, new Trigger[0]);
+        }
+
+        /**
+         * Creates a trigger met when the node has at least the departures passed.
+         * 
+         * @param node       The index of the node.
+         * @param departures The number of departures.
+         * @return The new trigger.
+         */
+        public static Trigger departures(int node, double departures) {
+            return new Trigger(Kind.DEPARTURES, node, departures, new Trigger[0]);
+        }
+
+        /**
+         * Creates a trigger met when the simulation reaches the time passed.
+         * 
+         * @param time The time to reach.
+         * @return The new trigger.
+         */
+        public static Trigger time(double time) {
+            return new Trigger(Kind.TIME, -1, time, new Trigger[0]);
+        }
+
+        /**
+         * Creates a trigger met when all the triggers passed are met.
+         * 
+         * @param triggers The triggers to combine.
+         * @return The new trigger.
+         * @throws IllegalArgumentException if there are no triggers.
+         */
+        public static Trigger all(Trigger... triggers) {
+            if (triggers.length == 0)
+                throw new IllegalArgumentException("At least one trigger is needed!");
+            return new Trigger(Kind.ALL, -1, 0, triggers.clone());
+        }
+
+        /**
+         * Creates a trigger met when at least one of the triggers passed is met.
+         * With no triggers it is never met.
+         * 
+         * @param triggers The triggers to combine.
+         * @return The new trigger.
+         */
+        public static Trigger any(Trigger... triggers) {
+            return new Trigger(Kind.ANY, -1, 0, triggers.clone());
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,206 @@
+package net.berack.upo.valpre.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import net.berack.upo.valpre.sim.EndCriteria.Trigger;
+
+/**
+ * The end criteria of a simulation compiled against its net.
+ * The triggers of all the criteria are flattened in a tree where each position
+ * knows its parent and how many of its children must be met. The thresholds on
+ * the counters are grouped by node, so that after an arrival or a departure only
+ * the ones of that node are checked, while the thresholds on the time are
+ * sorted and checked from the lowest one.
+ * When a threshold is reached it is propagated to its parents, and when the
+ * root is met the simulation has to end. The root is met when any of the
+ * criteria is.
+ * The criteria that cannot be compiled are checked after every event.
+ */
+final class EndTriggers {
+    private static final int[] NONE = new int[0];
+
+    private final int[] parent;
+    private final int[] needed;
+    private final int[] met;
+    private final double[] values;
+    private final int[][] arrivals;
+    private final int[][] departures;
+    private final int[] times;
+    private final EndCriteria[] polled;
+    private int nextTime = 0;
+
+    /**
+     * Compile the criteria passed against the net.
+     *
+     * @param net       the net of the simulation
+     * @param criterias the criteria to compile
+     * @throws NullPointerException if a node of the criteria is not in the net
+     */
+    EndTriggers(CompiledNet net, EndCriteria[] criterias) {
+        var polled = new ArrayList<EndCriteria>();
+        var roots = new ArrayList<Trigger>();
+        if (criterias != null) {
+            for (var criteria : criterias) {
+                var trigger = criteria.compile(net);
+                if (trigger == null)
+                    polled.add(criteria);
+                else
+                    roots.add(trigger);
+            }
+        }
+
+        var root = Trigger.any(roots.toArray(new Trigger[0]));
+        var count = count(root);
+        this.parent = new int[count];
+        this.needed = new int[count];
+        this.met = new int[count];
+        this.values = new double[count];
+        this.polled = polled.toArray(new EndCriteria[0]);
+
+        var nodes = net.size();
+        var arrivals = new ArrayList<int[]>();
+        var departures = new ArrayList<int[]>();
+        var times = new int[count];
+        var numTimes = new int[1];
+        this.arrivals = new int[nodes][];
+        this.departures = new int[nodes][];
+        Arrays.fill(this.arrivals, NONE);
+        Arrays.fill(this.departures, NONE);
+
+        this.flatten(root, -1, new int[1], arrivals, departures, times, numTimes);
+        for (var pair : arrivals)
+            this.arrivals[pair[0]] = append(this.arrivals[pair[0]], pair[1]);
+        for (var pair : departures)
+            this.departures[pair[0]] = append(this.departures[pair[0]], pair[1]);
+
+        this.times = Arrays.stream(times, 0, numTimes[0]).boxed()
+                .sorted((a, b) -> Double.compare(this.values[a], this.values[b]))
+                .mapToInt(Integer::intValue).toArray();
+        this.reset();
+    }
+
+    /**
+     * Bring the triggers back to the start of a simulation, where nothing has
+     * happened yet but some thresholds could be already reached.
+     */
+    void reset() {
+        Arrays.fill(this.met, 0);
+        this.nextTime = 0;
+
+        for (var node = 0; node < this.arrivals.length; node++) {
+            this.onArrival(node, 0);
+            this.onDeparture(node, 0);
+        }
+        this.onTime(0.0);
+    }
+
+    /**
+     * Check if a compiled criteria is met.
+     *
+     * @return true if the simulation has to end
+     */
+    boolean isMet() {
+        return this.met[0] >= this.needed[0];
+    }
+
+    /**
+     * Check if one of the criteria that cannot be compiled is met.
+     *
+     * @param run the simulation
+     * @return true if the simulation has to end
+     */
+    boolean isPolledMet(Simulation run) {
+        for (var criteria : this.polled)
+            if (criteria.shouldEnd(run))
+                return true;
+        return false;
+    }
+
+    /**
+     * Check the thresholds on the arrivals of the node.
+     *
+     * @param node     the index of the node
+     * @param arrivals the current number of arrivals of the node
+     */
+    void onArrival(int node, double arrivals) {
+        for (var leaf : this.arrivals[node])
+            if (arrivals >= this.values[leaf])
+                this.reach(leaf);
+    }
+
+    /**
+     * Check the thresholds on the departures of the node.
+     *
+     * @param node       the index of the node
+     * @param departures the current number of departures of the node
+     */
+    void onDeparture(int node, double departures) {
+        for (var leaf : this.departures[node])
+            if (departures >= this.values[leaf])
+                this.reach(leaf);
+    }
+
+    /**
+     * Check the thresholds on the time that are not reached yet.
+     *
+     * @param time the current time of the simulation
+     */
+    void onTime(double time) {
+        while (this.nextTime < this.times.length && time >= this.values[this.times[this.nextTime]])
+            this.reach(this.times[this.nextTime++]);
+    }
+
+    /**
+     * Mark the position passed as met and propagate it to its parents.
+     */
+    private void reach(int position) {
+        while (position >= 0 && this.met[position] < this.needed[position]) {
+            this.met[position] += 1;
+            if (this.met[position] < this.needed[position])
+                return;
+            position = this.parent[position];
+        }
+    }
+
+    /**
+     * Save the trigger in the position of the counter passed and then all its
+     * children after it.
+     */
+    private void flatten(Trigger trigger, int parent, int[] counter, ArrayList<int[]> arrivals,
+            ArrayList<int[]> departures, int[] times, int[] numTimes) {
+        var position = counter[0]++;
+        this.parent[position] = parent;
+        this.values[position] = trigger.value;
+        this.needed[position] = trigger.kind == Trigger.Kind.ALL ? trigger.size() : 1;
+
+        switch (trigger.kind) {
+            case ARRIVALS -> arrivals.add(new int[] { trigger.node, position });
+            case DEPARTURES -> departures.add(new int[] { trigger.node, position });
+            case TIME -> times[numTimes[0]++] = position;
+            case ALL, ANY -> {
+                for (var i = 0; i < trigger.size(); i++)
+                    this.flatten(trigger.get(i), position, counter, arrivals, departures, times, numTimes);
+            }
+        }
+    }
+
+    /**
+     * Count the trigger passed and all its children.
+     */
+    private static int count(Trigger trigger) {
+        var count = 1;
+        for (var i = 0; i < trigger.size(); i++)
+            count += count(trigger.get(i));
+        return count;
+    }
+
+    /**
+     * Create a copy of the array with the value passed at the end.
+     */
+    private static int[] append(int[] array, int value) {
+        var copy = Arrays.copyOf(array, array.length + 1);
+        copy[array.length] = value;
+        return copy;
+    }
+}
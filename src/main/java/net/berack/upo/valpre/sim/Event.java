@@ -26,6 +26,18 @@ public class Event implements Comparable<Event> {
         return Double.compare(this.time, other.time);
     }
 
+    /**
+     * Create a new event of the given type.
+     * 
+     * @param type The type of event.
+     * @param node The node that the event is associated with.
+     * @param time The time at which the event occurs.
+     * @return The new event.
+     */
+    public static Event newEvent(Type type, int node, double time) {
+        return new Event(type, node, time);
+    }
+
     /**
      * Create a new arrival event.
      * 
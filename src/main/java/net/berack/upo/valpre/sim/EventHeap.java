@@ -0,0 +1,205 @@
+package net.berack.upo.valpre.sim;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A binary min-heap of events ordered by time.
+ * Instead of keeping an {@link Event} object for each element, the heap stores
+ * the time, the type and the node index of the events in parallel primitive
+ * arrays that grow when needed. In this way adding and removing events does not
+ * allocate anything.
+ * The elements are moved in the same way of a {@link java.util.PriorityQueue} of
+ * {@link Event}, so the order of extraction is the same even for the events that
+ * have the same time.
+ */
+public final class EventHeap implements FutureEventList {
+    private static final Event.Type[] TYPES = Event.Type.values();
+
+    private double[] times;
+    private byte[] types;
+    private int[] nodes;
+    private int size = 0;
+
+    /**
+     * Create a new empty heap with a default initial capacity.
+     */
+    public EventHeap() {
+        this(16);
+    }
+
+    /**
+     * Create a new empty heap with the given initial capacity.
+     * The heap will grow if more events are added.
+     *
+     * @param capacity the initial capacity of the heap
+     * @throws IllegalArgumentException if the capacity is less than 1
+     */
+    public EventHeap(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be > 0");
+
+        this.times = new double[capacity];
+        this.types = new byte[capacity];
+        this.nodes = new int[capacity];
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    @Override
+    public void add(Event.Type type, int node, double time) {
+        if (this.size == this.times.length)
+            this.grow();
+
+        var k = this.size++;
+        while (k > 0) {
+            var parent = (k - 1) >>> 1;
+            if (time >= this.times[parent])
+                break;
+            this.move(parent, k);
+            k = parent;
+        }
+        this.set(k, time, (byte) type.ordinal(), node);
+    }
+
+    @Override
+    public double peekTime() {
+        this.checkNotEmpty();
+        return this.times[0];
+    }
+
+    @Override
+    public Event.Type peekType() {
+        this.checkNotEmpty();
+        return TYPES[this.types[0]];
+    }
+
+    @Override
+    public int peekNode() {
+        this.checkNotEmpty();
+        return this.nodes[0];
+    }
+
+    @Override
+    public void remove() {
+        this.checkNotEmpty();
+
+        var n = --this.size;
+        if (n == 0)
+            return;
+
+        var time = this.times[n];
+        var type = this.types[n];
+        var node = this.nodes[n];
+        var half = n >>> 1;
+        var k = 0;
+
+        while (k < half) {
+            var child = (k << 1) + 1;
+            var right = child + 1;
+            if (right < n && this.times[child] > this.times[right])
+                child = right;
+            if (time <= this.times[child])
+                break;
+            this.move(child, k);
+            k = child;
+        }
+        this.set(k, time, type, node);
+    }
+
+    @Override
+    public void clear() {
+        this.size = 0;
+    }
+
+    @Override
+    public List<Event> toList() {
+        var list = new ArrayList<Event>(this.size);
+        for (var i = 0; i < this.size; i++)
+            list.add(Event.newEvent(TYPES[this.types[i]], this.nodes[i], this.times[i]));
+        return list;
+    }
+
+    /**
+     * Write the events as they are saved in the heap, so that reading them gives
+     * back the same heap, that extracts the events in the same order.
+     *
+     * @param out where to write
+     * @throws IOException if the output fails
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(this.size);
+        for (var i = 0; i < this.size; i++) {
+            out.writeDouble(this.times[i]);
+            out.writeByte(this.types[i]);
+            out.writeInt(this.nodes[i]);
+        }
+    }
+
+    /**
+     * Replace the events of the heap with the ones written by
+     * {@link #write(DataOutput)}.
+     *
+     * @param in where to read
+     * @throws IOException if the input fails
+     */
+    @Override
+    public void read(DataInput in) throws IOException {
+        var size = in.readInt();
+        while (this.times.length < size)
+            this.grow();
+        for (var i = 0; i < size; i++)
+            this.set(i, in.readDouble(), in.readByte(), in.readInt());
+        this.size = size;
+    }
+
+    /**
+     * Move the event from one position of the arrays to another.
+     */
+    private void move(int from, int to) {
+        this.times[to] = this.times[from];
+        this.types[to] = this.types[from];
+        this.nodes[to] = this.nodes[from];
+    }
+
+    /**
+     * Set the values of the event in the position passed.
+     */
+    private void set(int index, double time, byte type, int node) {
+        this.times[index] = time;
+        this.types[index] = type;
+        this.nodes[index] = node;
+    }
+
+    /**
+     * Double the capacity of the arrays.
+     */
+    private void grow() {
+        var capacity = this.times.length << 1;
+        this.times = Arrays.copyOf(this.times, capacity);
+        this.types = Arrays.copyOf(this.types, capacity);
+        this.nodes = Arrays.copyOf(this.nodes, capacity);
+    }
+
+    /**
+     * Throws an exception if there are no events.
+     */
+    private void checkNotEmpty() {
+        if (this.size == 0)
+            throw new NoSuchElementException("No events in the heap");
+    }
+}
@@ -0,0 +1,99 @@
+package net.berack.upo.valpre.sim;
+
+import java.util.Arrays;
+
+/**
+ * A pool of events that can be linked in lists, saved in parallel primitive
+ * arrays. Each event is identified by its position in the arrays and the
+ * position of the next event of its list is saved in {@link #next} (-1 if it is
+ * the last one). The positions of the removed events are reused, so once the
+ * pool has grown enough it does not allocate anymore.
+ * It is used by the future event lists that need to keep many lists of events.
+ */
+final class EventPool {
+    static final Event.Type[] TYPES = Event.Type.values();
+
+    double[] times;
+    byte[] types;
+    int[] nodes;
+    int[] next;
+    private int free = -1;
+    private int used = 0;
+
+    /**
+     * Create a new pool with the given initial capacity.
+     *
+     * @param capacity the initial capacity
+     */
+    EventPool(int capacity) {
+        this.times = new double[capacity];
+        this.types = new byte[capacity];
+        this.nodes = new int[capacity];
+        this.next = new int[capacity];
+    }
+
+    /**
+     * Get a free position of the pool and save the event in it.
+     * The event is not linked to anything.
+     *
+     * @param type the type of the event
+     * @param node the node index of the event
+     * @param time the time of the event
+     * @return the position of the event
+     */
+    int alloc(Event.Type type, int node, double time) {
+        var index = this.free;
+        if (index >= 0) {
+            this.free = this.next[index];
+        } else {
+            if (this.used == this.times.length)
+                this.grow();
+            index = this.used++;
+        }
+
+        this.times[index] = time;
+        this.types[index] = (byte) type.ordinal();
+        this.nodes[index] = node;
+        this.next[index] = -1;
+        return index;
+    }
+
+    /**
+     * Return the position passed to the pool, so that it can be reused.
+     *
+     * @param index the position of the event
+     */
+    void release(int index) {
+        this.next[index] = this.free;
+        this.free = index;
+    }
+
+    /**
+     * Release all the positions of the pool at once.
+     */
+    void clear() {
+        this.free = -1;
+        this.used = 0;
+    }
+
+    /**
+     * Create an event object from the one saved in the position passed.
+     *
+     * @param index the position of the event
+     * @return a new event
+     */
+    Event toEvent(int index) {
+        return Event.newEvent(TYPES[this.types[index]], this.nodes[index], this.times[index]);
+    }
+
+    /**
+     * Double the capacity of the arrays.
+     */
+    private void grow() {
+        var capacity = Math.max(16, this.times.length << 1);
+        this.times = Arrays.copyOf(this.times, capacity);
+        this.types = Arrays.copyOf(this.types, capacity);
+        this.nodes = Arrays.copyOf(this.nodes, capacity);
+        this.next = Arrays.copyOf(this.next, capacity);
+    }
+}
@@ -0,0 +1,192 @@
+package net.berack.upo.valpre.sim;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The list of the events that still have to be processed by a simulation,
+ * ordered by their time.
+ * The events are passed and returned as primitive values so that the
+ * implementations can avoid creating an object for each one of them.
+ * Different implementations have different costs based on the number of events
+ * pending, see {@link Kind} for the ones available.
+ */
+public interface FutureEventList {
+    /**
+     * Get the number of events in the list.
+     *
+     * @return the number of events
+     */
+    public int size();
+
+    /**
+     * Check if the list has no events.
+     *
+     * @return true if there are no events
+     */
+    public default boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * Add a new event to the list.
+     *
+     * @param type the type of the event
+     * @param node the node index of the event
+     * @param time the time of the event
+     */
+    public void add(Event.Type type, int node, double time);
+
+    /**
+     * Add the event passed to the list.
+     * Note that the object itself is not saved, only its values.
+     *
+     * @param event the event to add
+     */
+    public default void add(Event event) {
+        this.add(event.type, event.nodeIndex, event.time);
+    }
+
+    /**
+     * Get the time of the next event in the list.
+     *
+     * @return the time of the next event
+     * @throws NoSuchElementException if the list is empty
+     */
+    public double peekTime();
+
+    /**
+     * Get the type of the next event in the list.
+     *
+     * @return the type of the next event
+     * @throws NoSuchElementException if the list is empty
+     */
+    public Event.Type peekType();
+
+    /**
+     * Get the node index of the next event in the list.
+     *
+     * @return the node index of the next event
+     * @throws NoSuchElementException if the list is empty
+     */
+    public int peekNode();
+
+    /**
+     * Remove the next event from the list.
+     * Use the peek methods to get its values before calling this.
+     *
+     * @throws NoSuchElementException if the list is empty
+     */
+    public void remove();
+
+    /**
+     * Remove all the events from the list.
+     */
+    public void clear();
+
+    /**
+     * Create a list of events from the ones saved.
+     * The order of the list depends on the implementation, so only the size and
+     * the content are guaranteed.
+     *
+     * @return a new list with all the events
+     */
+    public List<Event> toList();
+
+    /**
+     * Write all the events of the list, so that {@link #read(DataInput)} on an
+     * empty list of the same kind gives back a list that extracts them in the
+     * same order, even the ones with the same time.
+     * The default implementation writes the events of {@link #toList()} sorted
+     * by time with a stable sort, without changing the list, so it is valid only
+     * for the lists where the events with the same time are extracted in the
+     * order they were added and are in that order in {@link #toList()}.
+     *
+     * @param out where to write
+     * @throws IOException if the output fails
+     */
+    public default void write(DataOutput out) throws IOException {
+        var events = this.toList();
+        events.sort(Comparator.comparingDouble(event -> event.time));
+
+        out.writeInt(events.size());
+        for (var event : events) {
+            out.writeDouble(event.time);
+            out.writeByte(event.type.ordinal());
+            out.writeInt(event.nodeIndex);
+        }
+    }
+
+    /**
+     * Replace the events of the list with the ones written by
+     * {@link #write(DataOutput)} by a list of the same kind.
+     *
+     * @param in where to read
+     * @throws IOException if the input fails
+     */
+    public default void read(DataInput in) throws IOException {
+        var types = Event.Type.values();
+        this.clear();
+
+        var size = in.readInt();
+        for (var i = 0; i < size; i++) {
+            var time = in.readDouble();
+            var type = types[in.readByte()];
+            this.add(type, in.readInt(), time);
+        }
+    }
+
+    /**
+     * The implementations of the future event list that can be used by a
+     * simulation.
+     */
+    public static enum Kind {
+        /**
+         * A binary heap, O(log n) for each operation.
+         * It is the default and the one that extracts the events with the same time
+         * in the same order of a {@link java.util.PriorityQueue}.
+         */
+        HEAP,
+        /**
+         * A calendar queue, amortized O(1) for each operation when the events are
+         * evenly spread in time. The buckets are resized by sampling the events when
+         * the list grows or shrinks.
+         */
+        CALENDAR,
+        /**
+         * A calendar queue that also resizes its buckets based on the observed time
+         * between the extracted events.
+         */
+        ADAPTIVE,
+        /**
+         * A ladder queue, amortized O(1) for each operation even when the events are
+         * not evenly spread in time.
+         */
+        LADDER,
+        /**
+         * A small heap for each node and a tournament tree between the next events
+         * of the nodes, O(log nodes) for each operation.
+         */
+        TOURNAMENT;
+
+        /**
+         * Create a new empty list of this kind.
+         *
+         * @param nodes the number of nodes of the net that will use the list
+         * @return the new list
+         */
+        public FutureEventList build(int nodes) {
+            return switch (this) {
+                case HEAP -> new EventHeap();
+                case CALENDAR -> new CalendarQueue(false);
+                case ADAPTIVE -> new CalendarQueue(true);
+                case LADDER -> new LadderQueue();
+                case TOURNAMENT -> new TournamentScheduler(nodes);
+            };
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package net.berack.upo.valpre.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A ladder queue of events, as described by W. T. Tang, R. S. M. Goh and I. L.
+ * Thng in «Ladder queue: an O(1) priority queue structure for large-scale
+ * discrete event simulation».
+ * The events are kept in three parts:
+ * <ul>
+ * <li>top: an unsorted list with the events far in the future</li>
+ * <li>ladder: some rungs of buckets, each rung has buckets smaller than the one
+ * above and covers the time of a single bucket of the rung above</li>
+ * <li>bottom: a small sorted list with the next events</li>
+ * </ul>
+ * When the bottom is empty, the next bucket of the lowest rung is sorted into
+ * it, or it is split into a new rung if it has too many events. When the
+ * ladder is empty, the top is moved into a new first rung. When the events
+ * added to the bottom make it too long, it is moved into a new lowest rung.
+ * Since the events are sorted only when they are near, each operation has an
+ * amortized O(1) cost even when the times are not evenly spread. Only when all
+ * the rungs are used the bottom and the buckets can grow over the threshold,
+ * and then they are sorted in O(n log n).
+ * Events with the same time are extracted in the same order they were added.
+ */
+public final class LadderQueue implements FutureEventList {
+    private static final int THRESHOLD = 50;
+    private static final int MAX_RUNGS = 8;
+
+    private final EventPool pool = new EventPool(16);
+    private int size = 0;
+
+    private int topHead = -1;
+    private int topTail = -1;
+    private int topCount = 0;
+    private double topMin = Double.MAX_VALUE;
+    private double topMax = -Double.MAX_VALUE;
+    private double topStart = Double.NEGATIVE_INFINITY;
+
+    private int rungs = 0;
+    private final double[] rungStart = new double[MAX_RUNGS];
+    private final double[] rungWidth = new double[MAX_RUNGS];
+    private final int[] rungCurrent = new int[MAX_RUNGS];
+    private final int[] rungBuckets = new int[MAX_RUNGS];
+    private final int[][] bucketHead = new int[MAX_RUNGS][0];
+    private final int[][] bucketTail = new int[MAX_RUNGS][0];
+    private final int[][] bucketCount = new int[MAX_RUNGS][0];
+
+    private int bottom = -1;
+    private int bottomTail = -1;
+    private int bottomCount = 0;
+    private int[] sortBuffer = new int[THRESHOLD];
+    private int[] mergeBuffer = new int[0];
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void add(Event.Type type, int node, double time) {
+        var index = this.pool.alloc(type, node, time);
+        this.size += 1;
+
+        if (time >= this.topStart) {
+            this.topMin = Math.min(this.topMin, time);
+            this.topMax = Math.max(this.topMax, time);
+            this.topCount += 1;
+            if (this.topTail < 0)
+                this.topHead = index;
+            else
+                this.pool.next[this.topTail] = index;
+            this.topTail = index;
+            return;
+        }
+
+        // the same division of createRung decides the bucket, so an event is never
+        // put before the ones with the same time already in the buckets
+        for (var rung = 0; rung < this.rungs; rung++) {
+            var current = this.rungCurrent[rung];
+            var bucket = (int) Math.floor((time - this.rungStart[rung]) / this.rungWidth[rung]);
+            if (current < this.rungBuckets[rung] && bucket >= current) {
+                this.append(rung, Math.min(bucket, this.rungBuckets[rung] - 1), index);
+                return;
+            }
+        }
+
+        this.insertBottom(index);
+    }
+
+    @Override
+    public double peekTime() {
+        return this.pool.times[this.findNext()];
+    }
+
+    @Override
+    public Event.Type peekType() {
+        return EventPool.TYPES[this.pool.types[this.findNext()]];
+    }
+
+    @Override
+    public int peekNode() {
+        return this.pool.nodes[this.findNext()];
+    }
+
+    @Override
+    public void remove() {
+        var index = this.findNext();
+        this.bottom = this.pool.next[index];
+        this.bottomCount -= 1;
+        if (this.bottom < 0)
+            this.bottomTail = -1;
+        this.pool.release(index);
+        this.size -= 1;
+
+        if (this.size == 0)
+            this.clear();
+    }
+
+    @Override
+    public void clear() {
+        for (var rung = 0; rung < this.rungs; rung++)
+            Arrays.fill(this.bucketCount[rung], 0, this.rungBuckets[rung], 0);
+
+        this.pool.clear();
+        this.size = 0;
+        this.rungs = 0;
+        this.bottom = -1;
+        this.bottomTail = -1;
+        this.bottomCount = 0;
+        this.resetTop();
+        this.topStart = Double.NEGATIVE_INFINITY;
+    }
+
+    @Override
+    public List<Event> toList() {
+        var list = new ArrayList<Event>(this.size);
+        for (var i = this.bottom; i >= 0; i = this.pool.next[i])
+            list.add(this.pool.toEvent(i));
+        for (var rung = this.rungs - 1; rung >= 0; rung--)
+            for (var bucket = this.rungCurrent[rung]; bucket < this.rungBuckets[rung]; bucket++)
+                if (this.bucketCount[rung][bucket] > 0)
+                    for (var i = this.bucketHead[rung][bucket]; i >= 0; i = this.pool.next[i])
+                        list.add(this.pool.toEvent(i));
+        for (var i = this.topHead; i >= 0; i = this.pool.next[i])
+            list.add(this.pool.toEvent(i));
+        return list;
+    }
+
+    /**
+     * Get the position of the next event, that is the first of the bottom.
+     * If the bottom is empty then it is filled from the ladder or the top.
+     */
+    private int findNext() {
+        if (this.size == 0)
+            throw new NoSuchElementException("No events in the ladder");
+
+        while (this.bottom < 0) {
+            if (this.rungs == 0) {
+                this.transferTop();
+                continue;
+            }
+
+            var rung = this.rungs - 1;
+            var counts = this.bucketCount[rung];
+            var bucket = this.rungCurrent[rung];
+            while (bucket < this.rungBuckets[rung] && counts[bucket] == 0)
+                bucket++;
+
+            if (bucket == this.rungBuckets[rung]) {
+                this.rungs -= 1;
+                continue;
+            }
+
+            var head = this.bucketHead[rung][bucket];
+            var count = counts[bucket];
+            counts[bucket] = 0;
+            this.rungCurrent[rung] = bucket + 1;
+
+            var start = this.rungStart[rung] + bucket * this.rungWidth[rung];
+            var width = this.rungWidth[rung] / THRESHOLD;
+            if (count > THRESHOLD && this.rungs < MAX_RUNGS && width > 0 && !this.allSameTime(head))
+                this.createRung(head, start, width, THRESHOLD);
+            else
+                this.sortIntoBottom(head, count);
+        }
+
+        return this.bottom;
+    }
+
+    /**
+     * Move all the events of the top into a new first rung, or directly into the
+     * bottom if they are few.
+     */
+    private void transferTop() {
+        var head = this.topHead;
+        var count = this.topCount;
+        var min = this.topMin;
+        var max = this.topMax;
+        var width = (max - min) / count;
+
+        // the events added from now on go in the top only if they are not lower
+        // than all the ones moved
+        this.resetTop();
+        if (count <= THRESHOLD || width <= 0) {
+            this.sortIntoBottom(head, count);
+            this.topStart = max;
+        } else {
+            this.createRung(head, min, width, count + 1);
+            this.topStart = Math.max(max, min + (count + 1) * width);
+        }
+    }
+
+    /**
+     * Create a new rung under the existing ones and move the list of events
+     * passed into its buckets.
+     */
+    private void createRung(int head, double start, double width, int buckets) {
+        var rung = this.rungs++;
+        if (this.bucketCount[rung].length < buckets) {
+            this.bucketHead[rung] = new int[buckets];
+            this.bucketTail[rung] = new int[buckets];
+            this.bucketCount[rung] = new int[buckets];
+        }
+
+        this.rungStart[rung] = start;
+        this.rungWidth[rung] = width;
+        this.rungCurrent[rung] = 0;
+        this.rungBuckets[rung] = buckets;
+        Arrays.fill(this.bucketCount[rung], 0, buckets, 0);
+
+        for (var i = head; i >= 0;) {
+            var following = this.pool.next[i];
+            var bucket = (int) ((this.pool.times[i] - start) / width);
+            bucket = Math.max(0, Math.min(bucket, buckets - 1));
+            this.append(rung, bucket, i);
+            i = following;
+        }
+    }
+
+    /**
+     * Append the event at the end of the bucket of the rung.
+     */
+    private void append(int rung, int bucket, int index) {
+        this.pool.next[index] = -1;
+        if (this.bucketCount[rung][bucket]++ == 0)
+            this.bucketHead[rung][bucket] = index;
+        else
+            this.pool.next[this.bucketTail[rung][bucket]] = index;
+        this.bucketTail[rung][bucket] = index;
+    }
+
+    /**
+     * Sort the list of events passed by time and put it in the bottom, that must
+     * be empty. The sort is stable, so the events with the same time keep their
+     * order: an insertion sort for the short lists, that are almost all of them,
+     * and a merge sort for the long ones.
+     */
+    private void sortIntoBottom(int head, int count) {
+        if (this.sortBuffer.length < count)
+            this.sortBuffer = new int[Math.max(count, this.sortBuffer.length << 1)];
+
+        var buffer = this.sortBuffer;
+        var times = this.pool.times;
+        var n = 0;
+        if (count > THRESHOLD) {
+            for (var i = head; i >= 0; i = this.pool.next[i])
+                buffer[n++] = i;
+            this.mergeSort(n);
+            buffer = this.sortBuffer;
+        } else {
+            for (var i = head; i >= 0; i = this.pool.next[i]) {
+                var time = times[i];
+                var pos = n++;
+                while (pos > 0 && times[buffer[pos - 1]] > time) {
+                    buffer[pos] = buffer[pos - 1];
+                    pos--;
+                }
+                buffer[pos] = i;
+            }
+        }
+
+        for (var i = 0; i < n - 1; i++)
+            this.pool.next[buffer[i]] = buffer[i + 1];
+        this.pool.next[buffer[n - 1]] = -1;
+        this.bottom = buffer[0];
+        this.bottomTail = buffer[n - 1];
+        this.bottomCount = n;
+    }
+
+    /**
+     * Sort by time the first events of the sort buffer with a stable bottom-up
+     * merge sort. The sorted events are left in the sort buffer, that may be
+     * swapped with the merge buffer.
+     */
+    private void mergeSort(int n) {
+        if (this.mergeBuffer.length < this.sortBuffer.length)
+            this.mergeBuffer = new int[this.sortBuffer.length];
+
+        var times = this.pool.times;
+        var from = this.sortBuffer;
+        var to = this.mergeBuffer;
+        for (var run = 1; run < n; run <<= 1) {
+            for (var lo = 0; lo < n; lo += run << 1) {
+                var mid = Math.min(lo + run, n);
+                var hi = Math.min(lo + (run << 1), n);
+                var left = lo;
+                var right = mid;
+                for (var k = lo; k < hi; k++)
+                    to[k] = right >= hi || (left < mid && times[from[left]] <= times[from[right]])
+                            ? from[left++]
+                            : from[right++];
+            }
+            var swap = from;
+            from = to;
+            to = swap;
+        }
+
+        this.sortBuffer = from;
+        this.mergeBuffer = to;
+    }
+
+    /**
+     * Insert the event in the bottom, after all the events with a time lower or
+     * equal to it. The events not lower than the last one, that are the most
+     * common, are appended in constant time. If the bottom becomes too long it
+     * is moved into a new lowest rung, so that it stays short.
+     */
+    private void insertBottom(int index) {
+        var time = this.pool.times[index];
+        this.bottomCount += 1;
+        if (this.bottomTail >= 0 && this.pool.times[this.bottomTail] <= time) {
+            this.pool.next[index] = -1;
+            this.pool.next[this.bottomTail] = index;
+            this.bottomTail = index;
+        } else {
+            var prev = -1;
+            var curr = this.bottom;
+            while (curr >= 0 && this.pool.times[curr] <= time) {
+                prev = curr;
+                curr = this.pool.next[curr];
+            }
+
+            this.pool.next[index] = curr;
+            if (prev < 0)
+                this.bottom = index;
+            else
+                this.pool.next[prev] = index;
+            if (curr < 0)
+                this.bottomTail = index;
+        }
+
+        if (this.bottomCount > THRESHOLD && this.rungs < MAX_RUNGS)
+            this.transferBottom();
+    }
+
+    /**
+     * Move all the events of the bottom into a new lowest rung, if they do not
+     * have all the same time. All the events of the bottom are lower than the
+     * current bucket of the lowest rung, so the new rung goes under it.
+     */
+    private void transferBottom() {
+        var min = this.pool.times[this.bottom];
+        var max = this.pool.times[this.bottomTail];
+        var count = this.bottomCount;
+        var width = (max - min) / count;
+        if (width <= 0)
+            return;
+
+        var head = this.bottom;
+        this.bottom = -1;
+        this.bottomTail = -1;
+        this.bottomCount = 0;
+        this.createRung(head, min, width, count + 1);
+    }
+
+    /**
+     * Check if all the events of the list have the same time.
+     */
+    private boolean allSameTime(int head) {
+        var time = this.pool.times[head];
+        for (var i = this.pool.next[head]; i >= 0; i = this.pool.next[i])
+            if (this.pool.times[i] != time)
+                return false;
+        return true;
+    }
+
+    /**
+     * Empty the top without touching its events.
+     */
+    private void resetTop() {
+        this.topHead = -1;
+        this.topTail = -1;
+        this.topCount = 0;
+        this.topMin = Double.MAX_VALUE;
+        this.topMax = -Double.MAX_VALUE;
+    }
+}
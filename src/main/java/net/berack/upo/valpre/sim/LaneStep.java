@@ -0,0 +1,84 @@
+package net.berack.upo.valpre.sim;
+
+/**
+ * The departure step of {@link LockstepTandem}, that applies the same operations
+ * to all the lanes of a node: the departure of the request is the maximum
+ * between its arrival and the departure of the previous one, plus its service.
+ * The lanes where the request was dropped are not changed.
+ * The step done with the Vector API is in its own source folder, compiled only
+ * with the maven profile {@code vector}, since the module jdk.incubator.vector
+ * must then be added when compiling and running. Without it the step is the
+ * scalar one, that gives the same results.
+ */
+interface LaneStep {
+    /**
+     * Get the number of lanes done at once. The arrays passed to
+     * {@link #depart} must have a multiple of it as length of a node.
+     *
+     * @return the number of lanes done at once
+     */
+    int width();
+
+    /**
+     * Compute the departure of the request of each alive lane from a node, and
+     * update the statistics of the node in that lane.
+     *
+     * @param base         the position of the lane 0 of the node in the arrays
+     *                     of the node
+     * @param lanes        the number of lanes, padded to a multiple of
+     *                     {@link #width()}
+     * @param time         the arrival of the request of each lane, replaced by
+     *                     its departure
+     * @param service      the service time of the request of each lane
+     * @param alive        if the request of each lane was not dropped
+     * @param free         the last departure of the node in each lane
+     * @param busyTime     the busy time of the node in each lane
+     * @param responseTime the response time of the node in each lane
+     */
+    void depart(int base, int lanes, double[] time, double[] service, boolean[] alive, double[] free,
+            double[] busyTime, double[] responseTime);
+
+    /**
+     * Get the fastest step available: the one with the Vector API if the module
+     * jdk.incubator.vector is present and the step was compiled, otherwise the
+     * scalar one.
+     *
+     * @return the step to use
+     */
+    static LaneStep load() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                var type = Class.forName("net.berack.upo.valpre.sim.VectorLaneStep");
+                return (LaneStep) type.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // not compiled with the profile, the scalar step is used
+            }
+        }
+        return new Scalar();
+    }
+
+    /**
+     * The step done one lane at a time.
+     */
+    final class Scalar implements LaneStep {
+        @Override
+        public int width() {
+            return 1;
+        }
+
+        @Override
+        public void depart(int base, int lanes, double[] time, double[] service, boolean[] alive, double[] free,
+                double[] busyTime, double[] responseTime) {
+            for (var l = 0; l < lanes; l++) {
+                if (!alive[l])
+                    continue;
+
+                var departure = Math.max(time[l], free[base + l]) + service[l];
+                busyTime[base + l] += service[l];
+                responseTime[base + l] += departure - time[l];
+                free[base + l] = departure;
+                time[l] = departure;
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package net.berack.upo.valpre.sim;
+
+import java.util.Arrays;
+
+import net.berack.upo.valpre.rand.Rng;
+import net.berack.upo.valpre.sim.stats.NodeStats;
+import net.berack.upo.valpre.sim.stats.Result;
+
+/**
+ * An engine that runs a feed-forward net without a future event list.
+ * The net must have no cycles, its sources must spawn a finite number of
+ * arrivals and have no parents, all the other nodes must have one server and
+ * none of them can be unavailable. In such a net every node serves its requests
+ * in the order they arrive, so each one departs at the maximum between its
+ * arrival and the departure of the previous one, plus its service time (the
+ * recurrence of Lindley). The nodes are then run one at a time in topological
+ * order: all the departures of a node are known before it sends them to its
+ * children, and the arrivals of a node with more parents are just sorted.
+ * The statistics are updated with the same methods of {@link NodeStats} used by
+ * {@link Simulation}, but the random numbers are used node after node instead
+ * of in the order of the events, so the results of a run are not the same of a
+ * {@link Simulation} with the same generator, even if they come from the same
+ * model.
+ * An object of this class reuses its buffers between runs, so it must not be
+ * shared between threads.
+ */
+public final class LindleySimulation {
+    /** The next node of a request must be chosen with a random number */
+    private static final int RANDOM = -2;
+
+    private final CompiledNet net;
+    private final int[] order;
+    private final boolean[] merge;
+    private final int[] next;
+    private final double[][] arrivals;
+    private final int[] counts;
+    private final DoubleQueue inSystem = new DoubleQueue();
+
+    /**
+     * Create the engine for the net passed.
+     *
+     * @param net the compiled net
+     * @throws IllegalArgumentException if the net is not a feed-forward net
+     * @see #supports(CompiledNet)
+     */
+    public LindleySimulation(CompiledNet net) {
+        var order = orderOf(net);
+        if (order == null)
+            throw new IllegalArgumentException("The net is not a feed-forward net of single servers");
+
+        var size = net.size();
+        this.net = net;
+        this.order = order;
+        this.merge = new boolean[size];
+        this.next = new int[size];
+        this.arrivals = new double[size][16];
+        this.counts = new int[size];
+
+        var parent = new int[size];
+        Arrays.fill(parent, -1);
+        for (var node = 0; node < size; node++) {
+            var start = net.getChildStart(node);
+            var children = net.getChildEnd(node) - start;
+            if (children == 0)
+                this.next[node] = -1;
+            else if (children == 1 && net.getChildWeight(start) >= 1.0d)
+                this.next[node] = net.getChildIndex(start);
+            else
+                this.next[node] = RANDOM;
+
+            for (var i = start; i < start + children; i++) {
+                var child = net.getChildIndex(i);
+                if (parent[child] >= 0 && parent[child] != node)
+                    this.merge[child] = true;
+                parent[child] = node;
+            }
+        }
+    }
+
+    /**
+     * Check if the net passed can be run by this engine, that is if it is a
+     * feed-forward net of single servers that ends by itself.
+     *
+     * @param net the compiled net
+     * @return true if the net is supported
+     */
+    public static boolean supports(CompiledNet net) {
+        return orderOf(net) != null;
+    }
+
+    /**
+     * Run the net until all the requests have left it.
+     *
+     * @param rng the random number generator to use
+     * @return the statistics of the run
+     */
+    public Result run(Rng rng) {
+        var timeStartedNano = System.nanoTime();
+        var seed = rng.getSeed();
+        var stats = new NodeStats[this.net.size()];
+        var simulationTime = 0.0d;
+        Arrays.fill(this.counts, 0);
+
+        for (var node : this.order) {
+            var stat = new NodeStats();
+            var spawn = this.net.getSpawnArrivals(node);
+            if (spawn > 0)
+                this.runSource(node, spawn, stat, rng);
+            else
+                this.runQueue(node, stat, rng);
+
+            if (stat.numArrivals > 0)
+                stat.updateDerived(stat.lastEventTime);
+            simulationTime = Math.max(simulationTime, stat.lastEventTime);
+            stats[node] = stat;
+        }
+
+        var elapsed = System.nanoTime() - timeStartedNano;
+        var builder = new Result.Builder();
+        for (var node = 0; node < stats.length; node++)
+            builder.addNode(this.net.getNode(node).name, stats[node]);
+        return builder.seed(seed).times(simulationTime, elapsed * 1e-6).build();
+    }
+
+    /**
+     * Run a source: each request arrives when the previous one departs, so its
+     * queue has always one request.
+     */
+    private void runSource(int node, int spawn, NodeStats stat, Rng rng) {
+        var sampler = this.net.getServiceSampler(node);
+        var time = 0.0d;
+        for (var i = 0; i < spawn; i++) {
+            stat.updateArrival(time, 1);
+            var service = sampler.sample(rng);
+            var departure = time + service;
+            stat.busyTime += service;
+            stat.updateDeparture(departure, time);
+            this.route(node, departure, rng);
+            time = departure;
+        }
+        stat.lastEventTime = time;
+    }
+
+    /**
+     * Run a node with one server on all the arrivals sent by its parents.
+     * The requests that find the queue full are dropped.
+     */
+    private void runQueue(int node, NodeStats stat, Rng rng) {
+        var sampler = this.net.getServiceSampler(node);
+        var maxQueue = this.net.getMaxQueue(node);
+        var arrivals = this.arrivals[node];
+        var count = this.counts[node];
+        if (this.merge[node])
+            Arrays.sort(arrivals, 0, count);
+
+        var free = 0.0d;
+        this.inSystem.clear();
+        for (var i = 0; i < count; i++) {
+            var arrival = arrivals[i];
+            while (!this.inSystem.isEmpty() && this.inSystem.peek() <= arrival)
+                this.inSystem.poll();
+            if (this.inSystem.size() >= maxQueue)
+                continue;
+
+            stat.updateArrival(arrival, this.inSystem.size() + 1);
+            var service = sampler.sample(rng);
+            var departure = Math.max(arrival, free) + service;
+            stat.busyTime += service;
+            stat.updateDeparture(departure, arrival);
+            this.inSystem.add(departure);
+            this.route(node, departure, rng);
+            free = departure;
+        }
+        stat.lastEventTime = free;
+    }
+
+    /**
+     * Send the request that departed from the node to one of its children.
+     * A random number is used only if the node has more than one possible next
+     * node.
+     */
+    private void route(int node, double time, Rng rng) {
+        var child = this.next[node];
+        if (child == RANDOM)
+            child = this.net.getRoutingTable(node).select(rng.random());
+        if (child < 0)
+            return;
+
+        var count = this.counts[child];
+        if (count == this.arrivals[child].length)
+            this.arrivals[child] = Arrays.copyOf(this.arrivals[child], count << 1);
+        this.arrivals[child][count] = time;
+        this.counts[child] = count + 1;
+    }
+
+    /**
+     * Find a topological order of the nodes of the net, checking that it is
+     * supported by this engine.
+     *
+     * @return the indices of the nodes in order, or null if it is not supported
+     */
+    static int[] orderOf(CompiledNet net) {
+        var size = net.size();
+        var parents = new int[size];
+        for (var node = 0; node < size; node++) {
+            if (!net.getUnavailableSampler(node).isZero())
+                return null;
+            for (var i = net.getChildStart(node); i < net.getChildEnd(node); i++)
+                parents[net.getChildIndex(i)] += 1;
+        }
+
+        var order = new int[size];
+        var count = 0;
+        for (var node = 0; node < size; node++) {
+            var spawn = net.getSpawnArrivals(node);
+            if (spawn < 0 || (spawn > 0 && parents[node] > 0))
+                return null;
+            if (spawn == 0 && net.getMaxServers(node) != 1)
+                return null;
+            if (parents[node] == 0)
+                order[count++] = node;
+        }
+
+        for (var i = 0; i < count; i++) {
+            var node = order[i];
+            for (var j = net.getChildStart(node); j < net.getChildEnd(node); j++) {
+                var child = net.getChildIndex(j);
+                parents[child] -= 1;
+                if (parents[child] == 0)
+                    order[count++] = child;
+            }
+        }
+        return count == size ? order : null;
+    }
+}
@@ -0,0 +1,209 @@
+package net.berack.upo.valpre.sim;
+
+import net.berack.upo.valpre.rand.Rng;
+import net.berack.upo.valpre.sim.stats.NodeStats;
+import net.berack.upo.valpre.sim.stats.Result;
+
+/**
+ * An engine that runs many replications of a tandem line at the same time, one
+ * for each lane.
+ * A tandem line is a terminal source followed by a chain of single server
+ * nodes, where each node sends all its requests to the next one and none of
+ * them can be unavailable. In such a net the requests leave each node in the
+ * same order they arrived, so the departure of a request from a node is the
+ * maximum between its arrival and the departure of the previous request, plus
+ * its service time. This does not need any future event list, and all the
+ * replications follow the same steps: for each request, for each node, the same
+ * operations are applied to every lane, saved in parallel arrays.
+ * The only place where the lanes can diverge is when the queue of a node is
+ * full: the request is dropped in that lane only and it is skipped there by the
+ * next nodes.
+ * Each lane has its own random number generator, used in the order of the
+ * requests, so the results are not the same of {@link Simulation} with the same
+ * generator, even if they come from the same model.
+ * The operations that are the same for all the lanes are done by a
+ * {@link LaneStep}, that uses the Vector API only when the project is built
+ * with the maven profile {@code vector}.
+ */
+public final class LockstepTandem {
+    private final CompiledNet net;
+    private final int[] line;
+    private final int requests;
+    private final LaneStep step = LaneStep.load();
+
+    /**
+     * Create the engine for the net passed.
+     *
+     * @param net the compiled net
+     * @throws IllegalArgumentException if the net is not a tandem line
+     * @see #supports(CompiledNet)
+     */
+    public LockstepTandem(CompiledNet net) {
+        var line = lineOf(net);
+        if (line == null)
+            throw new IllegalArgumentException("The net is not a tandem line");
+
+        this.net = net;
+        this.line = line;
+        this.requests = net.getSpawnArrivals(line[0]);
+    }
+
+    /**
+     * Check if the net passed can be run by this engine, that is if it is a
+     * tandem line that ends by itself.
+     *
+     * @param net the compiled net
+     * @return true if the net is a tandem line
+     */
+    public static boolean supports(CompiledNet net) {
+        return lineOf(net) != null;
+    }
+
+    /**
+     * Run one replication for each random number generator passed, all at once.
+     *
+     * @param rngs the generators of the replications
+     * @return the results of the replications, in the same order of the generators
+     */
+    public Result[] run(Rng[] rngs) {
+        var timeStartedNano = System.nanoTime();
+        var lanes = rngs.length;
+        var stages = this.line.length;
+        var width = this.step.width();
+        var padded = (lanes + width - 1) / width * width;
+        var seeds = new long[lanes];
+        for (var l = 0; l < lanes; l++)
+            seeds[l] = rngs[l].getSeed();
+
+        // the statistics of every node in every lane, saved as [stage * padded + lane]
+        // where the lanes after the last are never alive and only fill the step
+        var arrivals = new double[stages * padded];
+        var sumQueue = new double[stages * padded];
+        var maxQueue = new double[stages * padded];
+        var busyTime = new double[stages * padded];
+        var responseTime = new double[stages * padded];
+        var free = new double[stages * padded];
+        var queues = new DoubleQueue[stages * padded];
+        for (var i = 0; i < queues.length; i++)
+            queues[i] = new DoubleQueue();
+
+        // the request that is moving along the line in every lane
+        var time = new double[padded];
+        var service = new double[padded];
+        var alive = new boolean[padded];
+
+        for (var request = 0; request < this.requests; request++) {
+            for (var l = 0; l < lanes; l++) {
+                time[l] = free[l];
+                alive[l] = true;
+            }
+
+            for (var stage = 0; stage < stages; stage++) {
+                var base = stage * padded;
+                var sampler = this.net.getServiceSampler(this.line[stage]);
+                var limit = this.net.getMaxQueue(this.line[stage]);
+
+                // the only part where the lanes can diverge
+                for (var l = 0; l < lanes; l++) {
+                    if (!alive[l])
+                        continue;
+
+                    var queue = queues[base + l];
+                    while (!queue.isEmpty() && queue.peek() <= time[l])
+                        queue.poll();
+                    if (queue.size() >= limit) {
+                        alive[l] = false;
+                        continue;
+                    }
+
+                    var size = queue.size() + 1;
+                    sumQueue[base + l] += size;
+                    maxQueue[base + l] = Math.max(maxQueue[base + l], size);
+                    arrivals[base + l] += 1;
+                    service[l] = sampler.sample(rngs[l]);
+                }
+
+                // the same operations for all the lanes
+                this.step.depart(base, padded, time, service, alive, free, busyTime, responseTime);
+                for (var l = 0; l < lanes; l++)
+                    if (alive[l])
+                        queues[base + l].add(time[l]);
+            }
+        }
+
+        var elapsed = (System.nanoTime() - timeStartedNano) * 1e-6 / lanes;
+        var results = new Result[lanes];
+        for (var l = 0; l < lanes; l++) {
+            var stats = new NodeStats[this.net.size()];
+            var simulationTime = 0.0d;
+            for (var stage = 0; stage < stages; stage++) {
+                var i = stage * padded + l;
+                var stat = new NodeStats();
+                stat.numArrivals = arrivals[i];
+                stat.numDepartures = arrivals[i];
+                stat.maxQueueLength = maxQueue[i];
+                stat.avgQueueLength = arrivals[i] > 0 ? sumQueue[i] / arrivals[i] : 0.0d;
+                stat.busyTime = busyTime[i];
+                stat.responseTime = responseTime[i];
+                stat.lastEventTime = free[i];
+                if (arrivals[i] > 0)
+                    stat.updateDerived(free[i]);
+
+                stats[this.line[stage]] = stat;
+                simulationTime = Math.max(simulationTime, free[i]);
+            }
+
+            var builder = new Result.Builder();
+            for (var node = 0; node < stats.length; node++)
+                builder.addNode(this.net.getNode(node).name, stats[node]);
+            results[l] = builder.seed(seeds[l]).times(simulationTime, elapsed).build();
+        }
+        return results;
+    }
+
+    /**
+     * Find the order of the nodes of the tandem line, starting from the source.
+     * The source must be the only node that spawns arrivals and it must spawn a
+     * finite number of them, then every node must have at most one child with a
+     * weight of at least 1, all the nodes after the source must have one server
+     * and none can be unavailable. All the nodes of the net must be in the line.
+     *
+     * @return the indices of the nodes in order, or null if it is not a line
+     */
+    private static int[] lineOf(CompiledNet net) {
+        var size = net.size();
+        var source = -1;
+        for (var i = 0; i < size; i++) {
+            if (net.getSpawnArrivals(i) == 0)
+                continue;
+            if (source >= 0 || net.getSpawnArrivals(i) < 0)
+                return null;
+            source = i;
+        }
+        if (source < 0)
+            return null;
+
+        var line = new int[size];
+        var visited = new boolean[size];
+        var count = 0;
+        for (var node = source; node >= 0;) {
+            if (visited[node] || !net.getUnavailableSampler(node).isZero())
+                return null;
+            if (node != source && net.getMaxServers(node) != 1)
+                return null;
+
+            visited[node] = true;
+            line[count++] = node;
+
+            var start = net.getChildStart(node);
+            var children = net.getChildEnd(node) - start;
+            if (children == 0)
+                node = -1;
+            else if (children == 1 && net.getChildWeight(start) >= 1.0d)
+                node = net.getChildIndex(start);
+            else
+                return null;
+        }
+        return count == size ? line : null;
+    }
+}
@@ -153,6 +153,20 @@ public final class Net implements Iterable<ServerNode> {
         return children;
     }
 
+    /**
+     * Compile the connections of the parent in a table that chooses one of its
+     * children in constant time.
+     * The table is a copy, so it is not affected by later changes to the net.
+     * 
+     * @param parent the parent node
+     * @throws IndexOutOfBoundsException If the index is not in the range
+     * @return the routing table of the node
+     * @see RoutingTable
+     */
+    public RoutingTable getRoutingTable(int parent) {
+        return new RoutingTable(this.connections.get(parent));
+    }
+
     /**
      * Normalizes the weights in each connections so that their sum equals 1.
      * This method should be called by the user if they have inserted weights that
@@ -184,10 +198,19 @@ public final class Net implements Iterable<ServerNode> {
      * @return the array of node states
      */
     public ServerNodeState[] buildNodeStates() {
-        var states = new ServerNodeState[this.servers.size()];
-        for (var i = 0; i < states.length; i++)
-            states[i] = new ServerNodeState(i, this);
-        return states;
+        return this.compile().buildNodeStates();
+    }
+
+    /**
+     * Create a frozen copy of the net, with the connections and the parameters of
+     * the nodes saved in arrays.
+     * The result is not affected by the changes made to this net after the call,
+     * and it can be shared by many simulations at once.
+     * 
+     * @return the compiled net
+     */
+    public CompiledNet compile() {
+        return new CompiledNet(this.servers, this.connections);
     }
 
     /**
@@ -0,0 +1,473 @@
+package net.berack.upo.valpre.sim;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.berack.upo.valpre.rand.RandomStream;
+import net.berack.upo.valpre.sim.stats.NodeStats;
+
+/**
+ * The state and the statistics of all the nodes of a simulation, saved as
+ * parallel arrays indexed by node instead of an object for each node.
+ * In this way the values updated by every event (busy and unavailable servers,
+ * time of the last event and the running sums) of many nodes are close in
+ * memory, which matters for nets with a lot of nodes.
+ * The updates are the same of {@link ServerNodeState} and {@link NodeStats},
+ * made in the same order, so the results are identical. The only difference is
+ * that the derived statistics (averages, throughput, utilization, ...) are
+ * calculated only when they are requested.
+ */
+final class NodeStateArrays {
+    private final CompiledNet net;
+    private final int[] maxServers;
+    private final int[] maxQueue;
+    private final int[] spawnArrivals;
+    private final RoutingTable[] routing;
+    private final Sampler[] service;
+    private final Sampler[] unavailableTimes;
+
+    private final int[] busy;
+    private final int[] unavailable;
+    private final int[] pendingArrivals;
+    private final DoubleQueue[] queues;
+    private final boolean[] updated;
+    private final double[] lastEventTime;
+    private final double[] numArrivals;
+    private final double[] numDepartures;
+    private final double[] maxQueueLength;
+    private final double[] avgQueueLength;
+    private final double[] busyTime;
+    private final double[] unavailableTime;
+    private final double[] responseTime;
+
+    /**
+     * Create the empty state of all the nodes of the compiled net.
+     *
+     * @param net the compiled net
+     */
+    NodeStateArrays(CompiledNet net) {
+        var size = net.size();
+        this.net = net;
+        this.maxServers = new int[size];
+        this.maxQueue = new int[size];
+        this.spawnArrivals = new int[size];
+        this.routing = new RoutingTable[size];
+        this.service = new Sampler[size];
+        this.unavailableTimes = new Sampler[size];
+        this.queues = new DoubleQueue[size];
+        for (var i = 0; i < size; i++) {
+            this.maxServers[i] = net.getMaxServers(i);
+            this.maxQueue[i] = net.getMaxQueue(i);
+            this.spawnArrivals[i] = net.getSpawnArrivals(i);
+            this.routing[i] = net.getRoutingTable(i);
+            this.service[i] = net.getServiceSampler(i);
+            this.unavailableTimes[i] = net.getUnavailableSampler(i);
+            this.queues[i] = new DoubleQueue(this.maxQueue[i]);
+        }
+
+        this.busy = new int[size];
+        this.unavailable = new int[size];
+        this.pendingArrivals = new int[size];
+        this.updated = new boolean[size];
+        this.lastEventTime = new double[size];
+        this.numArrivals = new double[size];
+        this.numDepartures = new double[size];
+        this.maxQueueLength = new double[size];
+        this.avgQueueLength = new double[size];
+        this.busyTime = new double[size];
+        this.unavailableTime = new double[size];
+        this.responseTime = new double[size];
+    }
+
+    /**
+     * Bring all the nodes back to their empty state, keeping the memory already
+     * allocated for the queues.
+     */
+    void clear() {
+        for (var queue : this.queues)
+            queue.clear();
+
+        Arrays.fill(this.busy, 0);
+        Arrays.fill(this.unavailable, 0);
+        Arrays.fill(this.pendingArrivals, 0);
+        Arrays.fill(this.updated, false);
+        Arrays.fill(this.lastEventTime, 0.0d);
+        Arrays.fill(this.numArrivals, 0.0d);
+        Arrays.fill(this.numDepartures, 0.0d);
+        Arrays.fill(this.maxQueueLength, 0.0d);
+        Arrays.fill(this.avgQueueLength, 0.0d);
+        Arrays.fill(this.busyTime, 0.0d);
+        Arrays.fill(this.unavailableTime, 0.0d);
+        Arrays.fill(this.responseTime, 0.0d);
+    }
+
+    /**
+     * Bring the statistics of all the nodes back to 0, keeping their state
+     * (servers, queues and time of the last event) as it is.
+     */
+    void clearStats() {
+        Arrays.fill(this.updated, false);
+        Arrays.fill(this.numArrivals, 0.0d);
+        Arrays.fill(this.numDepartures, 0.0d);
+        Arrays.fill(this.maxQueueLength, 0.0d);
+        Arrays.fill(this.avgQueueLength, 0.0d);
+        Arrays.fill(this.busyTime, 0.0d);
+        Arrays.fill(this.unavailableTime, 0.0d);
+        Arrays.fill(this.responseTime, 0.0d);
+    }
+
+    /**
+     * Move the origin of the times to the one passed, that becomes the time of
+     * the last event of all the nodes. The requests in the queues keep the time
+     * they waited, so their arrival can be before the new origin.
+     *
+     * @param origin the time that becomes 0
+     */
+    void moveOrigin(double origin) {
+        Arrays.fill(this.lastEventTime, 0.0d);
+        for (var queue : this.queues)
+            queue.shift(-origin);
+    }
+
+    /**
+     * Copy the discrete state of all the nodes in the array passed: for each
+     * node the busy servers, the unavailable servers and the requests in the
+     * queue, in this order.
+     *
+     * @param shape the array where to copy, three values for each node
+     */
+    void copyShape(int[] shape) {
+        for (var node = 0; node < this.busy.length; node++) {
+            shape[node * 3] = this.busy[node];
+            shape[node * 3 + 1] = this.unavailable[node];
+            shape[node * 3 + 2] = this.queues[node].size();
+        }
+    }
+
+    /**
+     * Get the number of arrivals of the node.
+     *
+     * @param node the index of the node
+     * @return the number of arrivals
+     */
+    double getArrivals(int node) {
+        return this.numArrivals[node];
+    }
+
+    /**
+     * Get the number of departures of the node.
+     *
+     * @param node the index of the node
+     * @return the number of departures
+     */
+    double getDepartures(int node) {
+        return this.numDepartures[node];
+    }
+
+    /**
+     * Count an arrival to the node that is scheduled but not processed yet, be it
+     * of the node to itself or from a parent.
+     *
+     * @param node the index of the node
+     */
+    void addPendingArrival(int node) {
+        this.pendingArrivals[node] += 1;
+    }
+
+    /**
+     * Remove an arrival counted by {@link #addPendingArrival(int)}, since it is
+     * being processed.
+     *
+     * @param node the index of the node
+     */
+    void removePendingArrival(int node) {
+        this.pendingArrivals[node] -= 1;
+    }
+
+    /**
+     * Check if the node has no requests, neither waiting nor in service, and no
+     * arrivals counted by {@link #addPendingArrival(int)}. A source in this state
+     * never spawns an arrival to itself again, since only its departures do it.
+     *
+     * @param node the index of the node
+     * @return true if the node has no requests and no pending arrivals
+     */
+    boolean isIdle(int node) {
+        return this.queues[node].isEmpty() && this.pendingArrivals[node] == 0;
+    }
+
+    /**
+     * Check if the queue of the node is full.
+     *
+     * @param node the index of the node
+     * @return true if the queue is full
+     * @see ServerNodeState#isQueueFull()
+     */
+    boolean isQueueFull(int node) {
+        return this.queues[node].size() >= this.maxQueue[node];
+    }
+
+    /**
+     * Check if the node should spawn an arrival to itself.
+     *
+     * @param node the index of the node
+     * @return true if the node should spawn an arrival
+     * @see ServerNodeState#shouldSpawnArrival()
+     */
+    boolean shouldSpawnArrival(int node) {
+        var spawn = this.spawnArrivals[node];
+        return spawn != 0 && (spawn < 0 || spawn > this.numArrivals[node]);
+    }
+
+    /**
+     * Update the state of the node for an arrival at the given time.
+     *
+     * @param node the index of the node
+     * @param time the time of the arrival
+     * @see ServerNodeState#updateArrival(double)
+     */
+    void updateArrival(int node, double time) {
+        var queue = this.queues[node];
+        queue.add(time);
+
+        var size = queue.size();
+        var total = this.avgQueueLength[node] * this.numArrivals[node];
+        var arrivals = this.numArrivals[node] + 1;
+        this.numArrivals[node] = arrivals;
+        this.avgQueueLength[node] = (total + size) / arrivals;
+        this.maxQueueLength[node] = Math.max(this.maxQueueLength[node], size);
+        this.updateTimes(node, time);
+    }
+
+    /**
+     * Update the state of the node for a departure at the given time.
+     *
+     * @param node the index of the node
+     * @param time the time of the departure
+     * @see ServerNodeState#updateDeparture(double)
+     */
+    void updateDeparture(int node, double time) {
+        var arrivalTime = this.queues[node].poll();
+        this.numDepartures[node] += 1;
+        this.responseTime[node] += time - arrivalTime;
+        this.updateTimes(node, time);
+        this.busy[node] -= 1;
+    }
+
+    /**
+     * Update the state of the node for the end of an unavailability at the given
+     * time.
+     *
+     * @param node the index of the node
+     * @param time the time of the event
+     * @see ServerNodeState#updateAvailable(double)
+     */
+    void updateAvailable(int node, double time) {
+        this.updateTimes(node, time);
+        this.unavailable[node] -= 1;
+    }
+
+    /**
+     * Start a new service if the node can serve and has requests.
+     *
+     * @param node the index of the node
+     * @param rng  the random number generator
+     * @return the duration of the service if it has started, -1 otherwise
+     * @see ServerNodeState#startServiceIfPossible(RandomStream)
+     */
+    double startServiceIfPossible(int node, RandomStream rng) {
+        var busy = this.busy[node];
+        if (this.maxServers[node] > busy + this.unavailable[node] && this.queues[node].size() > busy) {
+            this.busy[node] = busy + 1;
+            return this.service[node].sample(rng);
+        }
+        return -1;
+    }
+
+    /**
+     * Check if the node has a distribution of unavailable times, otherwise it is
+     * never unavailable and there is no need to sample it.
+     *
+     * @param node the index of the node
+     * @return true if the node can become unavailable
+     */
+    boolean canBeUnavailable(int node) {
+        return !this.unavailableTimes[node].isZero();
+    }
+
+    /**
+     * Make one server of the node unavailable if its distribution says so.
+     *
+     * @param node the index of the node
+     * @param rng  the random number generator
+     * @return the duration of the unavailability if it has started, 0 otherwise
+     * @see ServerNodeState#startUnavailableIfPossible(RandomStream)
+     */
+    double startUnavailableIfPossible(int node, RandomStream rng) {
+        var delay = this.unavailableTimes[node].sample(rng);
+        if (delay > 0)
+            this.unavailable[node] += 1;
+        return delay;
+    }
+
+    /**
+     * Get a random child of the node.
+     *
+     * @param node the index of the node
+     * @param rng  the random number generator
+     * @return the index of the child or -1 if no child is selected
+     * @see ServerNodeState#getRandomChild(RandomStream)
+     */
+    int getRandomChild(int node, RandomStream rng) {
+        return this.routing[node].select(rng.random());
+    }
+
+    /**
+     * Create the statistics of the node, calculating also the derived ones.
+     *
+     * @param node the index of the node
+     * @return a new object with the statistics
+     */
+    NodeStats getStats(int node) {
+        var stats = new NodeStats();
+        this.copyStats(node, stats);
+        return stats;
+    }
+
+    /**
+     * Add the statistics of the node to the ones passed, as if the events of
+     * the node came after the ones already counted in them.
+     * The derived statistics are not calculated.
+     *
+     * @param node  the index of the node
+     * @param stats the statistics where to add
+     * @return true if the node had at least one event
+     */
+    boolean addStats(int node, NodeStats stats) {
+        var arrivals = this.numArrivals[node];
+        if (stats.numArrivals == 0.0d)
+            stats.avgQueueLength = this.avgQueueLength[node];
+        else if (arrivals > 0.0d) {
+            var total = stats.avgQueueLength * stats.numArrivals + this.avgQueueLength[node] * arrivals;
+            stats.avgQueueLength = total / (stats.numArrivals + arrivals);
+        }
+
+        stats.numArrivals += arrivals;
+        stats.numDepartures += this.numDepartures[node];
+        stats.maxQueueLength = Math.max(stats.maxQueueLength, this.maxQueueLength[node]);
+        stats.unavailableTime += this.unavailableTime[node];
+        stats.busyTime += this.busyTime[node];
+        stats.responseTime += this.responseTime[node];
+        stats.lastEventTime = Math.max(stats.lastEventTime, this.lastEventTime[node]);
+        return this.updated[node];
+    }
+
+    /**
+     * Create a snapshot of the node with the current values.
+     * The queue, the counters and the statistics are all copied, so the object
+     * returned does not share anything with these arrays: changing it does not
+     * change them, and the next events do not change it.
+     *
+     * @param node the index of the node
+     * @return the state of the node
+     */
+    ServerNodeState getState(int node) {
+        var state = new ServerNodeState(node, this.net, this.queues[node].copy());
+        state.numServerBusy = this.busy[node];
+        state.numServerUnavailable = this.unavailable[node];
+        this.copyStats(node, state.stats);
+        return state;
+    }
+
+    /**
+     * Write the state and the statistics of the nodes with the indices in the
+     * range passed.
+     *
+     * @param out  where to write
+     * @param from the first node, included
+     * @param to   the last node, excluded
+     * @throws IOException if the output fails
+     */
+    void write(DataOutput out, int from, int to) throws IOException {
+        for (var node = from; node < to; node++) {
+            out.writeInt(this.busy[node]);
+            out.writeInt(this.unavailable[node]);
+            out.writeInt(this.pendingArrivals[node]);
+            out.writeBoolean(this.updated[node]);
+            out.writeDouble(this.lastEventTime[node]);
+            out.writeDouble(this.numArrivals[node]);
+            out.writeDouble(this.numDepartures[node]);
+            out.writeDouble(this.maxQueueLength[node]);
+            out.writeDouble(this.avgQueueLength[node]);
+            out.writeDouble(this.busyTime[node]);
+            out.writeDouble(this.unavailableTime[node]);
+            out.writeDouble(this.responseTime[node]);
+            this.queues[node].write(out);
+        }
+    }
+
+    /**
+     * Replace the state and the statistics of the nodes with the indices in the
+     * range passed with the ones written by {@link #write(DataOutput, int, int)}.
+     *
+     * @param in   where to read
+     * @param from the first node, included
+     * @param to   the last node, excluded
+     * @throws IOException if the input fails
+     */
+    void read(DataInput in, int from, int to) throws IOException {
+        for (var node = from; node < to; node++) {
+            this.busy[node] = in.readInt();
+            this.unavailable[node] = in.readInt();
+            this.pendingArrivals[node] = in.readInt();
+            this.updated[node] = in.readBoolean();
+            this.lastEventTime[node] = in.readDouble();
+            this.numArrivals[node] = in.readDouble();
+            this.numDepartures[node] = in.readDouble();
+            this.maxQueueLength[node] = in.readDouble();
+            this.avgQueueLength[node] = in.readDouble();
+            this.busyTime[node] = in.readDouble();
+            this.unavailableTime[node] = in.readDouble();
+            this.responseTime[node] = in.readDouble();
+            this.queues[node].read(in);
+        }
+    }
+
+    /**
+     * Update the time of the last event of the node and the time spent busy or
+     * unavailable since the previous one.
+     *
+     * @see NodeStats#updateTimes(double, int, int, int)
+     */
+    private void updateTimes(int node, double time) {
+        var elapsed = time - this.lastEventTime[node];
+        if (this.busy[node] > 0)
+            this.busyTime[node] += elapsed;
+        else if (this.unavailable[node] == this.maxServers[node])
+            this.unavailableTime[node] += elapsed;
+
+        this.lastEventTime[node] = time;
+        this.updated[node] = true;
+    }
+
+    /**
+     * Copy the statistics of the node in the object passed.
+     * The derived ones are calculated at the time of the last event, and they are
+     * left at 0 if the node never had an event.
+     */
+    private void copyStats(int node, NodeStats stats) {
+        stats.numArrivals = this.numArrivals[node];
+        stats.numDepartures = this.numDepartures[node];
+        stats.maxQueueLength = this.maxQueueLength[node];
+        stats.avgQueueLength = this.avgQueueLength[node];
+        stats.unavailableTime = this.unavailableTime[node];
+        stats.busyTime = this.busyTime[node];
+        stats.responseTime = this.responseTime[node];
+        stats.lastEventTime = this.lastEventTime[node];
+
+        if (this.updated[node])
+            stats.updateDerived(stats.lastEventTime);
+    }
+}
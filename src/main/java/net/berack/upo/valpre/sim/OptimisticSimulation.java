@@ -0,0 +1,581 @@
+package net.berack.upo.valpre.sim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.TreeSet;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.berack.upo.valpre.rand.Philox;
+import net.berack.upo.valpre.rand.RandomStream;
+import net.berack.upo.valpre.rand.Rng;
+import net.berack.upo.valpre.sim.stats.Result;
+
+/**
+ * An engine that runs a single replication of a net on many threads, with an
+ * optimistic synchronization (Time Warp).
+ * The nodes are split in logical processes of consecutive indices, as in
+ * {@link ConservativeSimulation}, but here each process runs its events without
+ * waiting for the others. When it receives a request with a time earlier than
+ * its own (a straggler), it goes back to a checkpoint taken before that time:
+ * the state of its nodes, their random number generators and its events are
+ * restored, and the events up to the straggler are processed again without
+ * sending anything (coast forward). The requests it sent from that time on are
+ * cancelled with anti-messages, which can make the other processes go back in
+ * turn.
+ * From time to time all the processes stop and agree on the global virtual
+ * time, the earliest time of an event not processed yet: nothing can go back
+ * before it, so the checkpoints and the requests older than it are discarded.
+ * When it is infinite, all the events have been processed and the run ends.
+ * This does not need any lookahead, so it works also when the services can be
+ * very short (exponential distributions), at the cost of the work undone by the
+ * rollbacks, that can be checked with {@link #getCounters()} after a run.
+ * The results are the same of {@link ConservativeSimulation}, so the same of a
+ * {@link Simulation} created with the same generators.
+ * An object of this class keeps the counters of its last run, so it must not
+ * run on many threads at once.
+ */
+public final class OptimisticSimulation {
+    /** The bounds of the events that a process can do between two rounds */
+    private static final int MIN_BUDGET = 1 << 6;
+    private static final int MAX_BUDGET = 1 << 14;
+    /** The loops of a process without events before asking for the global time */
+    private static final int IDLE_LOOPS = 1 << 8;
+    /** The minimum number of events between two checkpoints */
+    private static final int CHECKPOINT_EVENTS = 64;
+    /** The order of the requests received, that does not depend on the threads */
+    private static final Comparator<Message> ORDER = Comparator.comparingDouble(Message::time)
+            .thenComparingInt(Message::sender).thenComparingLong(Message::id);
+
+    private final CompiledNet net;
+    private final int processes;
+    private final int[] owner;
+    private final int[] first;
+    private Counters counters = new Counters(0, 0, 0, 0, 0);
+
+    /**
+     * Create the engine for the net passed.
+     *
+     * @param net       the compiled net
+     * @param processes the maximum number of logical processes, each with a thread
+     * @throws IllegalArgumentException if the net does not end by itself or the
+     *                                  processes are less than 1
+     * @see #supports(CompiledNet)
+     */
+    public OptimisticSimulation(CompiledNet net, int processes) {
+        if (!supports(net))
+            throw new IllegalArgumentException("The net must have only sources with a limited number of arrivals");
+        if (processes < 1)
+            throw new IllegalArgumentException("At least one process is needed");
+
+        var size = net.size();
+        this.net = net;
+        this.processes = Math.max(1, Math.min(processes, size));
+        this.owner = new int[size];
+        this.first = new int[this.processes + 1];
+        this.first[this.processes] = size;
+        for (var node = size - 1; node >= 0; node--) {
+            this.owner[node] = (int) ((long) node * this.processes / size);
+            this.first[this.owner[node]] = node;
+        }
+    }
+
+    /**
+     * Check if the net passed can be run by this engine, that is if all its
+     * sources spawn a limited number of arrivals.
+     *
+     * @param net the compiled net
+     * @return true if the net ends by itself
+     * @see ConservativeSimulation#supports(CompiledNet)
+     */
+    public static boolean supports(CompiledNet net) {
+        return ConservativeSimulation.supports(net);
+    }
+
+    /**
+     * Run the net until there are no more events.
+     * The generators must be different objects, since the nodes of different
+     * processes use them at the same time, and they must be {@link Rng} or
+     * {@link Philox}, since a rollback brings them back to a previous state.
+     *
+     * @param streams the random number generators, one for each node
+     * @return the statistics of the run
+     * @throws IllegalArgumentException if there is not one generator for each node
+     *                                  or one of them can not be brought back
+     * @throws InterruptedException     If the threads are interrupted.
+     * @throws ExecutionException       If the one of the threads has been aborted.
+     */
+    public Result run(RandomStream[] streams) throws InterruptedException, ExecutionException {
+        if (streams.length == 0 || streams.length < this.net.size())
+            throw new IllegalArgumentException("One random number generator for each node is needed");
+        for (var node = 0; node < this.net.size(); node++)
+            if (!(streams[node] instanceof Rng || streams[node] instanceof Philox))
+                throw new IllegalArgumentException("Only the Rng and Philox generators can be rolled back");
+
+        var timeStartedNano = System.nanoTime();
+        var seed = streams[0].getSeed();
+        var states = new NodeStateArrays(this.net);
+        var control = new Control(this.processes);
+        var all = new Process[this.processes];
+        for (var p = 0; p < this.processes; p++)
+            all[p] = new Process(p, states, streams, control, all);
+        for (var node = 0; node < this.net.size(); node++)
+            if (states.shouldSpawnArrival(node))
+                all[this.owner[node]].arrivals.offer(node, 0.0d);
+
+        var futures = new Future[this.processes];
+        try (var executor = Executors.newFixedThreadPool(this.processes)) {
+            for (var process : all)
+                futures[process.id] = executor.submit(() -> {
+                    try {
+                        return process.loop();
+                    } catch (Throwable e) {
+                        executor.shutdownNow(); // breaks the barriers, so the others do not wait forever
+                        throw e;
+                    }
+                });
+            for (var future : futures)
+                future.get();
+        }
+
+        var time = 0.0d;
+        var processed = 0L;
+        var rolledBack = 0L;
+        var rollbacks = 0L;
+        var antiMessages = 0L;
+        for (var process : all) {
+            time = Math.max(time, process.time);
+            processed += process.processed;
+            rolledBack += process.rolledBack;
+            rollbacks += process.rollbacks;
+            antiMessages += process.antiMessages;
+        }
+        this.counters = new Counters(processed, rolledBack, rollbacks, antiMessages, control.rounds);
+
+        var elapsed = System.nanoTime() - timeStartedNano;
+        var builder = new Result.Builder();
+        for (var i = 0; i < this.net.size(); i++)
+            builder.addNode(this.net.getNode(i).name, states.getStats(i));
+        return builder.seed(seed).times(time, elapsed * 1e-6).build();
+    }
+
+    /**
+     * Get the counters of the last run, to know how much work has been undone by
+     * the rollbacks.
+     *
+     * @return the counters of the last run
+     */
+    public Counters getCounters() {
+        return this.counters;
+    }
+
+    /**
+     * The state of a generator saved in a checkpoint: the seed of a {@link Rng}
+     * or the position of a {@link Philox} in its stream.
+     */
+    private static long stateOf(RandomStream stream) {
+        return stream instanceof Philox philox ? philox.getPosition() : ((Rng) stream).getSeed();
+    }
+
+    /**
+     * Bring a generator back to the state saved by {@link #stateOf(RandomStream)}.
+     */
+    private static void setState(RandomStream stream, long state) {
+        if (stream instanceof Philox philox)
+            philox.setPosition(state);
+        else
+            ((Rng) stream).setSeed(state);
+    }
+
+    /**
+     * The counters of a run of the engine, summed over all the processes.
+     *
+     * @param processed    the events processed, also the ones undone later
+     * @param rolledBack   the events undone by the rollbacks
+     * @param rollbacks    the times a process has gone back to a checkpoint
+     * @param antiMessages the requests cancelled after they have been sent
+     * @param rounds       the times the global virtual time has been computed
+     */
+    public record Counters(long processed, long rolledBack, long rollbacks, long antiMessages, long rounds) {
+        /**
+         * Get the fraction of the events processed that have been undone.
+         * When it is high the processes spend most of their time doing work that
+         * is thrown away, and the sequential {@link Simulation} is better.
+         *
+         * @return the rate of the rollbacks, between 0 and 1
+         */
+        public double rollbackRate() {
+            return this.processed == 0 ? 0.0d : (double) this.rolledBack / this.processed;
+        }
+
+        /**
+         * Get the number of events that have not been undone, that is the length
+         * of the run as if it was done by one process only.
+         *
+         * @return the events committed
+         */
+        public long committed() {
+            return this.processed - this.rolledBack;
+        }
+    }
+
+    /**
+     * A request sent from a process to another, or its cancellation.
+     */
+    private record Message(double time, int node, int sender, long id, boolean anti) {
+    }
+
+    /**
+     * A saved state of a process, taken before an event.
+     * All the events processed before it are not later than its time.
+     */
+    private record Checkpoint(double time, double last, long events, long consumed, byte[] state) {
+    }
+
+    /**
+     * The data shared by the processes to compute the global virtual time.
+     * The barrier action runs when all of them have set their minimum, and its
+     * results are visible to all the processes after the barrier.
+     */
+    private static final class Control {
+        final double[] minimums;
+        final CyclicBarrier stop;
+        final CyclicBarrier agree;
+        volatile boolean requested;
+        double gvt;
+        boolean finished;
+        long rounds;
+
+        Control(int processes) {
+            this.minimums = new double[processes];
+            this.stop = new CyclicBarrier(processes);
+            this.agree = new CyclicBarrier(processes, () -> {
+                var gvt = Double.POSITIVE_INFINITY;
+                for (var minimum : this.minimums)
+                    gvt = Math.min(gvt, minimum);
+                this.gvt = gvt;
+                this.finished = gvt == Double.POSITIVE_INFINITY;
+                this.rounds += 1;
+                this.requested = false;
+            });
+        }
+    }
+
+    /**
+     * A logical process: the nodes it owns, their events and their history.
+     */
+    private final class Process {
+        final int id;
+        final ArrivalSlots arrivals;
+        final ConcurrentLinkedQueue<Message> inbox = new ConcurrentLinkedQueue<>();
+        double time = 0.0d;
+        long processed = 0;
+        long rolledBack = 0;
+        long rollbacks = 0;
+        long antiMessages = 0;
+
+        private final NodeStateArrays states;
+        private final RandomStream[] streams;
+        private final Control control;
+        private final Process[] all;
+        private final int from;
+        private final int to;
+        private final int interval;
+        private final EventHeap fel = new EventHeap();
+        private final TreeSet<Message> inputs = new TreeSet<>(ORDER);
+        private final ArrayDeque<Message> consumed = new ArrayDeque<>();
+        private final ArrayDeque<Message> sent = new ArrayDeque<>();
+        private final ArrayList<Message> cancelled = new ArrayList<>();
+        private final ArrayDeque<Checkpoint> checkpoints = new ArrayDeque<>();
+        private long consumedCount = 0;
+        private long events = 0;
+        private boolean coasting = false;
+        private long nextId = 0;
+        private int sinceCheckpoint = 0;
+
+        Process(int id, NodeStateArrays states, RandomStream[] streams, Control control, Process[] all) {
+            var self = OptimisticSimulation.this;
+            this.id = id;
+            this.arrivals = new ArrivalSlots(self.net);
+            this.states = states;
+            this.streams = streams;
+            this.control = control;
+            this.all = all;
+            this.from = self.first[id];
+            this.to = self.first[id + 1];
+            this.interval = Math.max(CHECKPOINT_EVENTS, this.to - this.from);
+        }
+
+        /**
+         * Process the events until the global virtual time says that all of them
+         * are done.
+         */
+        Void loop() throws InterruptedException, BrokenBarrierException {
+            this.checkpoint(Double.NEGATIVE_INFINITY);
+            var idle = 0;
+            var budget = MAX_BUDGET;
+            var processed = 0L;
+            var rolledBack = 0L;
+            while (true) {
+                if (this.control.requested) {
+                    if (this.round())
+                        return null;
+
+                    // less optimism if most of the work of the last round was undone
+                    var undone = this.rolledBack - rolledBack;
+                    var done = this.processed - processed;
+                    budget = 2 * undone > done ? Math.max(MIN_BUDGET, budget >> 1) : Math.min(MAX_BUDGET, budget << 1);
+                    processed = this.processed;
+                    rolledBack = this.rolledBack;
+                    idle = 0;
+                    continue;
+                }
+
+                // a process that has no events or has used its budget waits for the others
+                this.receive();
+                var next = this.nextTime();
+                if (next == Double.POSITIVE_INFINITY || this.processed - processed >= budget) {
+                    if (++idle >= IDLE_LOOPS)
+                        this.control.requested = true;
+                    Thread.yield();
+                    continue;
+                }
+
+                idle = 0;
+                this.process(next);
+            }
+        }
+
+        /**
+         * Compute the global virtual time with the other processes.
+         * After the first barrier nobody sends new requests, so all the ones sent
+         * are in the inboxes. The anti-messages sent while receiving them are not
+         * earlier than the minimum of their sender, so they do not change it.
+         *
+         * @return true if all the events have been processed
+         */
+        private boolean round() throws InterruptedException, BrokenBarrierException {
+            this.control.stop.await();
+            this.receive();
+            this.control.minimums[this.id] = this.nextTime();
+            this.control.agree.await();
+            if (this.control.finished)
+                return true;
+
+            this.collect(this.control.gvt);
+            return false;
+        }
+
+        /**
+         * Handle the requests and the cancellations received, going back only once
+         * before the earliest of them that comes too late.
+         */
+        private void receive() {
+            var earliest = Double.POSITIVE_INFINITY;
+            for (var message = this.inbox.poll(); message != null; message = this.inbox.poll()) {
+                if (!message.anti()) {
+                    if (message.time() < this.time)
+                        earliest = Math.min(earliest, message.time());
+                    this.inputs.add(message);
+                } else if (!this.inputs.remove(message)) {
+                    // already processed: go back before it, then it can be removed
+                    earliest = Math.min(earliest, message.time());
+                    this.cancelled.add(message);
+                }
+            }
+
+            if (earliest != Double.POSITIVE_INFINITY)
+                this.rollback(earliest);
+            for (var message : this.cancelled)
+                this.inputs.remove(message);
+            this.cancelled.clear();
+        }
+
+        /**
+         * The time of the next event of this process, or infinity if there is none.
+         */
+        private double nextTime() {
+            var next = this.arrivals.isEmpty() ? Double.POSITIVE_INFINITY : this.arrivals.peekTime();
+            if (!this.fel.isEmpty())
+                next = Math.min(next, this.fel.peekTime());
+            if (!this.inputs.isEmpty())
+                next = Math.min(next, this.inputs.first().time());
+            return next;
+        }
+
+        /**
+         * Process the next event, that has the time passed. The events come in the
+         * same order of {@link Simulation}: the arrivals of the sources, then the
+         * future event list, then the requests of the other processes.
+         */
+        private void process(double next) {
+            if (this.sinceCheckpoint >= this.interval)
+                this.checkpoint(next);
+            this.sinceCheckpoint += 1;
+            this.events += 1;
+            this.processed += 1;
+            this.time = next;
+
+            if (!this.arrivals.isEmpty() && this.arrivals.peekTime() == next) {
+                var index = this.arrivals.peekNode();
+                this.arrivals.remove();
+                this.arrival(index);
+            } else if (!this.fel.isEmpty() && this.fel.peekTime() == next) {
+                var type = this.fel.peekType();
+                var index = this.fel.peekNode();
+                this.fel.remove();
+                switch (type) {
+                    case AVAILABLE -> {
+                        this.states.updateAvailable(index, next);
+                        this.spawnDepartureIfPossible(index);
+                    }
+                    case ARRIVAL -> this.arrival(index);
+                    case DEPARTURE -> this.departure(index);
+                }
+            } else {
+                var message = this.inputs.pollFirst();
+                this.consumed.add(message);
+                this.consumedCount += 1;
+                if (!this.states.isQueueFull(message.node()))
+                    this.arrival(message.node());
+            }
+        }
+
+        private void arrival(int index) {
+            this.states.updateArrival(index, this.time);
+            this.spawnDepartureIfPossible(index);
+        }
+
+        private void departure(int index) {
+            var states = this.states;
+            var rng = this.streams[index];
+            states.updateDeparture(index, this.time);
+
+            if (states.canBeUnavailable(index)) {
+                var unavailable = states.startUnavailableIfPossible(index, rng);
+                if (unavailable > 0)
+                    this.fel.add(Event.Type.AVAILABLE, index, this.time + unavailable);
+            }
+
+            this.spawnDepartureIfPossible(index);
+            if (states.shouldSpawnArrival(index) && !this.arrivals.offer(index, this.time))
+                this.fel.add(Event.Type.ARRIVAL, index, this.time);
+
+            // the state of a remote child is not known, so it checks the drop itself
+            var child = states.getRandomChild(index, rng);
+            if (child < 0)
+                return;
+            var process = OptimisticSimulation.this.owner[child];
+            if (process != this.id) {
+                if (this.coasting) // it has been sent already
+                    return;
+                var message = new Message(this.time, child, this.id, this.nextId++, false);
+                this.sent.add(message);
+                this.all[process].inbox.add(message);
+            } else if (!states.isQueueFull(child))
+                this.fel.add(Event.Type.ARRIVAL, child, this.time);
+        }
+
+        private void spawnDepartureIfPossible(int index) {
+            var delay = this.states.startServiceIfPossible(index, this.streams[index]);
+            if (delay >= 0)
+                this.fel.add(Event.Type.DEPARTURE, index, this.time + delay);
+        }
+
+        /**
+         * Save the state of the process before the event with the time passed.
+         */
+        private void checkpoint(double next) {
+            var bytes = new ByteArrayOutputStream();
+            try (var out = new DataOutputStream(bytes)) {
+                this.states.write(out, this.from, this.to);
+                for (var node = this.from; node < this.to; node++)
+                    out.writeLong(stateOf(this.streams[node]));
+                this.fel.write(out);
+                this.arrivals.write(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            var checkpoint = new Checkpoint(next, this.time, this.events, this.consumedCount, bytes.toByteArray());
+            this.checkpoints.add(checkpoint);
+            this.sinceCheckpoint = 0;
+        }
+
+        /**
+         * Go back to the state before the time passed: restore the last checkpoint
+         * earlier than it and process again the events up to it. The requests sent
+         * before the time are still valid, since they do not change, while the
+         * others are cancelled. The requests are sent in order of time, so they
+         * are the last ones.
+         */
+        private void rollback(double time) {
+            while (this.checkpoints.peekLast().time() >= time)
+                this.checkpoints.pollLast();
+
+            var checkpoint = this.checkpoints.peekLast();
+            try (var in = new DataInputStream(new ByteArrayInputStream(checkpoint.state()))) {
+                this.states.read(in, this.from, this.to);
+                for (var node = this.from; node < this.to; node++)
+                    setState(this.streams[node], in.readLong());
+                this.fel.read(in);
+                this.arrivals.read(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            while (this.consumedCount > checkpoint.consumed()) {
+                this.inputs.add(this.consumed.pollLast());
+                this.consumedCount -= 1;
+            }
+            while (!this.sent.isEmpty() && this.sent.peekLast().time() >= time) {
+                var message = this.sent.pollLast();
+                var anti = new Message(message.time(), message.node(), message.sender(), message.id(), true);
+                this.all[OptimisticSimulation.this.owner[message.node()]].inbox.add(anti);
+                this.antiMessages += 1;
+            }
+
+            this.rolledBack += this.events - checkpoint.events();
+            this.rollbacks += 1;
+            this.events = checkpoint.events();
+            this.time = checkpoint.last();
+            this.sinceCheckpoint = 0;
+
+            this.coasting = true;
+            for (var next = this.nextTime(); next < time; next = this.nextTime())
+                this.process(next);
+            this.coasting = false;
+        }
+
+        /**
+         * Discard the history that is older than the global virtual time, keeping
+         * the last checkpoint before it.
+         */
+        private void collect(double gvt) {
+            while (this.checkpoints.size() > 1) {
+                var iterator = this.checkpoints.iterator();
+                iterator.next();
+                if (iterator.next().time() >= gvt)
+                    break;
+                this.checkpoints.pollFirst();
+            }
+
+            var oldest = this.checkpoints.peekFirst();
+            while (this.consumedCount - this.consumed.size() < oldest.consumed())
+                this.consumed.pollFirst();
+            while (!this.sent.isEmpty() && this.sent.peekFirst().time() < gvt)
+                this.sent.pollFirst();
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package net.berack.upo.valpre.sim;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.berack.upo.valpre.rand.RandomStream;
+import net.berack.upo.valpre.sim.stats.NodeStats;
+import net.berack.upo.valpre.sim.stats.Result;
+
+/**
+ * An engine that runs a single replication of a feed-forward net on many
+ * threads, with the nodes working as the stages of a pipeline.
+ * The nets supported are the same of {@link LindleySimulation}: every node
+ * serves its requests in the order they arrive, so it only needs the departures
+ * of its parents to compute its own. The nodes are split in groups of
+ * consecutive nodes in topological order, and each group runs on its own
+ * thread. Each connection between two nodes is a bounded lock-free queue with
+ * one producer and one consumer, where the departures are sent in batches.
+ * Every batch also carries a promise: the parent will not send any request that
+ * arrives before that time. A node with more parents uses the promises to know
+ * when a request is the next one in time order, and a node that has nothing to
+ * do sends its current promise anyway, so that its children are not stuck.
+ * A node always moves what is in its input queues to its own buffers, so a
+ * parent is never blocked for long by a full queue, and no node ever waits while
+ * holding something that another one needs.
+ * Each node uses its own random number generator, among the ones passed to
+ * {@link #run(RandomStream[])}, so the results do not depend on the threads and are the
+ * same for any number of them, but they are not the same of the other engines
+ * with the same generators.
+ */
+public final class PipelineSimulation {
+    private static final int BATCH = 256;
+    private static final int CAPACITY = 64;
+    private static final int RANDOM = -2;
+
+    private final CompiledNet net;
+    private final int[] order;
+    private final int threads;
+
+    /**
+     * Create the engine for the net passed.
+     *
+     * @param net     the compiled net
+     * @param threads the maximum number of threads to use
+     * @throws IllegalArgumentException if the net is not a feed-forward net or
+     *                                  the threads are less than 1
+     * @see LindleySimulation#supports(CompiledNet)
+     */
+    public PipelineSimulation(CompiledNet net, int threads) {
+        if (!LindleySimulation.supports(net))
+            throw new IllegalArgumentException("The net is not a feed-forward net of single servers");
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one thread is needed");
+
+        this.net = net;
+        this.order = LindleySimulation.orderOf(net);
+        this.threads = Math.min(threads, net.size());
+    }
+
+    /**
+     * Run the net until all the requests have left it.
+     *
+     * @param streams the random number generators, one for each node
+     * @return the statistics of the run
+     * @throws IllegalArgumentException if there is not one generator for each node
+     * @throws InterruptedException     If the threads are interrupted.
+     * @throws ExecutionException       If the one of the threads has been aborted.
+     */
+    public Result run(RandomStream[] streams) throws InterruptedException, ExecutionException {
+        if (streams.length == 0 || streams.length < this.net.size())
+            throw new IllegalArgumentException("One random number generator for each node is needed");
+
+        var timeStartedNano = System.nanoTime();
+        var size = this.net.size();
+        var stages = new Stage[size];
+        for (var node = 0; node < size; node++)
+            stages[node] = new Stage(this.net, node, streams[node]);
+        for (var node = 0; node < size; node++)
+            for (var i = this.net.getChildStart(node); i < this.net.getChildEnd(node); i++)
+                stages[node].connect(stages[this.net.getChildIndex(i)]);
+
+        var futures = new Future[this.threads];
+        try (var executor = Executors.newFixedThreadPool(this.threads)) {
+            for (var t = 0; t < this.threads; t++) {
+                var group = new Stage[(t + 1) * size / this.threads - t * size / this.threads];
+                for (var i = 0; i < group.length; i++)
+                    group[i] = stages[this.order[t * size / this.threads + i]];
+                futures[t] = executor.submit(() -> runGroup(group));
+            }
+            for (var future : futures)
+                future.get();
+        }
+
+        var simulationTime = 0.0d;
+        var builder = new Result.Builder();
+        for (var stage : stages) {
+            var stat = stage.stat;
+            if (stat.numArrivals > 0)
+                stat.updateDerived(stat.lastEventTime);
+            simulationTime = Math.max(simulationTime, stat.lastEventTime);
+            builder.addNode(this.net.getNode(stage.node).name, stat);
+        }
+
+        var elapsed = System.nanoTime() - timeStartedNano;
+        return builder.seed(streams[0].getSeed()).times(simulationTime, elapsed * 1e-6).build();
+    }
+
+    /**
+     * The work of one thread: step all the nodes of the group until they are done,
+     * giving up the processor when none of them can move.
+     */
+    private static Void runGroup(Stage[] group) {
+        var active = group.length;
+        while (active > 0) {
+            var progress = false;
+            active = 0;
+            for (var stage : group) {
+                if (stage.done)
+                    continue;
+                progress |= stage.step();
+                if (!stage.done)
+                    active += 1;
+            }
+            if (!progress)
+                Thread.yield();
+        }
+        return null;
+    }
+
+    /**
+     * A group of departures sent from a node to one of its children, with the
+     * time before which the node will not send anything else.
+     */
+    private record Batch(double[] times, int count, double promise, boolean last) {
+    }
+
+    /**
+     * A bounded queue of batches with one producer and one consumer, that does
+     * not use any lock.
+     */
+    private static final class Channel {
+        private final Batch[] items = new Batch[CAPACITY];
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        boolean offer(Batch batch) {
+            var tail = this.tail.getPlain();
+            if (tail - this.head.getAcquire() == CAPACITY)
+                return false;
+            this.items[(int) (tail % CAPACITY)] = batch;
+            this.tail.setRelease(tail + 1);
+            return true;
+        }
+
+        Batch poll() {
+            var head = this.head.getPlain();
+            if (head == this.tail.getAcquire())
+                return null;
+            var index = (int) (head % CAPACITY);
+            var batch = this.items[index];
+            this.items[index] = null;
+            this.head.setRelease(head + 1);
+            return batch;
+        }
+    }
+
+    /**
+     * A node of the net seen as a stage of the pipeline.
+     */
+    private static final class Stage {
+        final int node;
+        final NodeStats stat = new NodeStats();
+        boolean done = false;
+
+        private final Sampler sampler;
+        private final RoutingTable routing;
+        private final RandomStream rng;
+        private final int maxQueue;
+        private final int spawn;
+        private final int[] slotOf;
+        private final int next;
+
+        private Channel[] inputs = new Channel[0];
+        private DoubleQueue[] pending = new DoubleQueue[0];
+        private double[] horizon = new double[0];
+
+        private Channel[] outputs = new Channel[0];
+        private double[][] buffers = new double[0][];
+        private int[] counts = new int[0];
+        private boolean[] closed = new boolean[0];
+        private double[] sent = new double[0];
+
+        private final DoubleQueue inSystem = new DoubleQueue();
+        private double free = 0.0d;
+        private int generated = 0;
+
+        Stage(CompiledNet net, int node, RandomStream rng) {
+            this.node = node;
+            this.sampler = net.getServiceSampler(node);
+            this.routing = net.getRoutingTable(node);
+            this.rng = rng;
+            this.maxQueue = net.getMaxQueue(node);
+            this.spawn = net.getSpawnArrivals(node);
+            this.slotOf = new int[net.size()];
+            Arrays.fill(this.slotOf, -1);
+
+            var start = net.getChildStart(node);
+            var children = net.getChildEnd(node) - start;
+            if (children == 0)
+                this.next = -1;
+            else if (children == 1 && net.getChildWeight(start) >= 1.0d)
+                this.next = net.getChildIndex(start);
+            else
+                this.next = RANDOM;
+        }
+
+        /**
+         * Create the channel from this node to the child, if there is not one.
+         */
+        void connect(Stage child) {
+            if (this.slotOf[child.node] >= 0)
+                return;
+
+            var channel = new Channel();
+            var outs = this.outputs.length;
+            this.slotOf[child.node] = outs;
+            this.outputs = Arrays.copyOf(this.outputs, outs + 1);
+            this.buffers = Arrays.copyOf(this.buffers, outs + 1);
+            this.counts = Arrays.copyOf(this.counts, outs + 1);
+            this.closed = Arrays.copyOf(this.closed, outs + 1);
+            this.sent = Arrays.copyOf(this.sent, outs + 1);
+            this.outputs[outs] = channel;
+            this.sent[outs] = Double.NEGATIVE_INFINITY;
+            this.buffers[outs] = new double[BATCH];
+
+            var ins = child.inputs.length;
+            child.inputs = Arrays.copyOf(child.inputs, ins + 1);
+            child.pending = Arrays.copyOf(child.pending, ins + 1);
+            child.horizon = Arrays.copyOf(child.horizon, ins + 1);
+            child.inputs[ins] = channel;
+            child.pending[ins] = new DoubleQueue();
+            child.horizon[ins] = Double.NEGATIVE_INFINITY;
+        }
+
+        /**
+         * Move the node forward as much as possible without waiting.
+         *
+         * @return true if something changed
+         */
+        boolean step() {
+            var progress = this.drain();
+            var served = 0;
+            var finished = false;
+
+            while (served < BATCH && this.canSend()) {
+                if (this.spawn > 0) {
+                    finished = this.generated == this.spawn;
+                    if (finished)
+                        break;
+                    this.generated += 1;
+                    this.serve(this.free, 1);
+                    served += 1;
+                    continue;
+                }
+
+                // the first request in time, if no other parent can send an earlier one
+                var edge = -1;
+                var time = Double.POSITIVE_INFINITY;
+                var bound = Double.POSITIVE_INFINITY;
+                for (var e = 0; e < this.pending.length; e++) {
+                    if (this.pending[e].isEmpty())
+                        bound = Math.min(bound, this.horizon[e]);
+                    else if (this.pending[e].peek() < time) {
+                        time = this.pending[e].peek();
+                        edge = e;
+                    }
+                }
+                finished = edge < 0 && bound == Double.POSITIVE_INFINITY;
+                if (edge < 0 || time >= bound)
+                    break;
+
+                this.pending[edge].poll();
+                this.arrive(time);
+                served += 1;
+            }
+
+            var promise = Math.max(this.free, this.inputBound());
+            progress |= served > 0;
+            progress |= this.flush(promise, finished, served < BATCH);
+            if (finished && this.allClosed()) {
+                this.stat.lastEventTime = this.free;
+                this.done = true;
+                progress = true;
+            }
+            return progress;
+        }
+
+        /**
+         * The time before which no request can arrive anymore at this node.
+         */
+        private double inputBound() {
+            if (this.spawn > 0)
+                return this.free;
+
+            var bound = Double.POSITIVE_INFINITY;
+            for (var e = 0; e < this.pending.length; e++)
+                bound = Math.min(bound, this.pending[e].isEmpty() ? this.horizon[e] : this.pending[e].peek());
+            return bound;
+        }
+
+        /**
+         * Move all the batches received to the buffers of the parents.
+         */
+        private boolean drain() {
+            var progress = false;
+            for (var e = 0; e < this.inputs.length; e++) {
+                if (this.horizon[e] == Double.POSITIVE_INFINITY)
+                    continue;
+                for (var batch = this.inputs[e].poll(); batch != null; batch = this.inputs[e].poll()) {
+                    for (var i = 0; i < batch.count(); i++)
+                        this.pending[e].add(batch.times()[i]);
+                    var promise = batch.last() ? Double.POSITIVE_INFINITY : batch.promise();
+                    this.horizon[e] = Math.max(this.horizon[e], promise);
+                    progress = true;
+                }
+            }
+            return progress;
+        }
+
+        /**
+         * A request arrives at the node: it is dropped if the queue is full,
+         * otherwise it is served.
+         */
+        private void arrive(double time) {
+            while (!this.inSystem.isEmpty() && this.inSystem.peek() <= time)
+                this.inSystem.poll();
+            if (this.inSystem.size() >= this.maxQueue)
+                return;
+
+            this.serve(time, this.inSystem.size() + 1);
+        }
+
+        /**
+         * Serve the request arrived at the time passed and send it to a child.
+         */
+        private void serve(double time, int queueSize) {
+            this.stat.updateArrival(time, queueSize);
+            var service = this.sampler.sample(this.rng);
+            var departure = Math.max(time, this.free) + service;
+            this.stat.busyTime += service;
+            this.stat.updateDeparture(departure, time);
+            if (this.spawn == 0)
+                this.inSystem.add(departure);
+            this.free = departure;
+
+            var child = this.next == RANDOM ? this.routing.select(this.rng.random()) : this.next;
+            if (child >= 0) {
+                var slot = this.slotOf[child];
+                this.buffers[slot][this.counts[slot]++] = departure;
+            }
+        }
+
+        /**
+         * Check that all the buffers of the children have room for one more
+         * request, sending the full ones if possible.
+         */
+        private boolean canSend() {
+            for (var e = 0; e < this.outputs.length; e++)
+                if (this.counts[e] == BATCH && !this.send(e, this.free, false))
+                    return false;
+            return true;
+        }
+
+        /**
+         * Send the buffers to the children. The full ones are always sent, the
+         * others only if the node is waiting for something or it is finished, and
+         * only if there is something new to say.
+         */
+        private boolean flush(double promise, boolean finished, boolean waiting) {
+            var progress = false;
+            for (var e = 0; e < this.outputs.length; e++) {
+                if (this.closed[e])
+                    continue;
+                var full = this.counts[e] == BATCH;
+                var update = waiting && (this.counts[e] > 0 || promise > this.sent[e]);
+                if (full || update || finished)
+                    progress |= this.send(e, promise, finished);
+            }
+            return progress;
+        }
+
+        /**
+         * Send the buffer of the child passed, if its queue has room.
+         */
+        private boolean send(int e, double promise, boolean last) {
+            var count = this.counts[e];
+            var times = Arrays.copyOf(this.buffers[e], count);
+            if (!this.outputs[e].offer(new Batch(times, count, promise, last)))
+                return false;
+
+            this.counts[e] = 0;
+            this.closed[e] = last;
+            this.sent[e] = Math.max(this.sent[e], promise);
+            return true;
+        }
+
+        private boolean allClosed() {
+            for (var closed : this.closed)
+                if (!closed)
+                    return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package net.berack.upo.valpre.sim;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.berack.upo.valpre.sim.Net.Connection;
+
+/**
+ * The outgoing connections of a node compiled for choosing the next node with
+ * a single uniform random number.
+ * The probability of each child is the one that the weights had when they were
+ * subtracted in order from the random number: a child gets its weight until the
+ * sum of the weights reaches 1, after that it gets only what is left. If the
+ * weights sum to less than 1, the rest is the probability that the request
+ * leaves the net (-1).
+ * Nodes with few children keep the weights and subtract them in order from the
+ * random number, as the nodes always did, so that they make exactly the
+ * same choices even at the edges, while the others use the alias method of
+ * Walker, as built by Vose, that chooses the child in constant time.
+ */
+public final class RoutingTable {
+    /** The number of children up to which the weights are subtracted in order */
+    public static final int LINEAR_LIMIT = 8;
+
+    private final int[] outcomes;
+    private final double[] weights;
+    private final double[] probability;
+    private final int[] alias;
+
+    /**
+     * Compile the connections passed in a new table.
+     *
+     * @param connections the outgoing connections of a node
+     */
+    public RoutingTable(List<Connection> connections) {
+        var size = connections.size();
+        if (size <= LINEAR_LIMIT) {
+            this.outcomes = new int[size];
+            this.weights = new double[size];
+            this.probability = null;
+            this.alias = null;
+
+            for (var i = 0; i < size; i++) {
+                var conn = connections.get(i);
+                this.outcomes[i] = conn.index;
+                this.weights[i] = conn.weight;
+            }
+            return;
+        }
+
+        // the actual probability of each child, with the exit as the last one
+        var weights = new double[size + 1];
+        var outcomes = new int[size + 1];
+        var sum = 0.0d;
+        for (var i = 0; i < size; i++) {
+            var conn = connections.get(i);
+            var next = Math.min(1.0d, sum + conn.weight);
+            weights[i] = next - sum;
+            outcomes[i] = conn.index;
+            sum = next;
+        }
+        weights[size] = 1.0d - sum;
+        outcomes[size] = -1;
+
+        var count = weights[size] > 0 ? size + 1 : size;
+        this.outcomes = Arrays.copyOf(outcomes, count);
+        this.weights = null;
+        this.probability = new double[count];
+        this.alias = new int[count];
+        this.buildAlias(weights, count);
+    }
+
+    /**
+     * Get the number of children of the node.
+     *
+     * @return the number of children
+     */
+    public int size() {
+        var size = this.outcomes.length;
+        return size > 0 && this.outcomes[size - 1] < 0 ? size - 1 : size;
+    }
+
+    /**
+     * Choose the next node from the uniform random number passed.
+     *
+     * @param random a uniform random number in [0, 1)
+     * @return the index of the child or -1 if no child is selected
+     */
+    public int select(double random) {
+        if (this.weights != null) {
+            for (var i = 0; i < this.weights.length; i++) {
+                random -= this.weights[i];
+                if (random <= 0)
+                    return this.outcomes[i];
+            }
+            return -1;
+        }
+
+        var count = this.outcomes.length;
+        var scaled = random * count;
+        var column = Math.min((int) scaled, count - 1);
+        var chosen = scaled - column < this.probability[column] ? column : this.alias[column];
+        return this.outcomes[chosen];
+    }
+
+    /**
+     * Build the probability and alias of each column from the weights, that sum
+     * to 1. The columns with less than the average are filled with the rest of the
+     * columns with more than the average.
+     */
+    private void buildAlias(double[] weights, int count) {
+        var small = new int[count];
+        var large = new int[count];
+        var numSmall = 0;
+        var numLarge = 0;
+
+        var scaled = new double[count];
+        for (var i = 0; i < count; i++) {
+            scaled[i] = weights[i] * count;
+            if (scaled[i] < 1.0d)
+                small[numSmall++] = i;
+            else
+                large[numLarge++] = i;
+        }
+
+        while (numSmall > 0 && numLarge > 0) {
+            var less = small[--numSmall];
+            var more = large[--numLarge];
+            this.probability[less] = scaled[less];
+            this.alias[less] = more;
+
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0d;
+            if (scaled[more] < 1.0d)
+                small[numSmall++] = more;
+            else
+                large[numLarge++] = more;
+        }
+
+        // what is left is 1 except for rounding errors
+        while (numLarge > 0) {
+            var i = large[--numLarge];
+            this.probability[i] = 1.0d;
+            this.alias[i] = i;
+        }
+        while (numSmall > 0) {
+            var i = small[--numSmall];
+            this.probability[i] = 1.0d;
+            this.alias[i] = i;
+        }
+    }
+}
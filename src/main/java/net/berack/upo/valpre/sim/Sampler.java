@@ -0,0 +1,151 @@
+package net.berack.upo.valpre.sim;
+
+import net.berack.upo.valpre.rand.Distribution;
+import net.berack.upo.valpre.rand.RandomStream;
+
+/**
+ * A distribution of a node compiled for the event loop.
+ * The {@link Distribution.Standard} distributions are recognized when the net
+ * is compiled and their formula is evaluated directly here, or called on their
+ * own class, so that the loop does not have to call
+ * {@link Distribution#sample(RandomStream)} through the interface, with many
+ * different implementations behind it. The other ones, as the lambdas and the
+ * subclasses of the standard ones, are still called as they are.
+ * A sample is always the same of {@link Distribution#getPositiveSample}, drawing
+ * the same random numbers in the same order.
+ * The kind is a switch and not a {@link java.lang.invoke.MethodHandle} bound to
+ * the parameters: the handles of the nodes would be read from an array, so the
+ * JIT could not treat them as constants nor inline them, and they were not
+ * faster than this switch.
+ */
+final class Sampler {
+    /** The sampler of a missing distribution, that is always 0 */
+    static final Sampler ZERO = new Sampler(Kind.ZERO, null, 0, 0, 0, null);
+
+    private enum Kind {
+        ZERO, GENERIC, EXPONENTIAL, UNIFORM, ERLANG, UNAVAILABLE, NORMAL, NORMAL_BOX_MULLER, HYPER_EXPONENTIAL,
+        EXPONENTIAL_ZIGGURAT, NORMAL_ZIGGURAT
+    }
+
+    private final Kind kind;
+    private final Distribution distribution;
+    private final double first;
+    private final double second;
+    private final int count;
+    private final Sampler inner;
+
+    private Sampler(Kind kind, Distribution distribution, double first, double second, int count, Sampler inner) {
+        this.kind = kind;
+        this.distribution = distribution;
+        this.first = first;
+        this.second = second;
+        this.count = count;
+        this.inner = inner;
+    }
+
+    /**
+     * Compile the distribution passed.
+     * The switch on the standard distributions has no default, so a new one
+     * cannot be added without a way to compile it.
+     *
+     * @param distribution the distribution, can be null
+     * @return the sampler of the distribution
+     */
+    static Sampler of(Distribution distribution) {
+        if (distribution == null)
+            return ZERO;
+        if (!(distribution instanceof Distribution.Standard standard)
+                || distribution.getClass().getDeclaringClass() != Distribution.class)
+            return new Sampler(Kind.GENERIC, distribution, 0, 0, 0, null);
+
+        return switch (standard) {
+            case Distribution.Exponential exp ->
+                new Sampler(Kind.EXPONENTIAL, distribution, exp.lambda, 0, 0, null);
+            case Distribution.Uniform uniform ->
+                new Sampler(Kind.UNIFORM, distribution, uniform.min, uniform.max, 0, null);
+            case Distribution.Erlang erlang ->
+                new Sampler(Kind.ERLANG, distribution, erlang.lambda, 0, erlang.k, null);
+            case Distribution.Normal normal ->
+                new Sampler(Kind.NORMAL, distribution, normal.mean, normal.sigma, 0, null);
+            case Distribution.NormalBoxMuller normal ->
+                new Sampler(Kind.NORMAL_BOX_MULLER, distribution, normal.mean, normal.sigma, 0, null);
+            case Distribution.HyperExponential _ ->
+                new Sampler(Kind.HYPER_EXPONENTIAL, distribution, 0, 0, 0, null);
+            case Distribution.ExponentialZiggurat _ ->
+                new Sampler(Kind.EXPONENTIAL_ZIGGURAT, distribution, 0, 0, 0, null);
+            case Distribution.NormalZiggurat _ ->
+                new Sampler(Kind.NORMAL_ZIGGURAT, distribution, 0, 0, 0, null);
+            case Distribution.UnavailableTime unavailable -> {
+                var inner = of(unavailable.distribution);
+                yield new Sampler(Kind.UNAVAILABLE, distribution, unavailable.probability, 0, 0, inner);
+            }
+        };
+    }
+
+    /**
+     * Check if the sampler always returns 0 without using the generator.
+     *
+     * @return true if the distribution is missing
+     */
+    boolean isZero() {
+        return this.kind == Kind.ZERO;
+    }
+
+    /**
+     * Get the lowest sample that the distribution can give.
+     * It is known only for the distributions that have a lower bound greater
+     * than 0, for all the others it is 0.
+     *
+     * @return the lowest possible sample
+     */
+    double minimum() {
+        return switch (this.kind) {
+            case UNIFORM -> Math.max(0.0d, Math.min(this.first, this.second));
+            default -> 0.0d;
+        };
+    }
+
+    /**
+     * Get a positive or 0 sample of the distribution.
+     *
+     * @param rng the random number generator to use
+     * @return the sample
+     * @see Distribution#getPositiveSample(Distribution, RandomStream)
+     */
+    double sample(RandomStream rng) {
+        if (this.kind == Kind.ZERO)
+            return 0.0d;
+        if (this.kind == Kind.UNAVAILABLE) // its samples are never negative
+            return rng.random() < this.first ? this.inner.sample(rng) : 0.0d;
+
+        double sample;
+        do {
+            sample = switch (this.kind) {
+                case EXPONENTIAL -> -Math.log(rng.random()) / this.first;
+                case UNIFORM -> this.first + rng.random() * (this.second - this.first);
+                case ERLANG -> {
+                    var product = 1.0;
+                    for (int i = 0; i < this.count; i++)
+                        product *= rng.random();
+                    yield -Math.log(product) / this.first;
+                }
+                case NORMAL -> {
+                    var random = rng.random();
+                    var radius = Math.sqrt(-2 * Math.log(random));
+                    yield this.first + this.second * radius * Math.cos(2 * Math.PI * random);
+                }
+                case NORMAL_BOX_MULLER -> {
+                    var random1 = rng.random();
+                    var random2 = rng.random();
+                    var radius = Math.sqrt(-2 * Math.log(random1));
+                    yield this.first + this.second * radius * Math.cos(2 * Math.PI * random2);
+                }
+                case HYPER_EXPONENTIAL -> ((Distribution.HyperExponential) this.distribution).sample(rng);
+                case EXPONENTIAL_ZIGGURAT -> ((Distribution.ExponentialZiggurat) this.distribution).sample(rng);
+                case NORMAL_ZIGGURAT -> ((Distribution.NormalZiggurat) this.distribution).sample(rng);
+                default -> this.distribution.sample(rng);
+            };
+        } while (sample < 0);
+        return sample;
+    }
+}
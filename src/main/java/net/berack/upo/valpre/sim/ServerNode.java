@@ -1,7 +1,7 @@
 package net.berack.upo.valpre.sim;
 
 import net.berack.upo.valpre.rand.Distribution;
-import net.berack.upo.valpre.rand.Rng;
+import net.berack.upo.valpre.rand.RandomStream;
 
 /**
  * Represents a node in the network. It can be a source, a queue, or a sink
@@ -57,7 +57,7 @@ public class ServerNode {
      * @param rng The random number generator to use.
      * @return A positive sample from the distribution.
      */
-    public double getServiceTime(Rng rng) {
+    public double getServiceTime(RandomStream rng) {
         return Distribution.getPositiveSample(this.service, rng);
     }
 
@@ -67,7 +67,7 @@ public class ServerNode {
      * @param rng The random number generator to use.
      * @return A positive or 0 value from the distribution.
      */
-    public double getUnavailableTime(Rng rng) {
+    public double getUnavailableTime(RandomStream rng) {
         return Distribution.getPositiveSample(this.unavailable, rng);
     }
 
@@ -1,9 +1,8 @@
 package net.berack.upo.valpre.sim;
 
-import java.util.ArrayDeque;
 import java.util.List;
 
-import net.berack.upo.valpre.rand.Rng;
+import net.berack.upo.valpre.rand.RandomStream;
 import net.berack.upo.valpre.sim.Net.Connection;
 import net.berack.upo.valpre.sim.stats.NodeStats;
 
@@ -16,12 +15,13 @@ import net.berack.upo.valpre.sim.stats.NodeStats;
 public class ServerNodeState {
     public int numServerBusy = 0;
     public int numServerUnavailable = 0;
-    public final ArrayDeque<Double> queue = new ArrayDeque<>();
+    public final DoubleQueue queue;
 
     public final int index;
     public final ServerNode node;
     public final NodeStats stats = new NodeStats();
     public final List<Connection> children;
+    public final RoutingTable routing;
 
     /**
      * Create a new node state based on the index and the net passed as input
@@ -30,9 +30,34 @@ public class ServerNodeState {
      * @param net   the net where the node is
      */
     ServerNodeState(int index, Net net) {
+        this(index, net.compile());
+    }
+
+    /**
+     * Create a new node state based on the index and the compiled net passed as
+     * input. The children and the routing table are shared with the net.
+     * 
+     * @param index the index of the node
+     * @param net   the compiled net where the node is
+     */
+    ServerNodeState(int index, CompiledNet net) {
+        this(index, net, new DoubleQueue(net.getMaxQueue(index)));
+    }
+
+    /**
+     * Create a new node state based on the index and the compiled net passed as
+     * input, that uses the queue passed.
+     * 
+     * @param index the index of the node
+     * @param net   the compiled net where the node is
+     * @param queue the queue of the node
+     */
+    ServerNodeState(int index, CompiledNet net, DoubleQueue queue) {
         this.index = index;
         this.node = net.getNode(index);
         this.children = net.getChildren(index);
+        this.routing = net.getRoutingTable(index);
+        this.queue = queue;
     }
 
     /**
@@ -131,13 +156,26 @@ public class ServerNodeState {
      * @return the departure event if the node can serve and has requests, null
      *         otherwise
      */
-    public Event spawnDepartureIfPossible(double time, Rng rng) {
+    public Event spawnDepartureIfPossible(double time, RandomStream rng) {
+        var delay = this.startServiceIfPossible(rng);
+        return delay < 0 ? null : Event.newDeparture(this.index, time + delay);
+    }
+
+    /**
+     * Start a new service if the node can serve and has requests. The duration of
+     * the service is determined by the node's service time distribution.
+     * This is the same as {@link #spawnDepartureIfPossible(double, RandomStream)} but
+     * without creating the event.
+     * 
+     * @param rng the random number generator
+     * @return the duration of the service if it has started, -1 otherwise
+     */
+    public double startServiceIfPossible(RandomStream rng) {
         if (this.canServe() && this.hasRequests()) {
             this.numServerBusy++;
-            var delay = node.getServiceTime(rng);
-            return Event.newDeparture(this.index, time + delay);
+            return node.getServiceTime(rng);
         }
-        return null;
+        return -1;
     }
 
     /**
@@ -149,30 +187,38 @@ public class ServerNodeState {
      * @param rng  The random number generator
      * @return The event if the node is unavailable, null otherwise
      */
-    public Event spawnUnavailableIfPossible(double time, Rng rng) {
+    public Event spawnUnavailableIfPossible(double time, RandomStream rng) {
+        var delay = this.startUnavailableIfPossible(rng);
+        return delay > 0 ? Event.newAvailable(this.index, time + delay) : null;
+    }
+
+    /**
+     * Make one server unavailable if the node's unavailability distribution
+     * returns a delay greater than 0.
+     * This is the same as {@link #spawnUnavailableIfPossible(double, RandomStream)} but
+     * without creating the event.
+     * 
+     * @param rng The random number generator
+     * @return The duration of the unavailability if it has started, 0 otherwise
+     */
+    public double startUnavailableIfPossible(RandomStream rng) {
         var delay = node.getUnavailableTime(rng);
-        if (delay > 0) {
+        if (delay > 0)
             this.numServerUnavailable++;
-            return Event.newAvailable(this.index, time + delay);
-        }
-        return null;
+        return delay;
     }
 
     /**
      * Get a random child based on the weights of the children and the random number
-     * generator passed as input
+     * generator passed as input.
+     * Exactly one random number is used, even if the node has no children.
      * 
      * @param rng the random number generator
      * @return the index of the child or -1 if no child is selected
+     * @see RoutingTable
      */
-    public int getRandomChild(Rng rng) {
-        var random = rng.random();
-        for (var child : this.children) {
-            random -= child.weight;
-            if (random <= 0)
-                return child.index;
-        }
-        return -1;
+    public int getRandomChild(RandomStream rng) {
+        return this.routing.select(rng.random());
     }
 
     /**
@@ -184,7 +230,7 @@ public class ServerNodeState {
      * @return the arrival event to a child node if the node has children, null
      *         otherwise
      */
-    public Event spawnArrivalToChild(double time, Rng rng) {
+    public Event spawnArrivalToChild(double time, RandomStream rng) {
         var child = this.getRandomChild(rng);
         return child > -1 ? Event.newArrival(child, time) : null;
     }
@@ -1,8 +1,19 @@
 package net.berack.upo.valpre.sim;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.PriorityQueue;
 
+import net.berack.upo.valpre.rand.Philox;
+import net.berack.upo.valpre.rand.RandomStream;
 import net.berack.upo.valpre.rand.Rng;
 import net.berack.upo.valpre.sim.stats.Result;
 
@@ -10,14 +21,36 @@ import net.berack.upo.valpre.sim.stats.Result;
  * Process an entire run of the simulation.
  */
 public final class Simulation {
-    public final Rng rng;
-    public final long timeStartedNano;
+    /** The first values of a snapshot, to check that it is one */
+    private static final int SNAPSHOT_MAGIC = 0x56505245;
+    private static final byte SNAPSHOT_VERSION = 2;
+
+    /** @deprecated use {@link #getRng()}, this is only a copy of it */
+    @Deprecated
+    public Rng rng;
+    /** @deprecated use {@link #getTimeStartedNano()}, this is only a copy of it */
+    @Deprecated
+    public long timeStartedNano;
     public final EndCriteria[] criterias;
-    public final long seed;
+    /** @deprecated use {@link #getSeed()}, this is only a copy of it */
+    @Deprecated
+    public long seed;
 
-    private final ServerNodeState[] states;
-    private final PriorityQueue<Event> fel;
+    private Rng generator;
+    private long runStartedNano;
+    private long runSeed;
+    private final CompiledNet net;
+    private final Rng[] streams;
+    private final RandomStream[] service;
+    private final RandomStream[] routing;
+    private final RandomStream[] unavailable;
+    private final NodeStateArrays states;
+    private final FutureEventList fel;
+    private final ArrivalSlots arrivals;
+    private final EndTriggers triggers;
+    private final SimulationListener listener;
     private double time = 0.0d;
+    private int node = 0;
     private long eventProcessed = 0;
 
     /**
@@ -34,37 +67,330 @@ public final class Simulation {
      * @param criterias when the simulation has to end.
      */
     public Simulation(Net net, Rng rng, EndCriteria... criterias) {
-        this.timeStartedNano = System.nanoTime();
-        this.states = net.buildNodeStates();
-        this.fel = new PriorityQueue<>();
+        this(net, rng, FutureEventList.Kind.HEAP, criterias);
+    }
+
+    /**
+     * Creates a new simulation for the given network.
+     * The random number generator is used to generate random numbers for the
+     * simulation.
+     * The simulation will end when the given criteria are met.
+     * NOTE: the network passed is only used to create the initial states of the
+     * nodes, so the simulation is not affected by changes to the network after
+     * the creation of this object.
+     * 
+     * @param net       The network to simulate.
+     * @param rng       The random number generator to use.
+     * @param fel       The kind of future event list to use.
+     * @param criterias when the simulation has to end.
+     */
+    public Simulation(Net net, Rng rng, FutureEventList.Kind fel, EndCriteria... criterias) {
+        this(net.compile(), rng, fel, criterias);
+    }
+
+    /**
+     * Creates a new simulation for the given compiled network.
+     * The random number generator is used to generate random numbers for the
+     * simulation.
+     * The simulation will end when the given criteria are met.
+     * The compiled network is only read, so the same one can be used by many
+     * simulations at once.
+     * 
+     * @param net       The compiled network to simulate.
+     * @param rng       The random number generator to use.
+     * @param fel       The kind of future event list to use.
+     * @param criterias when the simulation has to end.
+     */
+    public Simulation(CompiledNet net, Rng rng, FutureEventList.Kind fel, EndCriteria... criterias) {
+        this(net, fel, null, criterias);
+        this.start(rng);
+    }
+
+    /**
+     * Creates a new simulation for the given compiled network, that calls the
+     * listener passed for the events of the nodes.
+     * The listener is fixed when the simulation is created: without one the
+     * events are processed by a loop that has no calls or checks for it, so
+     * passing null is the same of the other constructors.
+     * 
+     * @param net       The compiled network to simulate.
+     * @param rng       The random number generator to use.
+     * @param fel       The kind of future event list to use.
+     * @param listener  The listener of the events, can be null.
+     * @param criterias when the simulation has to end.
+     */
+    public Simulation(CompiledNet net, Rng rng, FutureEventList.Kind fel, SimulationListener listener,
+            EndCriteria... criterias) {
+        this(net, fel, listener, criterias);
+        this.start(rng);
+    }
+
+    /**
+     * Creates a new simulation for the given compiled network, where each node
+     * uses its own random number generator, the one with the same index.
+     * In this way the random numbers used by a node do not depend on the events
+     * of the other nodes, and the results can be compared with the ones of an
+     * engine that runs the nodes separately, like {@link ConservativeSimulation}.
+     * The first generator is the one returned by {@link #getRng()}.
+     * 
+     * @param net       The compiled network to simulate.
+     * @param streams   The random number generators, one for each node.
+     * @param fel       The kind of future event list to use.
+     * @param criterias when the simulation has to end.
+     * @throws IllegalArgumentException if there is not one generator for each node
+     */
+    public Simulation(CompiledNet net, Rng[] streams, FutureEventList.Kind fel, EndCriteria... criterias) {
+        this(net, fel, null, criterias);
+        if (streams.length == 0 || streams.length < net.size())
+            throw new IllegalArgumentException("One random number generator for each node is needed");
+
+        this.start(streams[0]);
+        System.arraycopy(streams, 0, this.streams, 0, this.streams.length);
+        this.useStreams();
+    }
+
+    /**
+     * Creates a new simulation for the given compiled network, where each node
+     * uses a counter-based {@link Philox} generator for each purpose of its
+     * random numbers: the service times, the routing and the unavailable times.
+     * The streams are the ones of the replication passed, so the numbers drawn by
+     * a node for a purpose do not depend on the order of the events, and two nets
+     * simulated with the same seed and replication use the same numbers in the
+     * nodes with the same index. This is useful to compare two configurations
+     * of a net with common random numbers.
+     * Since there is no {@link Rng}, {@link #getRng()} returns null.
+     * 
+     * @param net         The compiled network to simulate.
+     * @param seed        The seed of the generators.
+     * @param replication The index of the replication.
+     * @param fel         The kind of future event list to use.
+     * @param criterias   when the simulation has to end.
+     * @throws IllegalArgumentException if the replication is not valid for
+     *                                  {@link Philox}
+     */
+    public Simulation(CompiledNet net, long seed, long replication, FutureEventList.Kind fel,
+            EndCriteria... criterias) {
+        this(net, fel, null, criterias);
+        this.start(seed, replication);
+    }
+
+    /**
+     * Creates the simulation with the listener if not null, without starting it:
+     * the public constructors start it with their generators.
+     */
+    private Simulation(CompiledNet net, FutureEventList.Kind fel, SimulationListener listener,
+            EndCriteria[] criterias) {
+        this.net = net;
+        this.streams = new Rng[net.size()];
+        this.service = new RandomStream[net.size()];
+        this.routing = new RandomStream[net.size()];
+        this.unavailable = new RandomStream[net.size()];
+        this.states = new NodeStateArrays(net);
+        this.fel = fel.build(net.size());
+        this.arrivals = new ArrivalSlots(net);
         this.criterias = criterias;
-        this.seed = rng.getSeed();
-        this.rng = rng;
+        this.triggers = new EndTriggers(net, criterias);
+        this.listener = listener;
 
+        // check for ending criteria in simulation
         boolean hasLimit = false;
-        for (var state : this.states) {
-            var node = state.node;
-
-            // check for ending criteria in simulation
-            if (node.spawnArrivals != Integer.MAX_VALUE)
+        for (var index = 0; index < net.size(); index++)
+            if (net.getSpawnArrivals(index) != Integer.MAX_VALUE)
                 hasLimit = true;
 
-            // Initial arrivals (if spawned)
-            this.addToFel(state.spawnArrivalIfPossilbe(0.0d));
-        }
-
         if (!hasLimit && (criterias == null || criterias.length == 0))
             throw new IllegalArgumentException("At least one end criteria is needed!");
     }
 
+    /**
+     * Bring the simulation back to its start, as if it was just created with the
+     * random number generator passed.
+     * All the memory already allocated by this simulation (future event list,
+     * queues of the nodes, statistics) is reused, so running many replications of
+     * the same net with the same object is cheaper than creating a new one for
+     * each of them, and it gives the same results.
+     * All the nodes use the generator passed, even if the simulation was created
+     * with one for each node.
+     * 
+     * @param rng The random number generator to use for the next run.
+     * @throws NullPointerException if the random number generator is null
+     */
+    public void reset(Rng rng) {
+        if (rng == null)
+            throw new NullPointerException("Rng can't be null");
+
+        this.states.clear();
+        this.fel.clear();
+        this.arrivals.clear();
+        this.triggers.reset();
+        this.start(rng);
+    }
+
+    /**
+     * Bring the simulation back to its start, as if it was just created with the
+     * counter-based generators of the seed and replication passed, as in
+     * {@link #Simulation(CompiledNet, long, long, FutureEventList.Kind, EndCriteria...)}.
+     * The memory already allocated is reused, as in {@link #reset(Rng)}.
+     * 
+     * @param seed        The seed of the generators.
+     * @param replication The index of the replication.
+     * @throws IllegalArgumentException if the replication is not valid for
+     *                                  {@link Philox}
+     */
+    public void reset(long seed, long replication) {
+        this.states.clear();
+        this.fel.clear();
+        this.arrivals.clear();
+        this.triggers.reset();
+        this.start(seed, replication);
+    }
+
+    /**
+     * Start a new run from the current state of the simulation, with the random
+     * number generator passed for all the nodes.
+     * The requests in the nodes and the events still to process are kept, while
+     * the statistics, the number of events processed and the end criteria start
+     * again from 0, and the current time becomes time 0 (all the events are moved
+     * back by it). The sources with a limited number of arrivals spawn all of them
+     * again: the ones still spawning continue from their next arrival, while the
+     * ones that ended theirs and have no requests left nor arrivals pending start
+     * again at time 0.
+     * In this way a simulation brought to its steady state can be
+     * saved once with {@link #save(OutputStream)}, and many independent runs can
+     * be started from it with {@link #restore(InputStream)} and this method,
+     * without simulating the warm-up again for each of them.
+     * 
+     * @param rng The random number generator to use for the new run.
+     * @throws NullPointerException if the random number generator is null
+     */
+    public void fork(Rng rng) {
+        if (rng == null)
+            throw new NullPointerException("Rng can't be null");
+
+        var origin = this.time;
+        var size = this.fel.size();
+        var times = new double[Math.max(size, this.arrivals.size())];
+        var types = new Event.Type[size];
+        var nodes = new int[times.length];
+        for (var i = 0; i < size; i++) {
+            times[i] = this.fel.peekTime() - origin;
+            types[i] = this.fel.peekType();
+            nodes[i] = this.fel.peekNode();
+            this.fel.remove();
+        }
+
+        // the times before the fork must not count in the statistics of the list
+        this.fel.clear();
+        for (var i = 0; i < size; i++)
+            this.fel.add(types[i], nodes[i], times[i]);
+
+        size = this.arrivals.size();
+        for (var i = 0; i < size; i++) {
+            times[i] = this.arrivals.peekTime() - origin;
+            nodes[i] = this.arrivals.peekNode();
+            this.arrivals.remove();
+        }
+        for (var i = 0; i < size; i++)
+            this.arrivals.offer(nodes[i], times[i]);
+
+        this.states.clearStats();
+        this.states.moveOrigin(origin);
+
+        // the limited sources that already ended have no arrival to themselves,
+        // while the ones with a request or an arrival pending spawn it again
+        for (var index = 0; index < this.net.size(); index++)
+            if (this.states.shouldSpawnArrival(index) && this.states.isIdle(index))
+                this.addSelfArrival(index, 0.0d);
+
+        this.triggers.reset();
+        this.runSeed = rng.getSeed();
+        this.generator = rng;
+        Arrays.fill(this.streams, rng);
+        this.useStreams();
+        this.time = 0.0d;
+        this.eventProcessed = 0;
+        this.runStartedNano = System.nanoTime();
+        this.publish();
+    }
+
+    /**
+     * Set the random number generator of all the nodes and schedule the initial
+     * arrivals of the sources, with all the state of the simulation empty.
+     */
+    private void start(Rng rng) {
+        this.generator = rng;
+        Arrays.fill(this.streams, rng);
+        this.useStreams();
+        this.begin(rng.getSeed());
+    }
+
+    /**
+     * Set the counter-based generators of the replication for all the nodes and
+     * schedule the initial arrivals of the sources, with all the state of the
+     * simulation empty.
+     */
+    private void start(long seed, long replication) {
+        for (var index = 0; index < this.net.size(); index++) {
+            this.service[index] = new Philox(seed, replication, index, Philox.Purpose.SERVICE);
+            this.routing[index] = new Philox(seed, replication, index, Philox.Purpose.ROUTING);
+            this.unavailable[index] = new Philox(seed, replication, index, Philox.Purpose.UNAVAILABLE);
+        }
+        this.generator = null;
+        Arrays.fill(this.streams, null);
+        this.begin(seed);
+    }
+
+    /**
+     * Use the generators of the nodes for all the purposes of their numbers.
+     */
+    private void useStreams() {
+        var size = this.streams.length;
+        System.arraycopy(this.streams, 0, this.service, 0, size);
+        System.arraycopy(this.streams, 0, this.routing, 0, size);
+        System.arraycopy(this.streams, 0, this.unavailable, 0, size);
+    }
+
+    /**
+     * Schedule the initial arrivals of the sources, with the generators already
+     * set and all the state of the simulation empty.
+     */
+    private void begin(long seed) {
+        this.runSeed = seed;
+        this.time = 0.0d;
+        this.eventProcessed = 0;
+        this.runStartedNano = System.nanoTime();
+        this.publish();
+
+        // Initial arrivals (if spawned)
+        for (var index = 0; index < this.net.size(); index++)
+            if (this.states.shouldSpawnArrival(index))
+                this.addSelfArrival(index, 0.0d);
+    }
+
+    /**
+     * Copy the generator, the seed and the start of the run in the deprecated
+     * public fields, that are kept only to be read by the old code. The
+     * simulation never reads them, so changing them has no effect.
+     */
+    private void publish() {
+        this.rng = this.generator;
+        this.seed = this.runSeed;
+        this.timeStartedNano = this.runStartedNano;
+    }
+
     /**
      * Runs the simulation until a given criteria is met.
      * 
      * @return The final statistics the network.
      */
     public Result run() {
-        while (!this.hasEnded())
-            this.processNextEvent();
+        if (this.listener == null) {
+            while (!this.hasEnded())
+                this.process();
+        } else {
+            while (!this.hasEnded())
+                this.processAndListen();
+        }
         return this.endSimulation();
     }
 
@@ -77,41 +403,182 @@ public final class Simulation {
      * @throws NullPointerException if there are no more events to process.
      */
     public void processNextEvent() {
-        var event = fel.poll();
-        if (event == null)
-            throw new NullPointerException("No more events to process!");
-
-        var state = this.states[event.nodeIndex];
-        this.time = event.time;
-        this.eventProcessed += 1;
+        if (this.listener == null)
+            this.process();
+        else
+            this.processAndListen();
+    }
 
-        switch (event.type) {
-            case AVAILABLE -> {
-                state.updateAvailable(time);
-                this.addToFel(state.spawnDepartureIfPossible(time, this.rng));
+    /**
+     * Processes the next event without calling the listener.
+     * The work is split in small methods shared with
+     * {@link #processAndListen()}, so this one has no reference to the listener
+     * and the loop of {@link #run()} without a listener has no check or call for
+     * it, whether this method is inlined there or not.
+     */
+    private void process() {
+        switch (this.nextEvent()) {
+            case AVAILABLE -> this.available(this.node);
+            case ARRIVAL -> {
+                this.arrival(this.node);
+                this.spawnDepartureIfPossible(this.node);
+            }
+            case DEPARTURE -> {
+                this.departure(this.node);
+                this.afterDeparture(this.node);
             }
+        }
+    }
+
+    /**
+     * Processes the next event as {@link #process()}, calling the listener
+     * after the statistics of the node are updated.
+     */
+    private void processAndListen() {
+        var type = this.nextEvent();
+        var index = this.node;
+        var time = this.time;
+        switch (type) {
+            case AVAILABLE -> this.available(index);
             case ARRIVAL -> {
-                state.updateArrival(time);
-                this.addToFel(state.spawnDepartureIfPossible(time, this.rng));
+                this.arrival(index);
+                this.listener.onArrival(index, time);
+                this.spawnDepartureIfPossible(index);
             }
             case DEPARTURE -> {
-                state.updateDeparture(time);
+                this.departure(index);
+                this.listener.onDeparture(index, time);
+                var dropped = this.afterDeparture(index);
+                if (dropped > -1)
+                    this.listener.onDrop(index, dropped, time);
+            }
+        }
+    }
 
-                // Spawn unavailability if has unavailable time
-                this.addToFel(state.spawnUnavailableIfPossible(time, this.rng));
+    /**
+     * Remove the next event, moving the time to it and saving its node.
+     * The arrivals of the sources come first if they are not later than the
+     * next event of the list.
+     * 
+     * @return the type of the event
+     * @throws NullPointerException if there are no more events to process.
+     */
+    private Event.Type nextEvent() {
+        if (this.fel.isEmpty() && this.arrivals.isEmpty())
+            throw new NullPointerException("No more events to process!");
 
-                // Spawn departure if has requests and server is available
-                this.addToFel(state.spawnDepartureIfPossible(time, this.rng));
+        Event.Type type;
+        if (!this.arrivals.isEmpty() && (this.fel.isEmpty() || this.arrivals.peekTime() <= this.fel.peekTime())) {
+            type = Event.Type.ARRIVAL;
+            this.node = this.arrivals.peekNode();
+            this.time = this.arrivals.peekTime();
+            this.arrivals.remove();
+        } else {
+            type = this.fel.peekType();
+            this.node = this.fel.peekNode();
+            this.time = this.fel.peekTime();
+            this.fel.remove();
+        }
 
-                // Spawn arrival to self if is source node
-                this.addToFel(state.spawnArrivalIfPossilbe(time));
+        this.eventProcessed += 1;
+        this.triggers.onTime(this.time);
+        return type;
+    }
 
-                // Spawn arrival to child node if queue is not full otherwise drop
-                var ev = state.spawnArrivalToChild(time, this.rng);
-                if (ev != null && !this.states[ev.nodeIndex].isQueueFull())
-                    this.addToFel(ev);
-            }
+    /**
+     * A server of the node is available again.
+     * 
+     * @param index the index of the node
+     */
+    private void available(int index) {
+        this.states.updateAvailable(index, this.time);
+        this.spawnDepartureIfPossible(index);
+    }
+
+    /**
+     * A request arrives at the node: only the statistics are updated, the service
+     * is started by the caller.
+     * 
+     * @param index the index of the node
+     */
+    private void arrival(int index) {
+        this.states.removePendingArrival(index);
+        this.states.updateArrival(index, this.time);
+        this.triggers.onArrival(index, this.states.getArrivals(index));
+    }
+
+    /**
+     * A request leaves the node: only the statistics are updated, the rest is done
+     * by {@link #afterDeparture(int)}.
+     * 
+     * @param index the index of the node
+     */
+    private void departure(int index) {
+        this.states.updateDeparture(index, this.time);
+        this.triggers.onDeparture(index, this.states.getDepartures(index));
+    }
+
+    /**
+     * Spawn the events that follow a departure from the node: the unavailability
+     * of the server, the next service, the next arrival of a source and the
+     * arrival of the request to a child.
+     * 
+     * @param index the index of the node
+     * @return the child that dropped the request since its queue is full, or -1
+     */
+    private int afterDeparture(int index) {
+        var states = this.states;
+        var time = this.time;
+
+        // Spawn unavailability if has unavailable time
+        if (states.canBeUnavailable(index)) {
+            var unavailable = states.startUnavailableIfPossible(index, this.unavailable[index]);
+            if (unavailable > 0)
+                this.fel.add(Event.Type.AVAILABLE, index, time + unavailable);
+        }
+
+        // Spawn departure if has requests and server is available
+        this.spawnDepartureIfPossible(index);
+
+        // Spawn arrival to self if is source node
+        if (states.shouldSpawnArrival(index))
+            this.addSelfArrival(index, time);
+
+        // Spawn arrival to child node if queue is not full otherwise drop
+        var child = states.getRandomChild(index, this.routing[index]);
+        if (child > -1) {
+            if (!states.isQueueFull(child)) {
+                states.addPendingArrival(child);
+                this.fel.add(Event.Type.ARRIVAL, child, time);
+            } else
+                return child;
         }
+        return -1;
+    }
+
+    /**
+     * Add a departure event to the future event list if the node passed can start
+     * a new service, otherwise do nothing.
+     * 
+     * @param index the index of the node
+     */
+    private void spawnDepartureIfPossible(int index) {
+        var delay = this.states.startServiceIfPossible(index, this.service[index]);
+        if (delay >= 0)
+            this.fel.add(Event.Type.DEPARTURE, index, this.time + delay);
+    }
+
+    /**
+     * Add the arrival of a node to itself in its slot, or in the future event list
+     * if the slot is already taken.
+     * 
+     * @param index the index of the node
+     * @param time  the time of the arrival
+     */
+    private void addSelfArrival(int index, double time) {
+        this.states.addPendingArrival(index);
+        if (!this.arrivals.offer(index, time))
+            this.fel.add(Event.Type.ARRIVAL, index, time);
     }
 
     /**
@@ -120,14 +587,133 @@ public final class Simulation {
      * @return The statistics of the network.
      */
     public Result endSimulation() {
-        var elapsed = System.nanoTime() - this.timeStartedNano;
+        var elapsed = System.nanoTime() - this.runStartedNano;
         var builder = new Result.Builder();
-        for (var i = 0; i < this.states.length; i++) {
-            var state = this.states[i];
-            builder.addNode(state.node.name, state.stats);
+        for (var i = 0; i < this.net.size(); i++)
+            builder.addNode(this.net.getNode(i).name, this.states.getStats(i));
+
+        return builder.seed(this.runSeed).times(this.time, elapsed * 1e-6).build();
+    }
+
+    /**
+     * Save the state of the simulation in the stream passed, in a compact binary
+     * format, so that it can be continued later with {@link #restore(InputStream)},
+     * even by another JVM.
+     * The snapshot has the future event list, the state and the statistics of all
+     * the nodes, the current time, the number of events processed and the state of
+     * the random number generators, so the restored simulation processes the next
+     * events exactly as this one would. The end criteria are not saved, they are
+     * the ones of the simulation that restores the snapshot.
+     * The stream is flushed but not closed.
+     * Only the simulations that use {@link Rng} generators can be saved.
+     * 
+     * @param out The stream where to save the simulation.
+     * @throws IOException           if the output fails
+     * @throws IllegalStateException if the simulation uses counter-based
+     *                               generators
+     */
+    public void save(OutputStream out) throws IOException {
+        if (this.generator == null)
+            throw new IllegalStateException("Only the simulations with Rng generators can be saved");
+
+        var data = new DataOutputStream(new BufferedOutputStream(out));
+        var size = this.net.size();
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeByte(SNAPSHOT_VERSION);
+        data.writeInt(size);
+        for (var index = 0; index < size; index++)
+            data.writeUTF(this.net.getNode(index).name);
+        data.writeUTF(this.fel.getClass().getName());
+
+        data.writeLong(this.runSeed);
+        data.writeDouble(this.time);
+        data.writeLong(this.eventProcessed);
+        data.writeLong(System.nanoTime() - this.runStartedNano);
+
+        // the generators shared by more nodes are saved once
+        var first = new IdentityHashMap<Rng, Integer>();
+        data.writeLong(this.generator.getSeed());
+        for (var index = 0; index < size; index++) {
+            var stream = this.streams[index];
+            var shared = stream == this.generator ? Integer.valueOf(-1) : first.putIfAbsent(stream, index);
+            if (shared != null)
+                data.writeInt(shared);
+            else {
+                data.writeInt(index);
+                data.writeLong(stream.getSeed());
+            }
+        }
+
+        this.states.write(data, 0, size);
+        this.arrivals.write(data);
+        this.fel.write(data);
+        data.flush();
+    }
+
+    /**
+     * Replace the state of this simulation with the one saved by
+     * {@link #save(OutputStream)}, so that it continues from that point.
+     * The simulation must be of the same net and use the same kind of future
+     * event list, while the end criteria can be different, for example to run
+     * the simulation for a longer time. The random number generators are new
+     * objects with the saved state.
+     * If the reading fails the simulation is not valid anymore, and it must be
+     * reset or restored again.
+     * 
+     * @param in The stream where the simulation was saved.
+     * @throws IOException              if the input fails or it is not a snapshot
+     * @throws IllegalArgumentException if the snapshot is of another net or uses
+     *                                  another kind of future event list
+     */
+    public void restore(InputStream in) throws IOException {
+        var data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != SNAPSHOT_MAGIC || data.readByte() != SNAPSHOT_VERSION)
+            throw new StreamCorruptedException("Not a snapshot of a simulation");
+
+        var size = this.net.size();
+        if (data.readInt() != size)
+            throw new IllegalArgumentException("The snapshot is of a different net");
+        for (var index = 0; index < size; index++)
+            if (!data.readUTF().equals(this.net.getNode(index).name))
+                throw new IllegalArgumentException("The snapshot is of a different net");
+        if (!data.readUTF().equals(this.fel.getClass().getName()))
+            throw new IllegalArgumentException("The snapshot uses a different future event list");
+
+        var seed = data.readLong();
+        var time = data.readDouble();
+        var events = data.readLong();
+        var elapsed = data.readLong();
+
+        var rng = new Rng(data.readLong());
+        var streams = new Rng[size];
+        for (var index = 0; index < size; index++) {
+            var shared = data.readInt();
+            if (shared >= index)
+                streams[index] = new Rng(data.readLong());
+            else
+                streams[index] = shared < 0 ? rng : streams[shared];
         }
 
-        return builder.seed(this.seed).times(this.time, elapsed * 1e-6).build();
+        this.states.read(data, 0, size);
+        this.arrivals.read(data);
+        this.fel.read(data);
+
+        this.runSeed = seed;
+        this.generator = rng;
+        System.arraycopy(streams, 0, this.streams, 0, size);
+        this.useStreams();
+        this.time = time;
+        this.eventProcessed = events;
+        this.runStartedNano = System.nanoTime() - elapsed;
+        this.publish();
+
+        // the criteria depend only on the counters and on the time
+        this.triggers.reset();
+        for (var index = 0; index < size; index++) {
+            this.triggers.onArrival(index, this.states.getArrivals(index));
+            this.triggers.onDeparture(index, this.states.getDepartures(index));
+        }
+        this.triggers.onTime(this.time);
     }
 
     /**
@@ -148,6 +734,45 @@ public final class Simulation {
         return this.eventProcessed;
     }
 
+    /**
+     * Get the random number generator used by the nodes, that changes when the
+     * simulation is reset.
+     * 
+     * @return the generator of the current run, or null if the nodes use
+     *         counter-based generators
+     */
+    public Rng getRng() {
+        return this.generator;
+    }
+
+    /**
+     * Get the seed of the current run, the one saved in its result.
+     * 
+     * @return the seed of the run
+     */
+    public long getSeed() {
+        return this.runSeed;
+    }
+
+    /**
+     * Get the value of {@link System#nanoTime()} when the current run started,
+     * used to compute its elapsed time.
+     * 
+     * @return the start of the run in nanoseconds
+     */
+    public long getTimeStartedNano() {
+        return this.runStartedNano;
+    }
+
+    /**
+     * Get the future event list used by the simulation, to check its state.
+     * 
+     * @return the future event list
+     */
+    FutureEventList getFel() {
+        return this.fel;
+    }
+
     /**
      * Get the list of future events.
      * This method returns a copy of the list, so the original list is not modified.
@@ -155,7 +780,9 @@ public final class Simulation {
      * @return a list of future events.
      */
     public List<Event> getFutureEventList() {
-        return List.copyOf(this.fel);
+        var list = this.fel.toList();
+        this.arrivals.addTo(list);
+        return list;
     }
 
     /**
@@ -166,23 +793,37 @@ public final class Simulation {
      * @throws NullPointerException if the node does not exist.
      */
     public ServerNode getNode(String node) {
-        return this.getNodeState(node).node;
+        return this.net.getNode(this.indexOf(node));
     }
 
     /**
      * Get the node state requested by the name passed as a string.
+     * The states of the nodes are saved in arrays, so the object returned is a
+     * snapshot of them at the moment of the call: the queue, the counters and
+     * the statistics are all copied, thus they are not updated by the next
+     * events and changing them does not change the simulation.
+     * Each call creates a new object, so it should not be used for every event.
      * 
      * @param node the name of the node
      * @return the current state of the node
      * @throws NullPointerException if the node does not exist.
      */
     public ServerNodeState getNodeState(String node) {
-        for (var state : this.states) {
-            if (state.node.name.equals(node))
-                return state;
-        }
+        return this.states.getState(this.indexOf(node));
+    }
 
-        throw new NullPointerException("Node not found: " + node);
+    /**
+     * Get the index of the node with the name passed.
+     * 
+     * @param node the name of the node
+     * @return the index of the node
+     * @throws NullPointerException if the node does not exist.
+     */
+    private int indexOf(String node) {
+        var index = this.net.getNodeIndex(node);
+        if (index < 0)
+            throw new NullPointerException("Node not found: " + node);
+        return index;
     }
 
     /**
@@ -192,24 +833,24 @@ public final class Simulation {
      * @param e the event to add
      */
     public void addToFel(Event e) {
-        if (e != null)
-            this.fel.add(e);
+        if (e == null)
+            return;
+        if (e.type == Event.Type.ARRIVAL)
+            this.states.addPendingArrival(e.nodeIndex);
+        this.fel.add(e);
     }
 
     /**
      * Determines if the simulation has finshed based on the given criteria.
+     * The criteria that can be compiled are updated while the events are
+     * processed, so here only the others are checked.
      * 
      * @return True if the simulation should end, false otherwise.
      */
     public boolean hasEnded() {
-        if (fel.isEmpty()) {
+        if (fel.isEmpty() && arrivals.isEmpty()) {
             return true;
         }
-        for (var c : this.criterias) {
-            if (c.shouldEnd(this)) {
-                return true;
-            }
-        }
-        return false;
+        return this.triggers.isMet() || this.triggers.isPolledMet(this);
     }
 }
\ No newline at end of file
@@ -0,0 +1,43 @@
+package net.berack.upo.valpre.sim;
+
+/**
+ * A listener of the events processed by a {@link Simulation}, to collect
+ * metrics that are not in the statistics of the nodes.
+ * The methods are called after the state of the node has been updated, with
+ * the values of the event as primitive arguments, so no object is created for
+ * them. All the methods do nothing by default, so only the ones needed have to
+ * be implemented.
+ * The listener is passed when the simulation is created, see
+ * {@link Simulation#Simulation(CompiledNet, net.berack.upo.valpre.rand.Rng, FutureEventList.Kind, SimulationListener, EndCriteria...)}.
+ */
+public interface SimulationListener {
+    /**
+     * Called when a request arrives to a node and enters its queue, even when it
+     * is an arrival of a source to itself.
+     *
+     * @param node the index of the node
+     * @param time the time of the arrival
+     */
+    public default void onArrival(int node, double time) {
+    }
+
+    /**
+     * Called when a request leaves a node, before it is sent to the next one.
+     *
+     * @param node the index of the node
+     * @param time the time of the departure
+     */
+    public default void onDeparture(int node, double time) {
+    }
+
+    /**
+     * Called when a request that left a node is dropped, since the queue of the
+     * next node is full.
+     *
+     * @param node  the index of the node that the request left
+     * @param child the index of the node with the full queue
+     * @param time  the time of the departure
+     */
+    public default void onDrop(int node, int child, double time) {
+    }
+}
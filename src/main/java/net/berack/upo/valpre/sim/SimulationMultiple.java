@@ -1,11 +1,19 @@
 package net.berack.upo.valpre.sim;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.berack.upo.valpre.rand.Philox;
+import net.berack.upo.valpre.rand.RandomStream;
 import net.berack.upo.valpre.rand.Rng;
 import net.berack.upo.valpre.sim.stats.Result;
 
@@ -14,26 +22,52 @@ import net.berack.upo.valpre.sim.stats.Result;
  * behavior of a network of servers.
  */
 public class SimulationMultiple {
-    private final Net net;
+    /** The time in nanoseconds that a worker should spend on a chunk of runs */
+    private static final long CHUNK_NANOS = 20_000_000L;
+    /** The number of runs advanced together by {@link #runLockstep} */
+    public static final int LANES = 16;
+
+    private final CompiledNet net;
     private final String[] nodes;
+    private final FutureEventList.Kind fel;
 
     /**
-     * Create a new object that can simulate the net in input multiple times
+     * Create a new object that can simulate the net in input multiple times.
+     * The net is compiled once here and shared by all the runs, so the changes made
+     * to it after the creation of this object are not simulated.
      * 
      * @param net the net that should be simulated
      */
     public SimulationMultiple(Net net) {
+        this(net, FutureEventList.Kind.HEAP);
+    }
+
+    /**
+     * Create a new object that can simulate the net in input multiple times
+     * using the kind of future event list passed for each run.
+     * The net is compiled once here and shared by all the runs.
+     * 
+     * @param net the net that should be simulated
+     * @param fel the kind of future event list to use
+     * @throws NullPointerException if the kind of list is null
+     */
+    public SimulationMultiple(Net net, FutureEventList.Kind fel) {
+        if (fel == null)
+            throw new NullPointerException("Future event list kind can't be null");
+
         var nodes = new ArrayList<String>();
         for (var node : net)
             nodes.add(node.name);
 
-        this.net = net;
+        this.net = net.compile();
         this.nodes = nodes.toArray(new String[0]);
+        this.fel = fel;
     }
 
     /**
      * Run the simualtion multiple times with the given seed and number of runs.
-     * The runs are calculated one after the other. For a parallel run see
+     * The runs are calculated one after the other by the same simulation, that is
+     * reset before each of them. For a parallel run see
      * {@link #runParallel(long, int, EndCriteria...)}.
      * 
      * @param seed      The seed to use for the random number generator.
@@ -47,19 +81,103 @@ public class SimulationMultiple {
         var rngs = Rng.getMultipleStreams(seed, runs);
         var result = new Result.Summary(rngs[0].getSeed(), nodes);
 
+        var sim = new Simulation(this.net, rngs[0], this.fel, criterias);
+        for (int i = 0; i < runs; i++) {
+            if (i > 0)
+                sim.reset(rngs[i]);
+            var res = sim.run();
+            result.add(res);
+        }
+        return result;
+    }
+
+    /**
+     * Run the simulation multiple times with the given seed and number of runs,
+     * each one with the counter-based generators of its replication, as in
+     * {@link Simulation#Simulation(CompiledNet, long, long, FutureEventList.Kind, EndCriteria...)}.
+     * The runs are calculated one after the other as in
+     * {@link #run(long, int, EndCriteria...)}, but the numbers drawn by each node
+     * for its service, routing and unavailable times depend only on the seed, the
+     * run and the node, so two nets run with the same seed use the same numbers
+     * in the nodes with the same index, and their results can be compared with
+     * common random numbers.
+     * 
+     * @param seed      The seed to use for the random number generators.
+     * @param runs      The number of runs to perform.
+     * @param criterias The criteria to determine when to end the simulation. If
+     *                  null then the simulation will run until there are no more
+     *                  events.
+     * @return The statistics the network.
+     */
+    public Result.Summary runCounterBased(long seed, int runs, EndCriteria... criterias) {
+        var result = new Result.Summary(seed, nodes);
+
+        var sim = new Simulation(this.net, seed, 0, this.fel, criterias);
         for (int i = 0; i < runs; i++) {
-            var sim = new Simulation(this.net, rngs[i], criterias);
+            if (i > 0)
+                sim.reset(seed, i);
             var res = sim.run();
             result.add(res);
         }
         return result;
     }
 
+    /**
+     * Run the simulation multiple times with the given seed and number of runs,
+     * all of them starting from the same state reached by a warm-up.
+     * The warm-up is simulated only once, until its criteria are met, then its
+     * state is saved and each run restores it and continues with its own stream
+     * of the generator, as explained in {@link Simulation#fork(Rng)}. The
+     * statistics of the runs are only the ones after the warm-up, and their time
+     * starts from it. This saves the time of the warm-up of each run, when the
+     * runs have to measure the steady state of the net.
+     * 
+     * @param seed      The seed to use for the random number generator.
+     * @param runs      The number of runs to perform.
+     * @param warmup    The criteria to determine when the warm-up ends.
+     * @param criterias The criteria to determine when to end each run, counted
+     *                  from the end of the warm-up. If null then the simulation
+     *                  will run until there are no more events.
+     * @return The statistics the network.
+     * @throws NullPointerException if the warm-up criteria is null
+     */
+    public Result.Summary runWarm(long seed, int runs, EndCriteria warmup, EndCriteria... criterias) {
+        if (warmup == null)
+            throw new NullPointerException("The warm-up criteria can't be null");
+
+        // the first stream is only for the warm-up
+        var rngs = Rng.getMultipleStreams(seed, runs + 1);
+        var warm = new Simulation(this.net, rngs[0], this.fel, warmup);
+        warm.run();
+
+        var snapshot = new ByteArrayOutputStream();
+        try {
+            warm.save(snapshot);
+            var bytes = snapshot.toByteArray();
+            var result = new Result.Summary(rngs[0].getSeed(), nodes);
+            var sim = new Simulation(this.net, rngs[1], this.fel, criterias);
+            for (int i = 0; i < runs; i++) {
+                sim.restore(new ByteArrayInputStream(bytes));
+                sim.fork(rngs[i + 1]);
+                result.add(sim.run());
+            }
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // never thrown by the streams in memory
+        }
+    }
+
     /**
      * Runs the simulation multiple times with the given seed and number of runs.
      * The runs are calculated in parallel using the given number of threads.
      * The maximum number of threads are determined by the available processors
      * and the number of runs.
+     * Each thread reuses its own simulation and takes the runs in contiguous
+     * chunks: the first chunk is a single run, then the size of the chunk is
+     * chosen from the time that the runs of that thread took so far, so that
+     * short runs are grouped together while the long ones are still spread
+     * between the threads. The results are then added in the order of the runs,
+     * so they are the same of {@link #run(long, int, EndCriteria...)}.
      * 
      * @param seed      The seed to use for the random number generator.
      * @param runs      The number of runs to perform.
@@ -73,29 +191,283 @@ public class SimulationMultiple {
     public Result.Summary runParallel(long seed, int runs, EndCriteria... criterias)
             throws InterruptedException, ExecutionException {
         var rngs = Rng.getMultipleStreams(seed, runs);
-        var futures = new Future[runs];
+        var results = new Result[runs];
+        var next = new AtomicInteger(0);
 
         var numThreads = Math.min(runs, Runtime.getRuntime().availableProcessors());
+        var futures = new Future[numThreads];
         try (var threads = Executors.newFixedThreadPool(numThreads)) {
-            var results = new Result.Summary(rngs[0].getSeed(), nodes);
+            for (int i = 0; i < numThreads; i++)
+                futures[i] = threads.submit(() -> this.runChunks(rngs, results, next, numThreads, criterias));
+            for (var future : futures)
+                future.get();
+        }
 
-            for (int i = 0; i < runs; i++) {
-                final var id = i;
-                futures[i] = threads.submit(() -> {
-                    var sim = new Simulation(this.net, rngs[id], criterias);
-                    return sim.run();
-                });
-            }
+        var summary = new Result.Summary(rngs[0].getSeed(), nodes);
+        for (var res : results)
+            summary.add(res);
+        return summary;
+    }
 
-            for (var i = 0; i < runs; i++) {
-                var res = (Result) futures[i].get();
-                results.add(res);
+    /**
+     * The work of one thread of {@link #runParallel(long, int, EndCriteria...)}.
+     * The runs are claimed in chunks from the shared counter until there are no
+     * more, and each result is saved at the position of its run.
+     */
+    private Void runChunks(Rng[] rngs, Result[] results, AtomicInteger next, int numThreads,
+            EndCriteria[] criterias) {
+        var runs = results.length;
+        var sim = (Simulation) null;
+        var chunk = 1;
+        var done = 0;
+        var elapsed = 0L;
+
+        while (true) {
+            var start = next.getAndAdd(chunk);
+            if (start >= runs)
+                return null;
+
+            var end = Math.min(runs, start + chunk);
+            var begin = System.nanoTime();
+            for (var i = start; i < end; i++) {
+                if (sim == null)
+                    sim = new Simulation(this.net, rngs[i], this.fel, criterias);
+                else
+                    sim.reset(rngs[i]);
+                results[i] = sim.run();
             }
+            elapsed += System.nanoTime() - begin;
+            done += end - start;
 
-            return results;
+            // enough runs to fill the time of a chunk, but leave some for the others
+            var cost = Math.max(1L, elapsed / done);
+            var left = Math.max(0, runs - next.get());
+            var fair = Math.max(1L, left / (2L * numThreads));
+            chunk = (int) Math.max(1L, Math.min(CHUNK_NANOS / cost, fair));
         }
     }
 
+    /**
+     * Run the simulation multiple times with the given seed and number of runs,
+     * using a {@link LindleySimulation} if the net is a feed-forward net of single
+     * servers and there are no end criteria, since it does not need any future
+     * event list. Otherwise it is the same of
+     * {@link #run(long, int, EndCriteria...)}.
+     * Note that the random numbers are used in another order, so the results are
+     * different from the ones of the other methods, even if they come from the
+     * same model.
+     * 
+     * @param seed      The seed to use for the random number generator.
+     * @param runs      The number of runs to perform.
+     * @param criterias The criteria to determine when to end the simulation. If
+     *                  null then the simulation will run until there are no more
+     *                  events.
+     * @return The statistics the network.
+     */
+    public Result.Summary runFeedForward(long seed, int runs, EndCriteria... criterias) {
+        if ((criterias != null && criterias.length > 0) || !LindleySimulation.supports(this.net))
+            return this.run(seed, runs, criterias);
+
+        var rngs = Rng.getMultipleStreams(seed, runs);
+        var result = new Result.Summary(rngs[0].getSeed(), nodes);
+        var engine = new LindleySimulation(this.net);
+
+        for (int i = 0; i < runs; i++)
+            result.add(engine.run(rngs[i]));
+        return result;
+    }
+
+    /**
+     * Run the simulation multiple times with the given seed and number of runs,
+     * advancing many runs at once with a {@link LockstepTandem} if the net is a
+     * tandem line and there are no end criteria. The runs are grouped in batches
+     * of {@link #LANES}, each batch uses one lane for each run.
+     * Otherwise it is the same of {@link #run(long, int, EndCriteria...)}.
+     * Note that with the lanes the random numbers are used in another order, so
+     * the results are different from the ones of the other methods, even if they
+     * come from the same model.
+     * 
+     * @param seed      The seed to use for the random number generator.
+     * @param runs      The number of runs to perform.
+     * @param criterias The criteria to determine when to end the simulation. If
+     *                  null then the simulation will run until there are no more
+     *                  events.
+     * @return The statistics the network.
+     */
+    public Result.Summary runLockstep(long seed, int runs, EndCriteria... criterias) {
+        if ((criterias != null && criterias.length > 0) || !LockstepTandem.supports(this.net))
+            return this.run(seed, runs, criterias);
+
+        var rngs = Rng.getMultipleStreams(seed, runs);
+        var result = new Result.Summary(rngs[0].getSeed(), nodes);
+        var engine = new LockstepTandem(this.net);
+
+        for (var start = 0; start < runs; start += LANES) {
+            var batch = Arrays.copyOfRange(rngs, start, Math.min(runs, start + LANES));
+            for (var res : engine.run(batch))
+                result.add(res);
+        }
+        return result;
+    }
+
+    /**
+     * Run the simulation multiple times with the given seed and number of runs,
+     * using a {@link PipelineSimulation} if the net is a feed-forward net of single
+     * servers and there are no end criteria. The runs are done one after the
+     * other, but each one uses all the threads available, with the nodes working
+     * as the stages of a pipeline. This is useful when the runs are few and long.
+     * Otherwise it is the same of {@link #run(long, int, EndCriteria...)}.
+     * Each node of each run uses its own counter-based {@link Philox} stream, the
+     * one of its run and index for the {@link Philox.Purpose#SERVICE}, so the
+     * streams never overlap, thus the results are different from the ones of the
+     * other methods, even if they come from the same model.
+     * 
+     * @param seed      The seed to use for the random number generator.
+     * @param runs      The number of runs to perform.
+     * @param criterias The criteria to determine when to end the simulation. If
+     *                  null then the simulation will run until there are no more
+     *                  events.
+     * @return The statistics the network.
+     * @throws InterruptedException If the threads are interrupted.
+     * @throws ExecutionException   If the one of the threads has been aborted.
+     */
+    public Result.Summary runPipeline(long seed, int runs, EndCriteria... criterias)
+            throws InterruptedException, ExecutionException {
+        if ((criterias != null && criterias.length > 0) || !LindleySimulation.supports(this.net))
+            return this.run(seed, runs, criterias);
+
+        var threads = Runtime.getRuntime().availableProcessors();
+        var size = this.net.size();
+        var result = new Result.Summary(seed, nodes);
+        var engine = new PipelineSimulation(this.net, threads);
+
+        for (int i = 0; i < runs; i++) {
+            var streams = new RandomStream[size];
+            for (var j = 0; j < size; j++)
+                streams[j] = new Philox(seed, i, j, Philox.Purpose.SERVICE);
+            result.add(engine.run(streams));
+        }
+        return result;
+    }
+
+    /**
+     * Run the simulation multiple times with the given seed and number of runs,
+     * using a {@link ConservativeSimulation} if the net ends by itself and there
+     * are no end criteria. The runs are done one after the other, but each one
+     * uses all the threads available, one for each group of nodes. This is
+     * useful when the runs are few and the net is large.
+     * Otherwise it is the same of {@link #run(long, int, EndCriteria...)}.
+     * Each node of each run uses its own counter-based {@link Philox} stream, as
+     * in {@link #runPipeline(long, int, EndCriteria...)}, so the streams never
+     * overlap, thus the results are different from the ones of the other methods,
+     * even if they come from the same model.
+     * 
+     * @param seed      The seed to use for the random number generator.
+     * @param runs      The number of runs to perform.
+     * @param criterias The criteria to determine when to end the simulation. If
+     *                  null then the simulation will run until there are no more
+     *                  events.
+     * @return The statistics the network.
+     * @throws InterruptedException If the threads are interrupted.
+     * @throws ExecutionException   If the one of the threads has been aborted.
+     */
+    public Result.Summary runConservative(long seed, int runs, EndCriteria... criterias)
+            throws InterruptedException, ExecutionException {
+        if ((criterias != null && criterias.length > 0) || !ConservativeSimulation.supports(this.net))
+            return this.run(seed, runs, criterias);
+
+        var threads = Runtime.getRuntime().availableProcessors();
+        var size = this.net.size();
+        var result = new Result.Summary(seed, nodes);
+        var engine = new ConservativeSimulation(this.net, threads);
+
+        for (int i = 0; i < runs; i++) {
+            var streams = new RandomStream[size];
+            for (var j = 0; j < size; j++)
+                streams[j] = new Philox(seed, i, j, Philox.Purpose.SERVICE);
+            result.add(engine.run(streams));
+        }
+        return result;
+    }
+
+    /**
+     * Run the simulation multiple times with the given seed and number of runs,
+     * using an {@link OptimisticSimulation} if the net ends by itself and there
+     * are no end criteria. It is the same of
+     * {@link #runConservative(long, int, EndCriteria...)}, but the groups of nodes
+     * do not wait for each other and go back in time when needed, so it is
+     * better when the nodes rarely send requests to the other groups.
+     * The results are the same of the conservative engine, since the streams of
+     * the nodes are taken in the same way.
+     * 
+     * @param seed      The seed to use for the random number generator.
+     * @param runs      The number of runs to perform.
+     * @param criterias The criteria to determine when to end the simulation. If
+     *                  null then the simulation will run until there are no more
+     *                  events.
+     * @return The statistics the network.
+     * @throws InterruptedException If the threads are interrupted.
+     * @throws ExecutionException   If the one of the threads has been aborted.
+     */
+    public Result.Summary runOptimistic(long seed, int runs, EndCriteria... criterias)
+            throws InterruptedException, ExecutionException {
+        if ((criterias != null && criterias.length > 0) || !OptimisticSimulation.supports(this.net))
+            return this.run(seed, runs, criterias);
+
+        var threads = Runtime.getRuntime().availableProcessors();
+        var size = this.net.size();
+        var result = new Result.Summary(seed, nodes);
+        var engine = new OptimisticSimulation(this.net, threads);
+
+        for (int i = 0; i < runs; i++) {
+            var streams = new RandomStream[size];
+            for (var j = 0; j < size; j++)
+                streams[j] = new Philox(seed, i, j, Philox.Purpose.SERVICE);
+            result.add(engine.run(streams));
+        }
+        return result;
+    }
+
+    /**
+     * Run the simulation multiple times with the given seed and number of runs,
+     * each one until the horizon passed as with {@link EndCriteria.MaxTime}, using
+     * a {@link TimeParallelSimulation} if the net has only infinite sources.
+     * The runs are done one after the other, but the time of each one is split in
+     * the segments passed, run in parallel by the threads available. This is
+     * useful when the runs are few and very long, and the net has a moderate load.
+     * Otherwise it is the same of {@link #run(long, int, EndCriteria...)}.
+     * Each segment of each run uses its own counter-based {@link Philox}
+     * streams, so the segments never share their numbers however long they are.
+     * The results of the segments are joined only when their states match, so
+     * they are an approximation of the ones of
+     * {@link #runCounterBased(long, int, EndCriteria...)} with the same horizon;
+     * with only one segment they are the same. The results depend on the
+     * segments, but not on the threads of the machine.
+     * 
+     * @param seed     The seed to use for the random number generators.
+     * @param runs     The number of runs to perform.
+     * @param horizon  The time when each run ends.
+     * @param segments The number of segments of each run.
+     * @return The statistics the network.
+     * @throws IllegalArgumentException If the segments are less than 1 or the runs
+     *                                  times the segments are more than
+     *                                  {@link Philox#MAX_REPLICATIONS}.
+     * @throws InterruptedException If the threads are interrupted.
+     * @throws ExecutionException   If the one of the threads has been aborted.
+     */
+    public Result.Summary runTimeParallel(long seed, int runs, double horizon, int segments)
+            throws InterruptedException, ExecutionException {
+        if (!TimeParallelSimulation.supports(this.net))
+            return this.run(seed, runs, new EndCriteria.MaxTime(horizon));
+
+        var engine = new TimeParallelSimulation(this.net, horizon, segments);
+        var result = new Result.Summary(seed, nodes);
+
+        for (int i = 0; i < runs; i++)
+            result.add(engine.run(seed, i));
+        return result;
+    }
+
     /**
      * Run the simulation multiple times with the given seed and end criteria. The
      * simulation runs will stop when the relative error of the confidence index is
@@ -123,8 +495,10 @@ public class SimulationMultiple {
         var output = new StringBuilder();
         var stop = false;
 
+        var sim = new Simulation(this.net, rng, this.fel, criterias);
         for (int i = 0; !stop && runs > i; i++) {
-            var sim = new Simulation(this.net, rng, criterias);
+            if (i > 0)
+                sim.reset(rng);
             var result = sim.run();
             results.add(result);
 
@@ -0,0 +1,385 @@
+package net.berack.upo.valpre.sim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.berack.upo.valpre.rand.Philox;
+import net.berack.upo.valpre.sim.stats.NodeStats;
+import net.berack.upo.valpre.sim.stats.Result;
+
+/**
+ * An engine that runs a single long replication of a net on many threads, by
+ * splitting its time in segments (time-parallel simulation).
+ * The time from 0 to the horizon is split in segments of the same length, and
+ * each one is simulated by its own thread with its own random number generators.
+ * In the first pass every segment starts from a guess of the state at its
+ * start: the empty net, with only the sources serving their first request.
+ * Then, in each pass of the fix-up, the segments that started from a state
+ * different from the one at the end of the previous segment are run again from
+ * that state, all of them in parallel, until every segment starts where the
+ * previous one ended. The first segment always starts from the right state, so
+ * the passes are at most as many as the segments, and they are few when the
+ * states match often, as in the nets with a moderate load where most of the
+ * nodes are often empty.
+ * Two states match when all the nodes have the same number of busy servers,
+ * unavailable servers and requests in the queue, while the times of their
+ * events can be different. The results are then an approximation of a single
+ * run, good for the long runs that look for the steady state, where what
+ * happened before the start of a segment is forgotten quickly.
+ * Each node of each segment uses the counter-based {@link Philox} streams of
+ * its own replication, one for each purpose, so the segments never share their
+ * numbers, however many of them they draw, and a segment that runs again draws
+ * the same ones. With only one segment the results are the same of a
+ * {@link Simulation} with the counter-based generators of the same replication
+ * that ends with {@link EndCriteria.MaxTime}.
+ * Only the nets with sources of infinite arrivals are supported, since the
+ * arrivals of a limited source depend on all the previous segments.
+ * An object of this class keeps the counters of its last run, so it must not
+ * run on many threads at once.
+ */
+public final class TimeParallelSimulation {
+    private final CompiledNet net;
+    private final double horizon;
+    private final int segments;
+    private int passes = 0;
+    private int runs = 0;
+
+    /**
+     * Create the engine for the net passed.
+     *
+     * @param net      the compiled net
+     * @param horizon  the time when the simulation ends, as in
+     *                 {@link EndCriteria.MaxTime}
+     * @param segments the number of segments, run by a thread each up to the
+     *                 processors available
+     * @throws IllegalArgumentException if the net has limited sources, the
+     *                                  horizon is not positive or the segments
+     *                                  are less than 1
+     * @see #supports(CompiledNet)
+     */
+    public TimeParallelSimulation(CompiledNet net, double horizon, int segments) {
+        if (!supports(net))
+            throw new IllegalArgumentException("The net must have only sources with infinite arrivals");
+        if (!(horizon > 0.0d) || horizon == Double.POSITIVE_INFINITY)
+            throw new IllegalArgumentException("The horizon must be a positive time");
+        if (segments < 1)
+            throw new IllegalArgumentException("At least one segment is needed");
+
+        this.net = net;
+        this.horizon = horizon;
+        this.segments = segments;
+    }
+
+    /**
+     * Check if the net passed can be run by this engine, that is if all its
+     * sources spawn an infinite number of arrivals.
+     *
+     * @param net the compiled net
+     * @return true if the net has no limited sources
+     */
+    public static boolean supports(CompiledNet net) {
+        for (var node = 0; node < net.size(); node++)
+            if (net.getSpawnArrivals(node) > 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Run the net until the horizon.
+     * The segments of the replication passed use the {@link Philox} streams of
+     * the replications from {@code replication * segments} on, one for each
+     * segment in order.
+     *
+     * @param seed        the seed of the generators
+     * @param replication the index of the replication
+     * @return the statistics of the run
+     * @throws IllegalArgumentException if the replications of the segments are
+     *                                  not valid for {@link Philox}
+     * @throws InterruptedException     If the threads are interrupted.
+     * @throws ExecutionException       If the one of the threads has been aborted.
+     */
+    public Result run(long seed, long replication) throws InterruptedException, ExecutionException {
+        if (replication < 0 || replication >= Philox.MAX_REPLICATIONS / this.segments)
+            throw new IllegalArgumentException("The replications of the segments must be less than "
+                    + Philox.MAX_REPLICATIONS);
+
+        var timeStartedNano = System.nanoTime();
+        var all = new Segment[this.segments];
+        for (var i = 0; i < this.segments; i++) {
+            var from = this.horizon * i / this.segments;
+            var to = this.horizon * (i + 1) / this.segments;
+            all[i] = new Segment(from, to, i == this.segments - 1, seed, replication * this.segments + i);
+        }
+
+        var threads = Math.min(this.segments, Runtime.getRuntime().availableProcessors());
+        try (var executor = Executors.newFixedThreadPool(threads)) {
+            this.passes = 1;
+            this.runs = this.segments;
+            runAll(executor, Arrays.asList(all));
+
+            var fixed = 1;
+            while (true) {
+                while (fixed < this.segments && all[fixed].startsAfter(all[fixed - 1]))
+                    fixed += 1;
+                if (fixed == this.segments)
+                    break;
+
+                // the snapshots are taken before any of the segments runs again
+                var pending = new ArrayList<Segment>();
+                for (var i = fixed; i < this.segments; i++) {
+                    if (!all[i].startsAfter(all[i - 1])) {
+                        all[i].restartFrom(all[i - 1]);
+                        pending.add(all[i]);
+                    }
+                }
+
+                this.passes += 1;
+                this.runs += pending.size();
+                runAll(executor, pending);
+            }
+        }
+
+        var elapsed = System.nanoTime() - timeStartedNano;
+        var builder = new Result.Builder();
+        for (var node = 0; node < this.net.size(); node++) {
+            var stats = new NodeStats();
+            var updated = false;
+            for (var segment : all)
+                updated |= segment.states.addStats(node, stats);
+            if (updated)
+                stats.updateDerived(stats.lastEventTime);
+            builder.addNode(this.net.getNode(node).name, stats);
+        }
+
+        var time = all[this.segments - 1].time;
+        return builder.seed(seed).times(time, elapsed * 1e-6).build();
+    }
+
+    /**
+     * Get the number of passes done in the last run, the first one included.
+     *
+     * @return the number of passes
+     */
+    public int getPasses() {
+        return this.passes;
+    }
+
+    /**
+     * Get the number of times a segment was run in the last run, counting all
+     * the passes. The work done in parallel is this number of segments.
+     *
+     * @return the number of segments run
+     */
+    public int getSegmentRuns() {
+        return this.runs;
+    }
+
+    /**
+     * Run all the segments passed on the threads of the executor and wait for
+     * them to end.
+     */
+    private static void runAll(ExecutorService executor, Iterable<Segment> segments)
+            throws InterruptedException, ExecutionException {
+        var futures = new ArrayList<Future<Void>>();
+        for (var segment : segments)
+            futures.add(executor.submit((Callable<Void>) segment::run));
+        for (var future : futures)
+            future.get();
+    }
+
+    /**
+     * A segment of time with its own state of the net, that can start from the
+     * empty net or from the state at the end of another segment.
+     */
+    private final class Segment {
+        final NodeStateArrays states;
+        double time;
+
+        private final double from;
+        private final double to;
+        private final boolean last;
+        private final Philox[] service;
+        private final Philox[] routing;
+        private final Philox[] unavailable;
+        private final EventHeap fel = new EventHeap();
+        private final ArrivalSlots arrivals;
+        private byte[] start = null;
+        private byte[] end = null;
+        private int[] startShape;
+        private int[] endShape;
+
+        Segment(double from, double to, boolean last, long seed, long replication) {
+            var net = TimeParallelSimulation.this.net;
+            this.states = new NodeStateArrays(net);
+            this.arrivals = new ArrivalSlots(net);
+            this.from = from;
+            this.to = to;
+            this.last = last;
+            this.service = new Philox[net.size()];
+            this.routing = new Philox[net.size()];
+            this.unavailable = new Philox[net.size()];
+            for (var index = 0; index < net.size(); index++) {
+                this.service[index] = new Philox(seed, replication, index, Philox.Purpose.SERVICE);
+                this.routing[index] = new Philox(seed, replication, index, Philox.Purpose.ROUTING);
+                this.unavailable[index] = new Philox(seed, replication, index, Philox.Purpose.UNAVAILABLE);
+            }
+            this.startShape = new int[net.size() * 3];
+            this.endShape = new int[net.size() * 3];
+        }
+
+        /**
+         * Check if this segment started from the same state in which the one
+         * passed ended.
+         */
+        boolean startsAfter(Segment previous) {
+            return Arrays.equals(this.startShape, previous.endShape);
+        }
+
+        /**
+         * Make this segment start from the state at the end of the one passed the
+         * next time it runs.
+         */
+        void restartFrom(Segment previous) {
+            this.start = previous.end;
+            this.startShape = previous.endShape;
+        }
+
+        /**
+         * Simulate the events of the segment, from its starting state.
+         * The events at the end of the segment belong to the next one, while the
+         * last segment also processes the first event after the horizon, as
+         * {@link Simulation} does with {@link EndCriteria.MaxTime}.
+         */
+        Void run() {
+            var states = this.states;
+            var fel = this.fel;
+            var arrivals = this.arrivals;
+            this.time = this.from;
+
+            // each run draws the same numbers from the start of the streams
+            for (var index = 0; index < TimeParallelSimulation.this.net.size(); index++) {
+                this.service[index].setPosition(0);
+                this.routing[index].setPosition(0);
+                this.unavailable[index].setPosition(0);
+            }
+
+            if (this.start == null) {
+                states.clear();
+                fel.clear();
+                arrivals.clear();
+                for (var index = 0; index < TimeParallelSimulation.this.net.size(); index++)
+                    if (states.shouldSpawnArrival(index))
+                        this.addSelfArrival(index, this.from);
+
+                // a better guess: the sources are already serving, while the first
+                // segment starts as the sequential simulation does
+                while (this.from > 0.0d && !arrivals.isEmpty()) {
+                    var index = arrivals.peekNode();
+                    arrivals.remove();
+                    this.arrival(index);
+                }
+            } else {
+                try (var in = new DataInputStream(new ByteArrayInputStream(this.start))) {
+                    states.read(in, 0, TimeParallelSimulation.this.net.size());
+                    fel.read(in);
+                    arrivals.read(in);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                states.clearStats();
+            }
+
+            this.startShape = new int[this.startShape.length];
+            states.copyShape(this.startShape);
+
+            while (!fel.isEmpty() || !arrivals.isEmpty()) {
+                var fromArrivals = !arrivals.isEmpty() && (fel.isEmpty() || arrivals.peekTime() <= fel.peekTime());
+                var next = fromArrivals ? arrivals.peekTime() : fel.peekTime();
+                if (!this.last && next >= this.to)
+                    break;
+
+                this.time = next;
+                if (fromArrivals) {
+                    var index = arrivals.peekNode();
+                    arrivals.remove();
+                    this.arrival(index);
+                } else {
+                    var type = fel.peekType();
+                    var index = fel.peekNode();
+                    fel.remove();
+                    switch (type) {
+                        case AVAILABLE -> {
+                            states.updateAvailable(index, next);
+                            this.spawnDepartureIfPossible(index);
+                        }
+                        case ARRIVAL -> this.arrival(index);
+                        case DEPARTURE -> this.departure(index);
+                    }
+                }
+
+                if (this.last && this.time >= this.to)
+                    break;
+            }
+
+            var bytes = new ByteArrayOutputStream();
+            try (var out = new DataOutputStream(bytes)) {
+                states.write(out, 0, TimeParallelSimulation.this.net.size());
+                fel.write(out);
+                arrivals.write(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            this.end = bytes.toByteArray();
+            this.endShape = new int[this.endShape.length];
+            states.copyShape(this.endShape);
+            return null;
+        }
+
+        private void arrival(int index) {
+            this.states.updateArrival(index, this.time);
+            this.spawnDepartureIfPossible(index);
+        }
+
+        private void departure(int index) {
+            var states = this.states;
+            states.updateDeparture(index, this.time);
+
+            if (states.canBeUnavailable(index)) {
+                var unavailable = states.startUnavailableIfPossible(index, this.unavailable[index]);
+                if (unavailable > 0)
+                    this.fel.add(Event.Type.AVAILABLE, index, this.time + unavailable);
+            }
+
+            this.spawnDepartureIfPossible(index);
+            if (states.shouldSpawnArrival(index))
+                this.addSelfArrival(index, this.time);
+
+            var child = states.getRandomChild(index, this.routing[index]);
+            if (child > -1 && !states.isQueueFull(child))
+                this.fel.add(Event.Type.ARRIVAL, child, this.time);
+        }
+
+        private void spawnDepartureIfPossible(int index) {
+            var delay = this.states.startServiceIfPossible(index, this.service[index]);
+            if (delay >= 0)
+                this.fel.add(Event.Type.DEPARTURE, index, this.time + delay);
+        }
+
+        private void addSelfArrival(int index, double time) {
+            if (!this.arrivals.offer(index, time))
+                this.fel.add(Event.Type.ARRIVAL, index, time);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package net.berack.upo.valpre.sim;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A future event list that keeps the events of each node separated.
+ * Every node has its own small {@link EventHeap} with its pending events, and
+ * the next event of each node is compared with the others by an indexed
+ * tournament tree, where each internal position saves the node with the lower
+ * time between its two children.
+ * Since a node can only have a few events pending at once (at most one
+ * departure for each server, one arrival to itself and the end of the
+ * unavailability of its servers), the cost of each operation depends mostly on
+ * the logarithm of the number of nodes and not on the number of events.
+ * When two nodes have their next event at the same time, the one with the
+ * lower index is extracted first.
+ */
+public final class TournamentScheduler implements FutureEventList {
+    private final EventHeap[] heaps;
+    private final double[] keys;
+    private final int[] tree;
+    private final int leaves;
+    private int size = 0;
+
+    /**
+     * Create a new empty scheduler for the given number of nodes.
+     *
+     * @param nodes the number of nodes of the net
+     * @throws IllegalArgumentException if the number of nodes is negative
+     */
+    public TournamentScheduler(int nodes) {
+        if (nodes < 0)
+            throw new IllegalArgumentException("Nodes must be >= 0");
+
+        var leaves = 2;
+        while (leaves < nodes)
+            leaves <<= 1;
+
+        this.leaves = leaves;
+        this.keys = new double[leaves];
+        this.tree = new int[leaves];
+        Arrays.fill(this.keys, Double.POSITIVE_INFINITY);
+        this.heaps = new EventHeap[nodes];
+        for (var i = 0; i < nodes; i++)
+            this.heaps[i] = new EventHeap(4);
+
+        for (var k = leaves - 1; k > 0; k--)
+            this.tree[k] = this.play(k);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void add(Event.Type type, int node, double time) {
+        this.heaps[node].add(type, node, time);
+        this.size += 1;
+
+        if (time < this.keys[node]) {
+            this.keys[node] = time;
+            this.replay(node);
+        }
+    }
+
+    @Override
+    public double peekTime() {
+        return this.heaps[this.winner()].peekTime();
+    }
+
+    @Override
+    public Event.Type peekType() {
+        return this.heaps[this.winner()].peekType();
+    }
+
+    @Override
+    public int peekNode() {
+        return this.winner();
+    }
+
+    @Override
+    public void remove() {
+        var node = this.winner();
+        var heap = this.heaps[node];
+        heap.remove();
+        this.size -= 1;
+
+        this.keys[node] = heap.isEmpty() ? Double.POSITIVE_INFINITY : heap.peekTime();
+        this.replay(node);
+    }
+
+    @Override
+    public void clear() {
+        for (var heap : this.heaps)
+            heap.clear();
+        Arrays.fill(this.keys, Double.POSITIVE_INFINITY);
+        for (var k = this.leaves - 1; k > 0; k--)
+            this.tree[k] = this.play(k);
+        this.size = 0;
+    }
+
+    @Override
+    public List<Event> toList() {
+        var list = new ArrayList<Event>(this.size);
+        for (var heap : this.heaps)
+            list.addAll(heap.toList());
+        return list;
+    }
+
+    /**
+     * Write the heaps of all the nodes as they are saved, so that reading them
+     * gives back the same scheduler.
+     *
+     * @param out where to write
+     * @throws IOException if the output fails
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        for (var heap : this.heaps)
+            heap.write(out);
+    }
+
+    /**
+     * Replace the events of the scheduler with the ones written by
+     * {@link #write(DataOutput)} by a scheduler for the same number of nodes.
+     *
+     * @param in where to read
+     * @throws IOException if the input fails
+     */
+    @Override
+    public void read(DataInput in) throws IOException {
+        this.size = 0;
+        for (var node = 0; node < this.heaps.length; node++) {
+            var heap = this.heaps[node];
+            heap.read(in);
+            this.size += heap.size();
+            this.keys[node] = heap.isEmpty() ? Double.POSITIVE_INFINITY : heap.peekTime();
+        }
+        for (var k = this.leaves - 1; k > 0; k--)
+            this.tree[k] = this.play(k);
+    }
+
+    /**
+     * Get the node that has the next event.
+     *
+     * @throws NoSuchElementException if there are no events
+     */
+    private int winner() {
+        if (this.size == 0)
+            throw new NoSuchElementException("No events in the scheduler");
+        return this.tree[1];
+    }
+
+    /**
+     * Update the tree from the leaf of the node to the root, after its next event
+     * has changed.
+     */
+    private void replay(int node) {
+        for (var k = (this.leaves + node) >> 1; k > 0; k >>= 1)
+            this.tree[k] = this.play(k);
+    }
+
+    /**
+     * Get the node that wins between the two children of the position passed.
+     */
+    private int play(int k) {
+        var left = this.nodeAt(k << 1);
+        var right = this.nodeAt((k << 1) + 1);
+        return this.keys[left] <= this.keys[right] ? left : right;
+    }
+
+    /**
+     * Get the node saved at the position of the tree passed.
+     */
+    private int nodeAt(int k) {
+        return k >= this.leaves ? k - this.leaves : this.tree[k];
+    }
+}
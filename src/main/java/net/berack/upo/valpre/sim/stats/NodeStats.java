@@ -81,14 +81,24 @@ public class NodeStats implements Cloneable, Iterable<Double> {
         else if (serverUnavailable == maxServers)
             this.unavailableTime += time - this.lastEventTime;
 
+        this.updateDerived(time);
+        this.lastEventTime = time;
+    }
+
+    /**
+     * Calculates the derived stats (wait time, average wait time and response
+     * time, throughput, utilization and unavailability) from the other ones, as
+     * if the last event happened at the time passed.
+     *
+     * @param time The time of the last event.
+     */
+    public void updateDerived(double time) {
         this.waitTime = this.responseTime - this.busyTime;
         this.avgWaitTime = this.waitTime / this.numDepartures;
         this.avgResponse = this.responseTime / this.numDepartures;
         this.throughput = this.numDepartures / time;
         this.utilization = this.busyTime / time;
         this.unavailable = this.unavailableTime / time;
-
-        this.lastEventTime = time;
     }
 
     /**
@@ -3,8 +3,11 @@ package net.berack.upo.valpre.rand;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.lang.foreign.MemorySegment;
 import java.util.Arrays;
+import java.util.HashSet;
 
 import org.junit.jupiter.api.Test;
 
@@ -21,7 +24,7 @@ public class TestRandom {
     @Test
     public void testRngs() {
         var rngs = Rng.getMultipleStreams(1, 200);
-        assertEquals(256, rngs.length);
+        assertEquals(200, rngs.length);
 
         var rng0 = rngs[0];
         var rng1 = rngs[1];
@@ -36,6 +39,160 @@ public class TestRandom {
         assertEquals(rng0.getSeed(), rng1.getSeed());
     }
 
+    @Test
+    public void testRngJump() {
+        assertEquals(1L, Rng.jumpMultiplier(0));
+        assertEquals(Rng.MULTIPLIER, Rng.jumpMultiplier(1));
+        assertEquals(1L, Rng.jumpMultiplier(Rng.MODULUS - 1));
+        assertEquals(Rng.MULT_128, Rng.jumpMultiplier(16775552));
+        assertEquals(Rng.MULT_256, Rng.jumpMultiplier(8367782));
+        assertEquals(Rng.MULT_512, Rng.jumpMultiplier(4170283));
+        assertEquals(Rng.MULT_1024, Rng.jumpMultiplier(2082675));
+
+        var rng = new Rng(1234);
+        var jumped = new Rng(1234);
+        for (var i = 0; i < 12345; i++)
+            rng.random();
+        jumped.jump(12345);
+        assertEquals(rng.getSeed(), jumped.getSeed());
+
+        jumped.jump(-12345);
+        assertEquals(1234L, jumped.getSeed());
+    }
+
+    @Test
+    public void testRngStreams() {
+        for (var total : new int[] { 1, 100, 128, 1000, 1024, 5000 }) {
+            var rngs = Rng.getMultipleStreams(7, total);
+            var streams = Rng.getStreams(7, total);
+            assertEquals(total, rngs.length);
+            assertEquals(total, streams.size());
+            for (var i = 0; i < total; i++)
+                assertEquals(rngs[i].getSeed(), streams.get(i).getSeed());
+        }
+
+        var streams = Rng.getStreams(7, 1_000_000);
+        var last = streams.get(999_999);
+        var stride = Rng.MODULUS / (1L << 20);
+        var expected = new Rng(7);
+        expected.jump(999_999 * stride);
+        assertEquals(expected.getSeed(), last.getSeed());
+        assertThrows(IndexOutOfBoundsException.class, () -> streams.get(1_000_000));
+        assertThrows(IndexOutOfBoundsException.class, () -> streams.get(-1));
+
+        var strided = Rng.getStreams(7, 10, 1000);
+        var rng = strided.get(0);
+        for (var i = 0; i < 1000; i++)
+            rng.random();
+        assertEquals(strided.get(1).getSeed(), rng.getSeed());
+
+        assertThrows(IllegalArgumentException.class, () -> Rng.getStreams(7, 0));
+        assertThrows(IllegalArgumentException.class, () -> Rng.getStreams(7, 10, 0));
+        assertThrows(IllegalArgumentException.class, () -> Rng.getStreams(7, 3, Rng.MODULUS / 2));
+    }
+
+    @Test
+    public void testRngFill() {
+        for (var seed : new long[] { 1, 4656, Rng.MODULUS - 1, Rng.MODULUS }) {
+            for (var length : new int[] { 0, 1, 7, 8, 9, 1000 }) {
+                var rng = new Rng(seed);
+                var expected = new Rng(seed);
+                var numbers = new double[length + 5];
+                rng.fill(numbers, 2, length + 2);
+                assertEquals(0.0, numbers[1], 0.0);
+                for (var i = 2; i < length + 2; i++)
+                    assertEquals(expected.random(), numbers[i], 0.0);
+                assertEquals(0.0, numbers[length + 2], 0.0);
+                assertEquals(expected.getSeed(), rng.getSeed());
+            }
+        }
+
+        var rng = new Rng(33);
+        var expected = new Rng(33);
+        var numbers = new double[3001];
+        rng.fill(MemorySegment.ofArray(numbers));
+        for (var number : numbers)
+            assertEquals(expected.random(), number, 0.0);
+        assertThrows(IllegalArgumentException.class, () -> rng.fill(MemorySegment.ofArray(new byte[12])));
+        assertThrows(IndexOutOfBoundsException.class, () -> rng.fill(numbers, 5, 3002));
+
+        var philox = new Philox(8, 1);
+        var expectedPhilox = new Philox(8, 1);
+        for (var length : new int[] { 1, 2, 5, 100 }) {
+            philox.fill(numbers, 0, length);
+            for (var i = 0; i < length; i++)
+                assertEquals(expectedPhilox.random(), numbers[i], 0.0);
+            assertEquals(expectedPhilox.getPosition(), philox.getPosition());
+        }
+    }
+
+    @Test
+    public void testPhilox() {
+        // known answers of the reference implementation of Philox4x32-10
+        var block = Philox.block(0L, 0L, 0L);
+        assertEquals(0xe169c58d_6627e8d5L, block[0]);
+        assertEquals(0x9b00dbd8_bc57ac4cL, block[1]);
+        block = Philox.block(-1L, -1L, -1L);
+        assertEquals(0x41c83b0e_408f276dL, block[0]);
+        assertEquals(0x6d5451fd_a20bc7c6L, block[1]);
+        block = Philox.block(0x85a308d3_243f6a88L, 0x03707344_13198a2eL, 0x299f31d0_a4093822L);
+        assertEquals(0x94fdcceb_d16cfe09L, block[0]);
+        assertEquals(0x24126ea1_5001e420L, block[1]);
+
+        // any position can be reached directly
+        var philox = new Philox(5, 2, 3, Philox.Purpose.ROUTING);
+        var numbers = new double[1001];
+        for (var i = 0; i < numbers.length; i++) {
+            numbers[i] = philox.random();
+            assertTrue(numbers[i] > 0.0 && numbers[i] < 1.0);
+        }
+        assertEquals(1001, philox.getPosition());
+        for (var position : new int[] { 0, 1, 2, 777, 1000 }) {
+            var jumped = new Philox(5, philox.getStream());
+            jumped.setPosition(position);
+            assertEquals(numbers[position], jumped.random(), 0.0);
+        }
+
+        // each replication, node and purpose has its own stream
+        var streams = new HashSet<Long>();
+        var firsts = new HashSet<Double>();
+        for (var replication = 0; replication < 3; replication++)
+            for (var node = 0; node < 3; node++)
+                for (var purpose : Philox.Purpose.values()) {
+                    var stream = new Philox(5, replication, node, purpose);
+                    streams.add(stream.getStream());
+                    firsts.add(stream.random());
+                }
+        assertEquals(27, streams.size());
+        assertEquals(27, firsts.size());
+        assertNotEquals(new Philox(5, 0).random(), new Philox(6, 0).random());
+
+        assertThrows(IllegalArgumentException.class, () -> new Philox(5, -1, 0, Philox.Purpose.SERVICE));
+        assertThrows(IllegalArgumentException.class, () -> new Philox(5, Philox.MAX_REPLICATIONS, 0, Philox.Purpose.SERVICE));
+        assertThrows(IllegalArgumentException.class, () -> new Philox(5, 0, -1, Philox.Purpose.SERVICE));
+        assertThrows(NullPointerException.class, () -> new Philox(5, 0, 0, null));
+        assertThrows(IllegalArgumentException.class, () -> philox.setPosition(-1));
+    }
+
+    @Test
+    public void testPhiloxVariance() {
+        var numbers = new int[5000];
+        var philox = new Philox(4656, 0);
+
+        for (var i = 0; i < 1000000; i++) {
+            var index = (int) (philox.random() * numbers.length);
+            numbers[index] += 1;
+        }
+
+        var avg = (double) Arrays.stream(numbers).sum() / numbers.length;
+        var variance = Arrays.stream(numbers).mapToDouble(num -> Math.pow(num - avg, 2)).sum() / numbers.length;
+        var stdDev = Math.sqrt(variance);
+        var expected = Math.sqrt((double) numbers.length / 12);
+        expected *= 1.1; // adding a bit of margin
+
+        assertTrue("Standard Dev must be less than [" + expected + "] -> [" + stdDev + "]", stdDev < expected);
+    }
+
     @Test
     public void testRngVariance() {
         var numbers = new int[5000];
@@ -56,6 +213,87 @@ public class TestRandom {
         assertTrue("Standard Dev must be less than [" + expected + "] -> [" + stdDev + "]", stdDev < expected);
     }
 
+    @Test
+    public void testDistributionBatch() {
+        Distribution lambda = rng -> rng.random() * 2;
+        var distributions = new Distribution[] {
+                new Distribution.Exponential(1.5),
+                new Distribution.Normal(3.0, 0.5),
+                new Distribution.NormalBoxMuller(3.0, 0.5),
+                new Distribution.Uniform(1.0, 4.0),
+                new Distribution.Erlang(3, 2.0),
+                new Distribution.Erlang(1, 2.0),
+                new Distribution.HyperExponential(new double[] { 1.0, 3.0 }, new double[] { 0.3, 0.7 }),
+                new Distribution.UnavailableTime(0.4, new Distribution.Exponential(2.0)),
+                lambda };
+
+        // the same samples in the same order, also when the numbers of the last
+        // samples do not fit in the array
+        for (var distribution : distributions) {
+            for (var n : new int[] { 0, 1, 2, 5, 7, 300 }) {
+                var rng = new Rng(21);
+                var expected = new Rng(21);
+                var out = new double[n + 1];
+                out[n] = -1.0;
+                distribution.sample(rng, out, n);
+                for (var i = 0; i < n; i++)
+                    assertEquals(distribution.sample(expected), out[i], 0.0);
+                assertEquals(-1.0, out[n], 0.0);
+                assertEquals(expected.getSeed(), rng.getSeed());
+            }
+            assertThrows(IndexOutOfBoundsException.class, () -> distribution.sample(new Rng(), new double[2], 3));
+        }
+
+        var standard = 0;
+        for (var distribution : distributions)
+            if (distribution instanceof Distribution.Standard)
+                standard += 1;
+        assertEquals(distributions.length - 1, standard);
+    }
+
+    @Test
+    public void testZiggurat() {
+        var rng = new Rng(17);
+        var normal = new Distribution.NormalZiggurat(2.0, 0.5);
+        var exponential = new Distribution.ExponentialZiggurat(4.0);
+        var n = 1000000;
+
+        var sum = 0.0;
+        var squares = 0.0;
+        var tail = 0;
+        for (var i = 0; i < n; i++) {
+            var z = (normal.sample(rng) - 2.0) / 0.5;
+            sum += z;
+            squares += z * z;
+            if (z < -3.5) // the tail starts at 3.44
+                tail += 1;
+        }
+        assertEquals(0.0, sum / n, 0.005);
+        assertEquals(1.0, squares / n, 0.005);
+        assertEquals(2.326e-4 * n, tail, 5 * Math.sqrt(2.326e-4 * n));
+
+        sum = 0.0;
+        squares = 0.0;
+        tail = 0;
+        for (var i = 0; i < n; i++) {
+            var x = exponential.sample(rng) * 4.0;
+            assertTrue(x >= 0.0);
+            sum += x;
+            squares += x * x;
+            if (x > 8.0) // the tail starts at 7.70
+                tail += 1;
+        }
+        assertEquals(1.0, sum / n, 0.005);
+        assertEquals(2.0, squares / n, 0.02);
+        assertEquals(Math.exp(-8.0) * n, tail, 5 * Math.sqrt(Math.exp(-8.0) * n));
+
+        // no state, so the same numbers give the same samples
+        var first = new Rng(3);
+        var second = new Rng(3);
+        for (var i = 0; i < 1000; i++)
+            assertEquals(normal.sample(first), normal.sample(second), 0.0);
+    }
+
     @Test
     public void testMean() {
         var rng = new Rng();
@@ -7,12 +7,27 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 
 import net.berack.upo.valpre.rand.Distribution;
+import net.berack.upo.valpre.rand.Philox;
+import net.berack.upo.valpre.rand.RandomStream;
 import net.berack.upo.valpre.rand.Rng;
+import net.berack.upo.valpre.sim.stats.NodeStats;
+import net.berack.upo.valpre.sim.stats.Result;
 
 public class TestSimulation {
 
@@ -89,6 +104,340 @@ public class TestSimulation {
         assertEquals(-1, event2.compareTo(event3));
     }
 
+    @Test
+    public void eventHeap() {
+        var heap = new EventHeap(1);
+        assertTrue(heap.isEmpty());
+        assertThrows(NoSuchElementException.class, () -> heap.peekTime());
+        assertThrows(NoSuchElementException.class, () -> heap.remove());
+
+        heap.add(Event.Type.DEPARTURE, 1, 8.0);
+        heap.add(Event.newArrival(0, 5.0));
+        heap.add(Event.Type.AVAILABLE, 2, 1.0);
+        heap.add(Event.Type.ARRIVAL, 3, 5.0);
+        assertEquals(4, heap.size());
+        assertEquals(4, heap.toList().size());
+
+        assertEquals(1.0, heap.peekTime(), DELTA);
+        assertEquals(Event.Type.AVAILABLE, heap.peekType());
+        assertEquals(2, heap.peekNode());
+        heap.remove();
+        assertEquals(5.0, heap.peekTime(), DELTA);
+        heap.remove();
+        assertEquals(5.0, heap.peekTime(), DELTA);
+        heap.remove();
+        assertEquals(8.0, heap.peekTime(), DELTA);
+        assertEquals(Event.Type.DEPARTURE, heap.peekType());
+        assertEquals(1, heap.peekNode());
+        heap.remove();
+        assertTrue(heap.isEmpty());
+
+        // same order of extraction of a PriorityQueue, even with equal times
+        var rng = new Rng(42);
+        var queue = new PriorityQueue<Event>();
+        for (var i = 0; i < 1000; i++) {
+            var time = Math.floor(rng.random() * 50);
+            heap.add(Event.Type.ARRIVAL, i, time);
+            queue.add(Event.newArrival(i, time));
+            if (rng.random() < 0.3) {
+                assertEquals(queue.poll().nodeIndex, heap.peekNode());
+                heap.remove();
+            }
+        }
+        while (!queue.isEmpty()) {
+            var event = queue.poll();
+            assertEquals(event.time, heap.peekTime(), DELTA);
+            assertEquals(event.nodeIndex, heap.peekNode());
+            heap.remove();
+        }
+        assertTrue(heap.isEmpty());
+    }
+
+    @Test
+    public void futureEventLists() throws IOException {
+        for (var kind : FutureEventList.Kind.values()) {
+            var fel = kind.build(20000);
+            assertTrue(fel.isEmpty());
+            assertThrows(NoSuchElementException.class, () -> fel.peekTime());
+            assertThrows(NoSuchElementException.class, () -> fel.remove());
+
+            // times spread over different scales to make the buckets change
+            var rng = new Rng(7);
+            var queue = new PriorityQueue<Event>();
+            var count = 0;
+            var now = 0.0;
+            for (var i = 0; i < 20000; i++) {
+                var scale = i < 10000 ? 10.0 : 0.01;
+                var time = now + (rng.random() < 0.2 ? 0.0 : Math.floor(rng.random() * 100) * scale);
+                fel.add(Event.Type.ARRIVAL, i, time);
+                queue.add(Event.newArrival(i, time));
+                count++;
+
+                while (rng.random() < 0.45 && !queue.isEmpty()) {
+                    var event = queue.poll();
+                    assertEquals(kind.name(), event.time, fel.peekTime(), 0.0);
+                    now = fel.peekTime();
+                    fel.remove();
+                    count--;
+                }
+                assertEquals(count, fel.size());
+            }
+            assertEquals(count, fel.toList().size());
+
+            // writing the list does not change it, and the copy read from it
+            // extracts the same events in the same order
+            var width = fel instanceof CalendarQueue calendar ? calendar.getWidth() : 0.0;
+            var bytes = new ByteArrayOutputStream();
+            fel.write(new DataOutputStream(bytes));
+            if (fel instanceof CalendarQueue calendar)
+                assertEquals(kind.name(), width, calendar.getWidth(), 0.0);
+            var copy = kind.build(20000);
+            copy.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            assertEquals(count, copy.size());
+
+            var last = -1.0;
+            var lastNode = -1;
+            while (!queue.isEmpty()) {
+                var event = queue.poll();
+                assertEquals(kind.name(), event.time, fel.peekTime(), 0.0);
+                assertEquals(kind.name(), fel.peekTime(), copy.peekTime(), 0.0);
+                assertEquals(kind.name(), fel.peekNode(), copy.peekNode());
+                copy.remove();
+                if (kind != FutureEventList.Kind.HEAP && kind != FutureEventList.Kind.TOURNAMENT
+                        && last == fel.peekTime())
+                    assertTrue(kind.name() + " must keep the order of equal times", lastNode < fel.peekNode());
+                last = fel.peekTime();
+                lastNode = fel.peekNode();
+                fel.remove();
+            }
+            assertTrue(fel.isEmpty());
+
+            fel.add(Event.Type.DEPARTURE, 3, 2.0);
+            fel.clear();
+            assertTrue(fel.isEmpty());
+            fel.add(Event.Type.DEPARTURE, 3, 2.0);
+            assertEquals(Event.Type.DEPARTURE, fel.peekType());
+            assertEquals(3, fel.peekNode());
+        }
+    }
+
+    @Test
+    public void ladderQueue() {
+        var fel = new LadderQueue();
+        // the nodes are given in order, so the equal times must follow them
+        var queue = new PriorityQueue<Event>(
+                (a, b) -> a.time != b.time ? Double.compare(a.time, b.time) : a.nodeIndex - b.nodeIndex);
+        var rng = new Rng(11);
+        var node = 0;
+
+        // many events at the same time are sorted at once keeping their order
+        for (var i = 0; i < 500; i++) {
+            fel.add(Event.Type.ARRIVAL, node, 5.0);
+            queue.add(Event.newArrival(node++, 5.0));
+        }
+        // then a burst in the near future, under the current bucket of the ladder,
+        // so the bottom grows and is moved into new rungs
+        for (var i = 0; i < 2000; i++) {
+            var time = rng.random() * 1000.0;
+            fel.add(Event.Type.ARRIVAL, node, time);
+            queue.add(Event.newArrival(node++, time));
+        }
+        var now = fel.peekTime();
+        for (var i = 0; i < 5000; i++) {
+            var time = now + (rng.random() < 0.1 ? 0.0 : rng.random() * 0.001);
+            fel.add(Event.Type.ARRIVAL, node, time);
+            queue.add(Event.newArrival(node++, time));
+        }
+        // and each event removed schedules one just after it
+        for (var i = 0; i < 50000; i++) {
+            var event = queue.poll();
+            assertEquals(event.time, fel.peekTime(), 0.0);
+            assertEquals(event.nodeIndex, fel.peekNode());
+            fel.remove();
+
+            var time = event.time + (rng.random() < 0.1 ? 0.0 : rng.random() * 0.01);
+            fel.add(Event.Type.ARRIVAL, node, time);
+            queue.add(Event.newArrival(node++, time));
+            assertEquals(queue.size(), fel.size());
+        }
+        while (!queue.isEmpty()) {
+            var event = queue.poll();
+            assertEquals(event.time, fel.peekTime(), 0.0);
+            assertEquals(event.nodeIndex, fel.peekNode());
+            fel.remove();
+        }
+        assertTrue(fel.isEmpty());
+
+        // a time just under the start of the current bucket of a rung, that the
+        // division still puts in that bucket, goes after the events already in it
+        var width = 1.0 / 51;
+        var edge = Math.nextDown(11 * width);
+        fel = new LadderQueue();
+        for (var i = 0; i < 48; i++)
+            fel.add(Event.Type.ARRIVAL, 0, 0.0);
+        fel.add(Event.Type.ARRIVAL, 1, 10.5 * width);
+        fel.add(Event.Type.ARRIVAL, 2, edge);
+        fel.add(Event.Type.ARRIVAL, 3, 1.0);
+        for (var i = 0; i < 48; i++)
+            fel.remove();
+        assertEquals(1, fel.peekNode());
+        fel.add(Event.Type.ARRIVAL, 4, edge);
+        for (var expected : new int[] { 1, 2, 4, 3 }) {
+            assertEquals(expected, fel.peekNode());
+            fel.remove();
+        }
+    }
+
+    @Test
+    public void calendarQueueClear() {
+        var fel = new CalendarQueue(true);
+        var time = 0.0;
+        for (var i = 0; i < 64; i++)
+            fel.add(Event.Type.ARRIVAL, 0, time += 1000.0);
+        for (var i = 0; i < 2000; i++) {
+            fel.remove();
+            fel.add(Event.Type.ARRIVAL, 0, time += 1000.0);
+        }
+        assertTrue(fel.getWidth() > 1000.0);
+
+        // after a clear the old times do not count in the new width
+        fel.clear();
+        time = 0.0;
+        for (var i = 0; i < 64; i++)
+            fel.add(Event.Type.ARRIVAL, 0, time += 1.0);
+        for (var i = 0; i < 200; i++) {
+            fel.remove();
+            fel.add(Event.Type.ARRIVAL, 0, time += 1.0);
+        }
+        assertTrue(fel.getWidth() > 1.0 && fel.getWidth() < 6.0);
+    }
+
+    @Test
+    public void routingTable() {
+        var net = new Net();
+        for (var i = 0; i < 23; i++)
+            net.addNode(ServerNode.Builder.queue("Node" + i, 1, const1));
+
+        // few children: same choices of subtracting the weights in order
+        net.addConnection(0, 1, 0.25);
+        net.addConnection(0, 2, 0.5);
+        var table = net.getRoutingTable(0);
+        assertEquals(2, table.size());
+        assertEquals(1, table.select(0.1));
+        assertEquals(1, table.select(0.25));
+        assertEquals(2, table.select(0.5));
+        assertEquals(-1, table.select(0.9));
+        assertEquals(0, net.getRoutingTable(5).size());
+        assertEquals(-1, net.getRoutingTable(5).select(0.5));
+
+        // the numbers at the edges go where the subtraction puts them, even if
+        // the sums of the weights are rounded to other values
+        net.addConnection(3, 4, 0.1);
+        net.addConnection(3, 5, 0.2);
+        net.addConnection(3, 6, 0.3);
+        net.addConnection(3, 7, 0.4);
+        table = net.getRoutingTable(3);
+        assertEquals(6, table.select(0.30000000000000004));
+        assertEquals(7, table.select(0.6000000000000001));
+        var pinned = new Rng(5);
+        for (var expected : new int[] { 4, 6, 4, 6, 7, 7, 6, 7, 6, 7, 6, 7 })
+            assertEquals(expected, table.select(pinned.random()));
+
+        // many children: alias method with the same probabilities
+        var weights = new double[22];
+        var sum = 0.0;
+        for (var i = 0; i < 20; i++) {
+            weights[i + 1] = (i % 4 + 1) * 0.01;
+            sum += weights[i + 1];
+            net.addConnection(1, i + 2, weights[i + 1]);
+        }
+        table = net.getRoutingTable(1);
+        assertEquals(20, table.size());
+
+        var rng = new Rng(3);
+        var count = new double[23];
+        var total = 500000;
+        for (var i = 0; i < total; i++) {
+            var child = table.select(rng.random());
+            count[child < 0 ? 0 : child] += 1;
+        }
+        assertEquals(1.0 - sum, count[0] / total, 0.005);
+        for (var i = 0; i < 20; i++)
+            assertEquals(weights[i + 1], count[i + 2] / total, 0.005);
+
+        // weights over 1 are cut like in the subtraction
+        for (var i = 0; i < 10; i++)
+            net.addConnection(2, i + 3, 0.2);
+        table = net.getRoutingTable(2);
+        count = new double[23];
+        for (var i = 0; i < total; i++)
+            count[table.select(rng.random())] += 1;
+        for (var i = 0; i < 10; i++)
+            assertEquals(i < 5 ? 0.2 : 0.0, count[i + 3] / total, 0.005);
+    }
+
+    @Test
+    public void doubleQueue() {
+        var queue = new DoubleQueue(3);
+        assertTrue(queue.isEmpty());
+        assertThrows(NoSuchElementException.class, () -> queue.poll());
+
+        // wrap around the buffer and then make it grow
+        var next = 0.0;
+        var expected = 0.0;
+        for (var round = 0; round < 50; round++) {
+            for (var i = 0; i < round % 7 + 1; i++)
+                queue.add(next++);
+            for (var i = 0; i < round % 5; i++)
+                if (!queue.isEmpty())
+                    assertEquals(expected++, queue.poll(), 0.0);
+        }
+        assertEquals(next - expected, queue.size(), 0.0);
+        while (!queue.isEmpty())
+            assertEquals(expected++, queue.poll(), 0.0);
+        assertEquals(next, expected, 0.0);
+
+        queue.add(1.5);
+        queue.clear();
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void sampler() {
+        assertTrue(Sampler.of(null).isZero());
+        assertEquals(0.0, Sampler.of(null).sample(null), 0.0);
+
+        var distributions = new Distribution[] {
+                new Distribution.Exponential(2.0),
+                new Distribution.Uniform(-1.0, 2.0),
+                new Distribution.Erlang(3, 1.5),
+                new Distribution.Normal(0.5, 1.0),
+                new Distribution.NormalBoxMuller(0.5, 1.0),
+                new Distribution.HyperExponential(new double[] { 1.0, 3.0 }, new double[] { 0.3, 0.7 }),
+                new Distribution.ExponentialZiggurat(2.0),
+                new Distribution.NormalZiggurat(0.5, 1.0),
+                new Distribution.UnavailableTime(0.3, new Distribution.Uniform(-0.5, 1.0)),
+                new Distribution.UnavailableTime(0.3, null),
+                new Distribution.Exponential(2.0) {
+                    @Override
+                    public double sample(RandomStream rng) {
+                        return rng.random() + 1.0;
+                    }
+                },
+                _ -> 1.0,
+        };
+        for (var distribution : distributions) {
+            var sampler = Sampler.of(distribution);
+            assertFalse(sampler.isZero());
+
+            var expected = new Rng(11);
+            var actual = new Rng(11);
+            for (var i = 0; i < 1000; i++)
+                assertEquals(Distribution.getPositiveSample(distribution, expected), sampler.sample(actual), 0.0);
+            assertEquals(expected.getSeed(), actual.getSeed());
+        }
+    }
+
     @Test
     public void net() {
         var net = new Net();
@@ -154,6 +503,50 @@ public class TestSimulation {
         assertEquals(0, conn.size());
     }
 
+    @Test
+    public void compiledNet() {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.source("First", const1));
+        net.addNode(new ServerNode.Builder("Second", const1).servers(3).queue(7).build());
+        net.addNode(ServerNode.Builder.terminal("Third", 5, const1));
+        net.addConnection(0, 1, 0.25);
+        net.addConnection(0, 2, 0.75);
+        net.addConnection(2, 0, 1.0);
+
+        var compiled = net.compile();
+        assertEquals(3, compiled.size());
+        assertEquals(1, compiled.getNodeIndex("Second"));
+        assertEquals(-1, compiled.getNodeIndex("None"));
+        assertEquals(net.getNode(2), compiled.getNode(2));
+        assertEquals(7, compiled.getMaxQueue(1));
+        assertEquals(3, compiled.getMaxServers(1));
+        assertEquals(-1, compiled.getSpawnArrivals(0));
+        assertEquals(5, compiled.getSpawnArrivals(2));
+
+        assertEquals(0, compiled.getChildStart(0));
+        assertEquals(2, compiled.getChildEnd(0));
+        assertEquals(2, compiled.getChildStart(1));
+        assertEquals(2, compiled.getChildEnd(1));
+        assertEquals(2, compiled.getChildStart(2));
+        assertEquals(3, compiled.getChildEnd(2));
+        assertEquals(1, compiled.getChildIndex(0));
+        assertEquals(2, compiled.getChildIndex(1));
+        assertEquals(0, compiled.getChildIndex(2));
+        assertEquals(0.25, compiled.getChildWeight(0), DELTA);
+        assertEquals(0.75, compiled.getChildWeight(1), DELTA);
+        assertEquals(2, compiled.getChildren(0).size());
+        assertThrows(UnsupportedOperationException.class, () -> compiled.getChildren(0).clear());
+
+        // the states share the compiled net, that does not see later changes
+        var states = compiled.buildNodeStates();
+        assertEquals(3, states.length);
+        assertTrue(states[0].children == compiled.getChildren(0));
+        assertTrue(states[0].routing == compiled.getRoutingTable(0));
+        net.addConnection(1, 2, 1.0);
+        assertEquals(0, compiled.getChildren(1).size());
+        assertEquals(0, compiled.getRoutingTable(1).size());
+    }
+
     @Test
     public void nodeState() {
         var state = new ServerNodeState(1, simpleNet);
@@ -392,6 +785,55 @@ public class TestSimulation {
         assertTrue(criteria.shouldEnd(sim));
     }
 
+    @Test
+    public void criteriaCombined() {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.source("Source", const1));
+        net.addNode(ServerNode.Builder.queue("Queue", 1, _ -> 0.5));
+        net.addConnection(0, 1, 1.0);
+
+        var arrivals = new EndCriteria.MaxArrivals("Queue", 10);
+        var time = new EndCriteria.MaxTime(20.0);
+        var and = new EndCriteria.And(arrivals, time);
+        var or = new EndCriteria.Or(arrivals, time);
+        assertThrows(IllegalArgumentException.class, () -> new EndCriteria.And());
+        assertThrows(IllegalArgumentException.class, () -> new EndCriteria.Or());
+        var compiled = net.compile();
+        assertThrows(NullPointerException.class, () -> new EndCriteria.MaxArrivals("None", 1).compile(compiled));
+
+        var trigger = and.compile(compiled);
+        assertEquals(EndCriteria.Trigger.Kind.ALL, trigger.kind);
+        assertEquals(2, trigger.size());
+        assertEquals(EndCriteria.Trigger.Kind.ARRIVALS, trigger.get(0).kind);
+        assertEquals(1, trigger.get(0).node);
+        assertEquals(10, trigger.get(0).value, DELTA);
+        assertEquals(EndCriteria.Trigger.Kind.TIME, trigger.get(1).kind);
+        assertEquals(20.0, trigger.get(1).value, DELTA);
+        assertEquals(EndCriteria.Trigger.Kind.ANY, or.compile(compiled).kind);
+
+        var sim = new Simulation(net, rigged, and);
+        var result = sim.run();
+        assertTrue(and.shouldEnd(sim));
+        assertEquals(20.0, result.simulationTime, DELTA);
+        assertEquals(19, result.getStat("Queue").numArrivals, DELTA);
+
+        sim = new Simulation(net, rigged, or);
+        result = sim.run();
+        assertTrue(or.shouldEnd(sim));
+        assertEquals(10.0, result.simulationTime, DELTA);
+        assertEquals(10, result.getStat("Queue").numArrivals, DELTA);
+
+        // a criteria that cannot be compiled is checked after every event
+        EndCriteria custom = run -> run.getEventsProcessed() >= 7;
+        assertNull(custom.compile(compiled));
+        sim = new Simulation(net, rigged, new EndCriteria.And(custom, time), custom);
+        sim.run();
+        assertEquals(7, sim.getEventsProcessed());
+
+        sim = new Simulation(net, rigged, new EndCriteria.MaxTime(0.0));
+        assertTrue(sim.hasEnded());
+    }
+
     @Test
     public void simulation() {
         assertThrows(NullPointerException.class, () -> new Simulation(null, rigged));
@@ -589,6 +1031,791 @@ public class TestSimulation {
         assertEquals(nodeStat.busyTime / nodeStat.lastEventTime, nodeStat.utilization, DELTA);
         assertEquals(nodeStat.numDepartures / nodeStat.lastEventTime, nodeStat.throughput, DELTA);
         assertEquals(0.0, nodeStat.unavailable, DELTA);
+
+        net.addNode(ServerNode.Builder.queue("Unused", 1, const1));
+        sim = new Simulation(net, rigged);
+        while (!sim.hasEnded())
+            sim.processNextEvent();
+
+        var state = sim.getNodeState("Queue");
+        assertEquals(50, state.stats.numArrivals, DELTA);
+        assertEquals(state.stats.busyTime / state.stats.lastEventTime, state.stats.utilization, DELTA);
+        assertEquals(0, state.queue.size());
+
+        // the state is a snapshot, so changing it does not change the simulation
+        state.queue.add(1.0);
+        state.updateArrival(100.0);
+        assertEquals(0, sim.getNodeState("Queue").queue.size());
+        assertEquals(50, sim.getNodeState("Queue").stats.numArrivals, DELTA);
+
+        nodeStat = sim.endSimulation().getStat("Unused");
+        assertEquals(0.0, nodeStat.numArrivals, DELTA);
+        assertEquals(0.0, nodeStat.avgResponse, DELTA);
+        assertEquals(0.0, nodeStat.throughput, DELTA);
+        assertEquals(0.0, nodeStat.utilization, DELTA);
+    }
+
+    @Test
+    public void simulationKinds() {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.terminal("Source", 50, const1));
+        net.addNode(ServerNode.Builder.queue("Queue", 1, _ -> 0.5));
+        net.addConnection(0, 1, 1.0);
+
+        for (var kind : FutureEventList.Kind.values()) {
+            var result = new Simulation(net, rigged, kind).run();
+            var nodeStat = result.getStat("Queue");
+            assertEquals(50.5, result.simulationTime, DELTA);
+            assertEquals(50, nodeStat.numArrivals, DELTA);
+            assertEquals(50, nodeStat.numDepartures, DELTA);
+            assertEquals(0.5, nodeStat.avgResponse, DELTA);
+            assertEquals(25.0, nodeStat.busyTime, DELTA);
+        }
+    }
+
+    @Test
+    public void simulationSaveRestore() throws Exception {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.terminal("Source1", 300, const1));
+        net.addNode(ServerNode.Builder.terminal("Source2", 200, new Distribution.Exponential(1.0)));
+        net.addNode(new ServerNode.Builder("Queue", const1).servers(3)
+                .unavailable(new Distribution.UnavailableTime(0.1, new Distribution.Exponential(4.0))).build());
+        net.addNode(new ServerNode.Builder("Last", new Distribution.Exponential(2.0)).queue(4).build());
+        net.addConnection(0, 2, 1.0);
+        net.addConnection(1, 2, 1.0);
+        net.addConnection(2, 3, 0.6);
+        net.addConnection(2, 2, 0.1);
+        var compiled = net.compile();
+
+        // many events have the same time, so the order of the list matters
+        for (var kind : FutureEventList.Kind.values()) {
+            for (var streams : new boolean[] { false, true }) {
+                var sim = streams
+                        ? new Simulation(compiled, Rng.getMultipleStreams(3, 4), kind)
+                        : new Simulation(compiled, new Rng(3), kind);
+                for (var i = 0; i < 700; i++)
+                    sim.processNextEvent();
+
+                var bytes = new ByteArrayOutputStream();
+                sim.save(bytes);
+                var expected = sim.run();
+
+                var restored = new Simulation(compiled, new Rng(42), kind);
+                restored.restore(new ByteArrayInputStream(bytes.toByteArray()));
+                assertEquals(700, restored.getEventsProcessed());
+                assertEquals(sim.getSeed(), restored.getSeed());
+                var actual = restored.run();
+
+                assertEquals(sim.getEventsProcessed(), restored.getEventsProcessed());
+                assertEquals(expected.simulationTime, actual.simulationTime, 0.0);
+                for (var node : expected.nodes) {
+                    var names = NodeStats.getOrderOfApply();
+                    for (var i = 0; i < names.length; i++)
+                        assertEquals(kind + " " + node + " " + names[i], expected.getStat(node).of(names[i]),
+                                actual.getStat(node).of(names[i]), 0.0);
+                }
+
+                // the criteria are the ones of the simulation that restores
+                var ended = new Simulation(compiled, new Rng(1), kind, new EndCriteria.MaxTime(1.0));
+                ended.restore(new ByteArrayInputStream(bytes.toByteArray()));
+                assertTrue(ended.hasEnded());
+            }
+        }
+
+        var bytes = new ByteArrayOutputStream();
+        new Simulation(compiled, new Rng(3), FutureEventList.Kind.HEAP).save(bytes);
+        var snapshot = bytes.toByteArray();
+        assertThrows(IllegalArgumentException.class, () -> new Simulation(compiled, new Rng(3),
+                FutureEventList.Kind.CALENDAR).restore(new ByteArrayInputStream(snapshot)));
+        assertThrows(IllegalArgumentException.class,
+                () -> new Simulation(simpleNet, rigged).restore(new ByteArrayInputStream(snapshot)));
+        assertThrows(IOException.class, () -> new Simulation(compiled, new Rng(3), FutureEventList.Kind.HEAP)
+                .restore(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5 })));
+        assertThrows(IOException.class, () -> new Simulation(compiled, new Rng(3), FutureEventList.Kind.HEAP)
+                .restore(new ByteArrayInputStream(snapshot, 0, snapshot.length / 2)));
+    }
+
+    @Test
+    public void simulationFork() throws Exception {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.source("Source", new Distribution.Exponential(1.0)));
+        net.addNode(ServerNode.Builder.queue("Queue", 1, new Distribution.Exponential(1.25)));
+        net.addConnection(0, 1, 1.0);
+        var compiled = net.compile();
+
+        var warm = new Simulation(compiled, new Rng(3), FutureEventList.Kind.HEAP, new EndCriteria.MaxTime(500));
+        warm.run();
+        var queue = warm.getNodeState("Queue").queue.size();
+        var bytes = new ByteArrayOutputStream();
+        warm.save(bytes);
+
+        warm.fork(new Rng(9));
+        assertEquals(0.0, warm.getTime(), 0.0);
+        assertEquals(0, warm.getEventsProcessed());
+        assertEquals(9, warm.seed);
+        assertEquals(queue, warm.getNodeState("Queue").queue.size());
+        assertEquals(0.0, warm.getNodeState("Queue").stats.numArrivals, 0.0);
+        assertFalse(warm.hasEnded());
+        for (var event : warm.getFutureEventList())
+            assertTrue(event.time >= 0.0);
+
+        // the same state and generator give the same run, with the time from the fork
+        var expected = warm.run();
+        assertTrue(expected.simulationTime >= 500);
+        var sim = new Simulation(compiled, new Rng(1), FutureEventList.Kind.HEAP, new EndCriteria.MaxTime(500));
+        sim.restore(new ByteArrayInputStream(bytes.toByteArray()));
+        sim.fork(new Rng(9));
+        var actual = sim.run();
+        assertEquals(expected.simulationTime, actual.simulationTime, 0.0);
+        assertEquals(expected.getStat("Queue").avgResponse, actual.getStat("Queue").avgResponse, 0.0);
+        assertEquals(expected.getStat("Queue").utilization, actual.getStat("Queue").utilization, 0.0);
+        assertThrows(NullPointerException.class, () -> sim.fork(null));
+
+        // the adaptive calendar forgets the gaps of the times before the fork
+        var adaptiveWarm = new Simulation(compiled, new Rng(3), FutureEventList.Kind.ADAPTIVE,
+                new EndCriteria.MaxTime(50000));
+        adaptiveWarm.run();
+        var adaptiveBytes = new ByteArrayOutputStream();
+        adaptiveWarm.save(adaptiveBytes);
+        var adaptive = new Simulation(compiled, new Rng(1), FutureEventList.Kind.ADAPTIVE,
+                new EndCriteria.MaxTime(100));
+        adaptive.restore(new ByteArrayInputStream(adaptiveBytes.toByteArray()));
+        adaptive.fork(new Rng(9));
+        var calendar = (CalendarQueue) adaptive.getFel();
+        assertEquals(0.0, calendar.getAverageGap(), 0.0);
+        assertTrue(adaptive.run().simulationTime >= 100);
+        assertTrue(calendar.getAverageGap() > 0.0);
+
+        var multi = new SimulationMultiple(net);
+        var summary = multi.runWarm(3, 20, new EndCriteria.MaxTime(500), new EndCriteria.MaxTime(1000));
+        var runs = summary.getRuns();
+        assertEquals(20, runs.size());
+        var times = new HashSet<Double>();
+        for (var run : runs) {
+            assertTrue(run.simulationTime >= 1000 && run.simulationTime < 1100);
+            assertEquals(0.8, run.getStat("Queue").utilization, 0.1);
+            times.add(run.getStat("Queue").avgResponse);
+        }
+        assertEquals(20, times.size());
+        assertEquals(summary.getRuns().get(3).getStat("Queue").avgResponse,
+                multi.runWarm(3, 20, new EndCriteria.MaxTime(500), new EndCriteria.MaxTime(1000)).getRuns().get(3)
+                        .getStat("Queue").avgResponse,
+                0.0);
+        assertThrows(NullPointerException.class, () -> multi.runWarm(3, 20, null, new EndCriteria.MaxTime(1000)));
+
+        // the limited sources spawn all their arrivals again, both the one that
+        // ended during the warm-up and the one still spawning
+        var limited = new Net();
+        limited.addNode(ServerNode.Builder.terminal("Short", 30, const1));
+        limited.addNode(ServerNode.Builder.terminal("Long", 100, const1));
+        limited.addNode(ServerNode.Builder.queue("Queue", 1, _ -> 0.4));
+        limited.addConnection(0, 2, 1.0);
+        limited.addConnection(1, 2, 1.0);
+        var limitedWarm = new Simulation(limited.compile(), new Rng(3), FutureEventList.Kind.HEAP,
+                new EndCriteria.MaxArrivals("Long", 50));
+        limitedWarm.run();
+        var limitedBytes = new ByteArrayOutputStream();
+        limitedWarm.save(limitedBytes);
+        var limitedSim = new Simulation(limited.compile(), new Rng(1), FutureEventList.Kind.HEAP);
+        limitedSim.restore(new ByteArrayInputStream(limitedBytes.toByteArray()));
+        limitedSim.fork(new Rng(5));
+        var forked = limitedSim.run();
+        assertEquals(30, forked.getStat("Short").numArrivals, 0.0);
+        assertEquals(100, forked.getStat("Long").numArrivals, 0.0);
+
+        // a limited source that ended but has an arrival pending from its parent
+        // spawns again from it, without starting a second chain at time 0
+        var relayed = new Net();
+        relayed.addNode(ServerNode.Builder.terminal("Feed", 40, const1));
+        relayed.addNode(ServerNode.Builder.terminal("Relay", 5, _ -> 0.5));
+        relayed.addNode(ServerNode.Builder.queue("Queue", 1, _ -> 0.4));
+        relayed.addConnection(0, 1, 1.0);
+        relayed.addConnection(1, 2, 1.0);
+        var relayedSim = new Simulation(relayed.compile(), new Rng(3), FutureEventList.Kind.HEAP,
+                new EndCriteria.MaxArrivals("Feed", 20));
+        relayedSim.run();
+        assertEquals(0, relayedSim.getNodeState("Relay").queue.size());
+        relayedSim.fork(new Rng(5));
+        var toRelay = relayedSim.getFutureEventList().stream()
+                .filter(e -> e.type == Event.Type.ARRIVAL && e.nodeIndex == 1).count();
+        assertEquals(1, toRelay);
+    }
+
+    @Test
+    public void simulationListener() {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.terminal("Source", 500, new Distribution.Exponential(1.0)));
+        net.addNode(new ServerNode.Builder("Queue", new Distribution.Exponential(0.8)).queue(2).build());
+        net.addNode(ServerNode.Builder.queue("Last", 1, new Distribution.Exponential(2.0)));
+        net.addConnection(0, 1, 1.0);
+        net.addConnection(1, 2, 0.5);
+        var compiled = net.compile();
+
+        var arrivals = new int[3];
+        var departures = new int[3];
+        var drops = new int[3];
+        var listener = new SimulationListener() {
+            @Override
+            public void onArrival(int node, double time) {
+                arrivals[node] += 1;
+            }
+
+            @Override
+            public void onDeparture(int node, double time) {
+                departures[node] += 1;
+            }
+
+            @Override
+            public void onDrop(int node, int child, double time) {
+                assertEquals(0, node);
+                drops[child] += 1;
+            }
+        };
+
+        var expected = new Simulation(compiled, new Rng(4), FutureEventList.Kind.HEAP).run();
+        var actual = new Simulation(compiled, new Rng(4), FutureEventList.Kind.HEAP, listener).run();
+        assertEquals(expected.simulationTime, actual.simulationTime, 0.0);
+        for (var i = 0; i < 3; i++) {
+            var stats = actual.getStat(expected.nodes[i]);
+            assertEquals(expected.getStat(expected.nodes[i]).avgResponse, stats.avgResponse, 0.0);
+            assertEquals(stats.numArrivals, arrivals[i], 0.0);
+            assertEquals(stats.numDepartures, departures[i], 0.0);
+        }
+        assertTrue(drops[1] > 0);
+        assertEquals(departures[0] - arrivals[1], drops[1]);
+        assertEquals(0, drops[2]);
+
+        // also when the events are processed one at a time
+        var sim = new Simulation(compiled, new Rng(4), FutureEventList.Kind.HEAP, listener);
+        sim.processNextEvent();
+        assertEquals(501, arrivals[0]);
+        assertNotNull(new Simulation(compiled, new Rng(4), FutureEventList.Kind.HEAP, (SimulationListener) null).run());
+    }
+
+    @Test
+    public void simulationCounterBased() throws Exception {
+        var nets = new Net[2];
+        var compiled = new CompiledNet[2];
+        for (var servers = 1; servers <= 2; servers++) {
+            var net = new Net();
+            net.addNode(ServerNode.Builder.terminal("Source", 300, new Distribution.Exponential(1.0)));
+            net.addNode(ServerNode.Builder.queue("Queue", servers, new Distribution.Exponential(1.5)));
+            net.addConnection(0, 1, 1.0);
+            net.addConnection(1, 1, 0.2);
+            nets[servers - 1] = net;
+            compiled[servers - 1] = net.compile();
+        }
+
+        // the same seed and replication give the same run, also after a reset
+        var expected = new Simulation(compiled[0], 7, 3, FutureEventList.Kind.HEAP).run();
+        var sim = new Simulation(compiled[0], 7, 0, FutureEventList.Kind.HEAP);
+        assertNull(sim.rng);
+        assertEquals(7, sim.seed);
+        sim.run();
+        sim.reset(7, 3);
+        var actual = sim.run();
+        assertEquals(expected.simulationTime, actual.simulationTime, 0.0);
+        assertEquals(expected.getStat("Queue").avgResponse, actual.getStat("Queue").avgResponse, 0.0);
+        assertThrows(IllegalStateException.class, () -> sim.save(new ByteArrayOutputStream()));
+        assertThrows(IllegalArgumentException.class, () -> sim.reset(7, -1));
+
+        // the source and the routing of the queue draw the same numbers when the
+        // queue has more servers, while a shared generator draws them in another order
+        var other = new Simulation(compiled[1], 7, 3, FutureEventList.Kind.HEAP).run();
+        assertEquals(expected.getStat("Source").avgResponse, other.getStat("Source").avgResponse, 0.0);
+        assertEquals(expected.getStat("Queue").numArrivals, other.getStat("Queue").numArrivals, 0.0);
+        assertTrue(expected.getStat("Queue").avgResponse > other.getStat("Queue").avgResponse);
+        var shared = new Simulation(compiled[0], new Rng(7), FutureEventList.Kind.HEAP).run();
+        var sharedOther = new Simulation(compiled[1], new Rng(7), FutureEventList.Kind.HEAP).run();
+        assertTrue(shared.getStat("Source").avgResponse != sharedOther.getStat("Source").avgResponse);
+
+        var summary = new SimulationMultiple(nets[0]).runCounterBased(7, 5);
+        assertEquals(5, summary.getRuns().size());
+        assertEquals(expected.getStat("Queue").avgResponse, summary.getRuns().get(3).getStat("Queue").avgResponse,
+                0.0);
+    }
+
+    @Test
+    public void simulationReset() throws Exception {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.terminal("Source", 200, new Distribution.Exponential(1.0)));
+        net.addNode(new ServerNode.Builder("Queue", new Distribution.Exponential(1.5))
+                .servers(2).unavailable(new Distribution.UnavailableTime(0.1, new Distribution.Exponential(4.0)))
+                .build());
+        net.addConnection(0, 1, 1.0);
+        net.addConnection(1, 1, 0.2);
+        var compiled = net.compile();
+
+        for (var kind : FutureEventList.Kind.values()) {
+            var sim = new Simulation(compiled, new Rng(1), kind, new EndCriteria.MaxDepartures("Queue", 150));
+            sim.run();
+            sim.reset(new Rng(2));
+            assertEquals(0, sim.getEventsProcessed());
+            assertEquals(0.0, sim.getTime(), 0.0);
+            var reused = sim.run();
+
+            sim = new Simulation(compiled, new Rng(2), kind, new EndCriteria.MaxDepartures("Queue", 150));
+            var fresh = sim.run();
+            assertEquals(fresh.seed, reused.seed);
+            assertEquals(fresh.simulationTime, reused.simulationTime, 0.0);
+            for (var node : fresh.nodes) {
+                var expected = fresh.getStat(node);
+                var actual = reused.getStat(node);
+                assertEquals(expected.numDepartures, actual.numDepartures, 0.0);
+                assertEquals(expected.avgResponse, actual.avgResponse, 0.0);
+                assertEquals(expected.unavailableTime, actual.unavailableTime, 0.0);
+            }
+        }
+        assertThrows(NullPointerException.class, () -> new Simulation(simpleNet, rigged).reset(null));
+
+        var multi = new SimulationMultiple(net);
+        var serial = multi.run(3, 100).getRuns();
+        var parallel = multi.runParallel(3, 100).getRuns();
+        assertEquals(100, parallel.size());
+        for (var i = 0; i < serial.size(); i++) {
+            assertEquals(serial.get(i).simulationTime, parallel.get(i).simulationTime, 0.0);
+            assertEquals(serial.get(i).getStat("Queue").avgResponse, parallel.get(i).getStat("Queue").avgResponse,
+                    0.0);
+        }
+    }
+
+    @Test
+    public void lockstepTandem() {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.terminal("Source", 8, const1));
+        net.addNode(ServerNode.Builder.queue("Queue1", 1, _ -> 0.5));
+        net.addNode(new ServerNode.Builder("Queue2", _ -> 1.3).queue(2).build());
+        net.addConnection(0, 1, 1.0);
+        net.addConnection(1, 2, 1.0);
+        var compiled = net.compile();
+        assertTrue(LockstepTandem.supports(compiled));
+        assertFalse(LockstepTandem.supports(simpleNet.compile()));
+
+        // with constant distributions the model gives the same results
+        var expected = new Simulation(compiled, rigged, FutureEventList.Kind.HEAP).run();
+        var results = new LockstepTandem(compiled).run(new Rng[] { new Rng(1), new Rng(2), new Rng(3) });
+        assertEquals(3, results.length);
+        for (var result : results) {
+            assertEquals(expected.simulationTime, result.simulationTime, DELTA);
+            for (var node : expected.nodes) {
+                var stat = expected.getStat(node);
+                var actual = result.getStat(node);
+                assertEquals(node, stat.numArrivals, actual.numArrivals, DELTA);
+                assertEquals(node, stat.numDepartures, actual.numDepartures, DELTA);
+                assertEquals(node, stat.maxQueueLength, actual.maxQueueLength, DELTA);
+                assertEquals(node, stat.avgQueueLength, actual.avgQueueLength, DELTA);
+                assertEquals(node, stat.busyTime, actual.busyTime, DELTA);
+                assertEquals(node, stat.avgResponse, actual.avgResponse, DELTA);
+                assertEquals(node, stat.lastEventTime, actual.lastEventTime, DELTA);
+                assertEquals(node, stat.utilization, actual.utilization, DELTA);
+            }
+        }
+        assertEquals(7, expected.getStat("Queue2").numArrivals, DELTA);
+
+        net.addConnection(1, 0, 0.1);
+        assertFalse(LockstepTandem.supports(net.compile()));
+        assertThrows(IllegalArgumentException.class, () -> new LockstepTandem(net.compile()));
+
+        // every lane is a replication of its own
+        var tandem = new Net();
+        tandem.addNode(ServerNode.Builder.terminal("Source", 500, new Distribution.Exponential(1.0)));
+        tandem.addNode(ServerNode.Builder.queue("Queue", 1, new Distribution.Exponential(1.25)));
+        tandem.addConnection(0, 1, 1.0);
+        var summary = new SimulationMultiple(tandem).runLockstep(5, 40);
+        var runs = summary.getRuns();
+        assertEquals(40, runs.size());
+        for (var run : runs)
+            assertEquals(500, run.getStat("Source").numDepartures, DELTA);
+        assertTrue(runs.get(0).simulationTime != runs.get(1).simulationTime);
+        var response = summary.getSummaryOf("Queue").average.avgResponse;
+        assertEquals(4.0, response, 1.5);
+
+        // the lanes where a request was dropped do not change the others
+        var limited = new Net();
+        limited.addNode(ServerNode.Builder.terminal("Source", 300, new Distribution.Exponential(1.0)));
+        limited.addNode(new ServerNode.Builder("Queue", new Distribution.Exponential(1.1)).queue(2).build());
+        limited.addConnection(0, 1, 1.0);
+        var engine = new LockstepTandem(limited.compile());
+        var batch = engine.run(Rng.getMultipleStreams(9, 5));
+        var alone = Rng.getMultipleStreams(9, 5);
+        for (var l = 0; l < batch.length; l++) {
+            var single = engine.run(new Rng[] { alone[l] })[0];
+            assertEquals(single.simulationTime, batch[l].simulationTime, 0.0);
+            var names = NodeStats.getOrderOfApply();
+            for (var i = 0; i < names.length; i++)
+                assertEquals(l + " " + names[i], single.getStat("Queue").of(names[i]),
+                        batch[l].getStat("Queue").of(names[i]), 0.0);
+        }
+        assertTrue(batch[0].getStat("Queue").numArrivals < 300);
+    }
+
+    @Test
+    public void lindleySimulation() {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.terminal("Source1", 20, const1));
+        net.addNode(ServerNode.Builder.terminal("Source2", 10, _ -> 1.37));
+        net.addNode(ServerNode.Builder.queue("A", 1, _ -> 0.73));
+        net.addNode(new ServerNode.Builder("B", _ -> 1.91).queue(2).build());
+        net.addNode(ServerNode.Builder.queue("C", 1, _ -> 0.29));
+        net.addConnection(0, 2, 1.0);
+        net.addConnection(1, 3, 1.0);
+        net.addConnection(2, 4, 0.5);
+        net.addConnection(3, 4, 1.0);
+        var compiled = net.compile();
+        assertTrue(LindleySimulation.supports(compiled));
+
+        // with constant distributions and routing the model gives the same results
+        var expected = new Simulation(compiled, rigged, FutureEventList.Kind.HEAP).run();
+        var actual = new LindleySimulation(compiled).run(rigged);
+        assertEquals(expected.simulationTime, actual.simulationTime, DELTA);
+        for (var node : expected.nodes) {
+            var stat = expected.getStat(node);
+            var other = actual.getStat(node);
+            var names = NodeStats.getOrderOfApply();
+            for (var i = 0; i < names.length; i++)
+                assertEquals(node + " " + names[i], stat.of(names[i]), other.of(names[i]), DELTA);
+        }
+        assertTrue(expected.getStat("B").numArrivals < 10);
+
+        net.addConnection(4, 2, 0.1);
+        assertFalse(LindleySimulation.supports(net.compile()));
+        assertThrows(IllegalArgumentException.class, () -> new LindleySimulation(net.compile()));
+        var multi = new ServerNode.Builder("Multi", const1).servers(2).build();
+        var other = new Net();
+        other.addNode(ServerNode.Builder.terminal("Source", 1, const1));
+        other.addNode(multi);
+        other.addConnection(0, 1, 1.0);
+        assertFalse(LindleySimulation.supports(other.compile()));
+
+        // the same model of the event loop
+        var tandem = new Net();
+        tandem.addNode(ServerNode.Builder.terminal("Source", 2000, new Distribution.Exponential(1.0)));
+        tandem.addNode(ServerNode.Builder.queue("Queue1", 1, new Distribution.Exponential(2.0)));
+        tandem.addNode(ServerNode.Builder.queue("Queue2", 1, new Distribution.Exponential(2.0)));
+        tandem.addConnection(0, 1, 1.0);
+        tandem.addConnection(1, 2, 1.0);
+        var simulations = new SimulationMultiple(tandem);
+        var fast = simulations.runFeedForward(3, 50).getSummaryOf("Queue2").average;
+        var slow = simulations.run(3, 50).getSummaryOf("Queue2").average;
+        assertEquals(2000, fast.numDepartures, DELTA);
+        assertEquals(slow.avgResponse, fast.avgResponse, 0.1);
+        assertEquals(slow.utilization, fast.utilization, 0.02);
+    }
+
+    @Test
+    public void pipelineSimulation() throws InterruptedException, ExecutionException {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.terminal("Source1", 2000, const1));
+        net.addNode(ServerNode.Builder.terminal("Source2", 1000, _ -> 1.37));
+        net.addNode(ServerNode.Builder.queue("A", 1, _ -> 0.73));
+        net.addNode(new ServerNode.Builder("B", _ -> 1.91).queue(2).build());
+        net.addNode(ServerNode.Builder.queue("C", 1, _ -> 0.29));
+        net.addConnection(0, 2, 1.0);
+        net.addConnection(1, 3, 1.0);
+        net.addConnection(2, 4, 1.0);
+        net.addConnection(3, 4, 1.0);
+        var compiled = net.compile();
+
+        // with constant distributions the model gives the same results
+        var expected = new Simulation(compiled, rigged, FutureEventList.Kind.HEAP).run();
+        var riggedStreams = new Rng[] { rigged, rigged, rigged, rigged, rigged };
+        for (var threads = 1; threads <= 3; threads++) {
+            var actual = new PipelineSimulation(compiled, threads).run(riggedStreams);
+            assertEquals(expected.simulationTime, actual.simulationTime, DELTA);
+            for (var node : expected.nodes) {
+                var stat = expected.getStat(node);
+                var other = actual.getStat(node);
+                var names = NodeStats.getOrderOfApply();
+                for (var i = 0; i < names.length; i++)
+                    assertEquals(node + " " + names[i], stat.of(names[i]), other.of(names[i]), DELTA);
+            }
+        }
+        assertTrue(expected.getStat("B").numArrivals < 1000);
+
+        // the same results for any number of threads
+        var random = new Net();
+        random.addNode(ServerNode.Builder.terminal("Source1", 3000, new Distribution.Exponential(1.0)));
+        random.addNode(ServerNode.Builder.terminal("Source2", 2000, new Distribution.Exponential(0.5)));
+        random.addNode(ServerNode.Builder.queue("A", 1, new Distribution.Exponential(2.0)));
+        random.addNode(new ServerNode.Builder("B", new Distribution.Exponential(1.0)).queue(5).build());
+        random.addNode(ServerNode.Builder.queue("C", 1, new Distribution.Exponential(3.0)));
+        random.addConnection(0, 2, 0.7);
+        random.addConnection(0, 3, 0.3);
+        random.addConnection(1, 3, 1.0);
+        random.addConnection(2, 4, 1.0);
+        random.addConnection(3, 4, 0.5);
+        var single = new PipelineSimulation(random.compile(), 1).run(Rng.getMultipleStreams(7, 5));
+        var multi = new PipelineSimulation(random.compile(), 3).run(Rng.getMultipleStreams(7, 5));
+        assertEquals(single.simulationTime, multi.simulationTime, 0.0);
+        for (var node : single.nodes) {
+            var names = NodeStats.getOrderOfApply();
+            for (var i = 0; i < names.length; i++)
+                assertEquals(node + " " + names[i], single.getStat(node).of(names[i]),
+                        multi.getStat(node).of(names[i]), 0.0);
+        }
+
+        // the replications do not share the numbers of their nodes
+        assertDisjointRuns(new SimulationMultiple(twinsNet(500)).runPipeline(7, 3).getRuns());
+
+        net.addConnection(4, 2, 0.1);
+        assertThrows(IllegalArgumentException.class, () -> new PipelineSimulation(net.compile(), 2));
+        assertThrows(IllegalArgumentException.class, () -> new PipelineSimulation(compiled, 0));
+        assertThrows(IllegalArgumentException.class, () -> new PipelineSimulation(compiled, 2).run(new Rng[2]));
+    }
+
+    /**
+     * A net with two sources of the same distribution, so that a source that uses
+     * the numbers of the other one in another run has the same statistics.
+     *
+     * @param arrivals the arrivals of each source, or -1 for infinite sources
+     */
+    private static Net twinsNet(int arrivals) {
+        var net = new Net();
+        for (var name : new String[] { "Source1", "Source2" }) {
+            var source = new Distribution.Exponential(1.0);
+            net.addNode(arrivals < 0 ? ServerNode.Builder.source(name, source)
+                    : ServerNode.Builder.terminal(name, arrivals, source));
+        }
+        net.addNode(ServerNode.Builder.queue("A", 1, new Distribution.Exponential(3.0)));
+        net.addConnection(0, 2, 1.0);
+        net.addConnection(1, 2, 1.0);
+        return net;
+    }
+
+    /**
+     * Check that no source of a run of {@link #twinsNet(int)} uses the same
+     * numbers of a source of the run before it.
+     */
+    private static void assertDisjointRuns(List<Result> runs) {
+        assertTrue(runs.size() > 1);
+        for (var i = 1; i < runs.size(); i++)
+            for (var name : new String[] { "Source1", "Source2" }) {
+                var time = runs.get(i).getStat(name).lastEventTime;
+                assertTrue(name, runs.get(i - 1).getStat("Source1").lastEventTime != time);
+                assertTrue(name, runs.get(i - 1).getStat("Source2").lastEventTime != time);
+            }
+    }
+
+    /**
+     * A net with two sources, a cycle, a node with two servers that can be
+     * unavailable and nodes that drop requests.
+     */
+    private static Net feedbackNet() {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.terminal("Source1", 2000, new Distribution.Exponential(1.0)));
+        net.addNode(ServerNode.Builder.terminal("Source2", 1000, new Distribution.Uniform(0.5, 2.5)));
+        net.addNode(ServerNode.Builder.queue("A", 2, new Distribution.Exponential(1.5),
+                new Distribution.UnavailableTime(0.1, new Distribution.Exponential(4.0))));
+        net.addNode(new ServerNode.Builder("B", new Distribution.Uniform(0.1, 0.9)).queue(3).build());
+        net.addNode(new ServerNode.Builder("C", new Distribution.Exponential(2.0)).queue(5).build());
+        net.addNode(ServerNode.Builder.queue("D", 1, new Distribution.Uniform(0.2, 0.4)));
+        net.addConnection(0, 2, 0.8);
+        net.addConnection(0, 3, 0.2);
+        net.addConnection(1, 3, 1.0);
+        net.addConnection(2, 4, 1.0);
+        net.addConnection(3, 4, 0.6);
+        net.addConnection(3, 5, 0.4);
+        net.addConnection(4, 2, 0.2);
+        net.addConnection(4, 5, 0.5);
+        return net;
+    }
+
+    @Test
+    public void conservativeSimulation() throws InterruptedException, ExecutionException {
+        var net = feedbackNet();
+        var compiled = net.compile();
+        assertTrue(ConservativeSimulation.supports(compiled));
+
+        // the same results of the event loop with the same streams
+        var expected = new Simulation(compiled, Rng.getMultipleStreams(5, 6), FutureEventList.Kind.HEAP).run();
+        assertEquals(3, expected.getStat("B").maxQueueLength, DELTA);
+        assertEquals(5, expected.getStat("C").maxQueueLength, DELTA);
+        for (var processes = 1; processes <= 7; processes++) {
+            var engine = new ConservativeSimulation(compiled, processes);
+            var actual = engine.run(Rng.getMultipleStreams(5, 6));
+            assertEquals(expected.simulationTime, actual.simulationTime, 0.0);
+            for (var node : expected.nodes) {
+                var names = NodeStats.getOrderOfApply();
+                for (var i = 0; i < names.length; i++)
+                    assertEquals(processes + " " + node + " " + names[i], expected.getStat(node).of(names[i]),
+                            actual.getStat(node).of(names[i]), 0.0);
+            }
+        }
+
+        var infinite = new Net();
+        infinite.addNode(ServerNode.Builder.source("Source", const1));
+        assertFalse(ConservativeSimulation.supports(infinite.compile()));
+        assertThrows(IllegalArgumentException.class, () -> new ConservativeSimulation(infinite.compile(), 2));
+        assertThrows(IllegalArgumentException.class, () -> new ConservativeSimulation(compiled, 0));
+        assertThrows(IllegalArgumentException.class, () -> new ConservativeSimulation(compiled, 2).run(new Rng[2]));
+
+        // the replications do not share the numbers of their nodes
+        assertDisjointRuns(new SimulationMultiple(twinsNet(500)).runConservative(7, 3).getRuns());
+        assertThrows(IllegalArgumentException.class,
+                () -> new Simulation(compiled, new Rng[2], FutureEventList.Kind.HEAP));
+    }
+
+    @Test
+    public void optimisticSimulation() throws InterruptedException, ExecutionException {
+        var compiled = feedbackNet().compile();
+        assertTrue(OptimisticSimulation.supports(compiled));
+
+        // the same results of the event loop with the same streams, even with rollbacks
+        var expected = new Simulation(compiled, Rng.getMultipleStreams(5, 6), FutureEventList.Kind.HEAP).run();
+        for (var processes = 1; processes <= 4; processes++) {
+            var engine = new OptimisticSimulation(compiled, processes);
+            var actual = engine.run(Rng.getMultipleStreams(5, 6));
+            assertEquals(expected.simulationTime, actual.simulationTime, 0.0);
+            for (var node : expected.nodes) {
+                var names = NodeStats.getOrderOfApply();
+                for (var i = 0; i < names.length; i++)
+                    assertEquals(processes + " " + node + " " + names[i], expected.getStat(node).of(names[i]),
+                            actual.getStat(node).of(names[i]), 0.0);
+            }
+
+            var counters = engine.getCounters();
+            assertTrue(counters.rollbackRate() >= 0.0 && counters.rollbackRate() < 1.0);
+            assertEquals(counters.processed() - counters.rolledBack(), counters.committed());
+            assertTrue(counters.rounds() > 0);
+            if (processes == 1) {
+                assertEquals(0, counters.rollbacks());
+                assertEquals(0, counters.antiMessages());
+            }
+        }
+
+        var infinite = new Net();
+        infinite.addNode(ServerNode.Builder.source("Source", const1));
+        assertFalse(OptimisticSimulation.supports(infinite.compile()));
+        assertThrows(IllegalArgumentException.class, () -> new OptimisticSimulation(infinite.compile(), 2));
+        assertThrows(IllegalArgumentException.class, () -> new OptimisticSimulation(compiled, 0));
+        assertThrows(IllegalArgumentException.class, () -> new OptimisticSimulation(compiled, 2).run(new Rng[2]));
+
+        // the counter-based streams are rolled back to their positions
+        var streams = new Philox[compiled.size()];
+        for (var node = 0; node < streams.length; node++)
+            streams[node] = new Philox(5, 0, node, Philox.Purpose.SERVICE);
+        var conservative = new ConservativeSimulation(compiled, 1).run(streams);
+        for (var node = 0; node < streams.length; node++)
+            streams[node] = new Philox(5, 0, node, Philox.Purpose.SERVICE);
+        var optimistic = new OptimisticSimulation(compiled, 4).run(streams);
+        assertEquals(conservative.simulationTime, optimistic.simulationTime, 0.0);
+        for (var node : conservative.nodes) {
+            var names = NodeStats.getOrderOfApply();
+            for (var i = 0; i < names.length; i++)
+                assertEquals(node + " " + names[i], conservative.getStat(node).of(names[i]),
+                        optimistic.getStat(node).of(names[i]), 0.0);
+        }
+
+        // the replications do not share the numbers of their nodes
+        assertDisjointRuns(new SimulationMultiple(twinsNet(500)).runOptimistic(7, 3).getRuns());
+    }
+
+    @Test
+    public void timeParallelSimulation() throws InterruptedException, ExecutionException {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.source("Source", new Distribution.Exponential(1.0)));
+        net.addNode(ServerNode.Builder.queue("A", 1, new Distribution.Exponential(4.0),
+                new Distribution.UnavailableTime(0.1, new Distribution.Exponential(8.0))));
+        net.addNode(new ServerNode.Builder("B", new Distribution.Uniform(0.1, 0.5)).queue(3).build());
+        net.addConnection(0, 1, 1.0);
+        net.addConnection(1, 2, 0.7);
+        var compiled = net.compile();
+        assertTrue(TimeParallelSimulation.supports(compiled));
+
+        // with one segment it is the sequential simulation
+        var horizon = 20000.0;
+        var expected = new Simulation(compiled, 5, 0, FutureEventList.Kind.HEAP,
+                new EndCriteria.MaxTime(horizon)).run();
+        var engine = new TimeParallelSimulation(compiled, horizon, 1);
+        var actual = engine.run(5, 0);
+        assertEquals(expected.simulationTime, actual.simulationTime, 0.0);
+        assertEquals(1, engine.getPasses());
+        assertEquals(1, engine.getSegmentRuns());
+        for (var node : expected.nodes) {
+            var names = NodeStats.getOrderOfApply();
+            for (var i = 0; i < names.length; i++)
+                assertEquals(node + " " + names[i], expected.getStat(node).of(names[i]),
+                        actual.getStat(node).of(names[i]), 0.0);
+        }
+
+        // with more segments the fix-up ends and the results are close
+        for (var segments = 2; segments <= 8; segments *= 2) {
+            engine = new TimeParallelSimulation(compiled, horizon, segments);
+            actual = engine.run(5, 0);
+            assertTrue(engine.getPasses() >= 1 && engine.getPasses() <= segments);
+            assertTrue(engine.getSegmentRuns() >= segments);
+            assertTrue(engine.getSegmentRuns() <= segments * (segments + 1) / 2);
+            assertTrue(actual.simulationTime >= horizon);
+            for (var node : expected.nodes) {
+                var exp = expected.getStat(node);
+                var act = actual.getStat(node);
+                assertEquals(node, exp.numArrivals, act.numArrivals, exp.numArrivals * 0.05);
+                assertEquals(node, exp.utilization, act.utilization, 0.02);
+                assertEquals(node, exp.avgResponse, act.avgResponse, exp.avgResponse * 0.1);
+            }
+        }
+
+        var limited = new Net();
+        limited.addNode(ServerNode.Builder.terminal("Source", 10, const1));
+        assertFalse(TimeParallelSimulation.supports(limited.compile()));
+        assertThrows(IllegalArgumentException.class, () -> new TimeParallelSimulation(limited.compile(), 10.0, 2));
+        assertThrows(IllegalArgumentException.class, () -> new TimeParallelSimulation(compiled, 0.0, 2));
+        assertThrows(IllegalArgumentException.class, () -> new TimeParallelSimulation(compiled, 10.0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new TimeParallelSimulation(compiled, 10.0, 2).run(7, -1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new TimeParallelSimulation(compiled, 10.0, 2).run(7, Philox.MAX_REPLICATIONS / 2));
+
+        // the replications do not share the numbers of their segments
+        assertDisjointRuns(new SimulationMultiple(twinsNet(-1)).runTimeParallel(7, 3, 500.0, 4).getRuns());
+    }
+
+    @Test
+    public void timeParallelLongSegments() throws InterruptedException, ExecutionException {
+        // a lone source always matches its state, so each segment runs once and
+        // draws each of its numbers once: the same small number means that two
+        // segments share their streams
+        var drawn = ConcurrentHashMap.<Double>newKeySet();
+        var shared = new AtomicInteger();
+        var net = new Net();
+        net.addNode(ServerNode.Builder.source("Source", rng -> {
+            var u = rng.random();
+            if (u < 1e-3 && !drawn.add(u))
+                shared.incrementAndGet();
+            return -Math.log(u);
+        }));
+
+        // more than 2^21 numbers for each segment
+        var horizon = 2.0 * (1 << 21) + (1 << 19);
+        var result = new SimulationMultiple(net).runTimeParallel(7, 1, horizon, 2).getRuns().get(0);
+        assertTrue(result.getStat("Source").numArrivals > (1 << 22));
+        assertTrue(drawn.size() > 4000);
+        assertEquals(0, shared.get());
+    }
+
+    @Test
+    public void simulationSources() {
+        var net = new Net();
+        net.addNode(ServerNode.Builder.terminal("Source1", 10, const1));
+        net.addNode(ServerNode.Builder.terminal("Source2", 20, _ -> 0.5));
+        net.addNode(ServerNode.Builder.queue("Queue", 2, _ -> 0.5));
+        net.addConnection(0, 2, 1.0);
+        net.addConnection(1, 2, 1.0);
+
+        var sim = new Simulation(net, rigged);
+        var fel = sim.getFutureEventList();
+        assertEquals(2, fel.size());
+        assertEquals(Event.Type.ARRIVAL, fel.get(0).type);
+        assertEquals(Event.Type.ARRIVAL, fel.get(1).type);
+
+        sim.addToFel(Event.newArrival(0, 0.0));
+        assertEquals(3, sim.getFutureEventList().size());
+
+        var result = sim.run();
+        assertEquals(10, result.getStat("Source1").numArrivals, DELTA);
+        assertEquals(20, result.getStat("Source2").numArrivals, DELTA);
+        assertEquals(30, result.getStat("Queue").numArrivals, DELTA);
+        assertEquals(30, result.getStat("Queue").numDepartures, DELTA);
+        assertEquals(0, sim.getFutureEventList().size());
     }
 
     @Test
@@ -0,0 +1,39 @@
+package net.berack.upo.valpre.sim;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The departure step of {@link LockstepTandem} done with the Vector API, in
+ * vectors of the preferred size of the processor.
+ * The lanes where the request was dropped are masked out of the stores. The
+ * vector max, add and sub give the same doubles of the scalar step.
+ * It is compiled only with the maven profile {@code vector}, and it is used by
+ * {@link LaneStep#load()} only if the module jdk.incubator.vector is added.
+ */
+final class VectorLaneStep implements LaneStep {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public int width() {
+        return SPECIES.length();
+    }
+
+    @Override
+    public void depart(int base, int lanes, double[] time, double[] service, boolean[] alive, double[] free,
+            double[] busyTime, double[] responseTime) {
+        for (var l = 0; l < lanes; l += SPECIES.length()) {
+            var mask = VectorMask.fromArray(SPECIES, alive, l);
+            var arrival = DoubleVector.fromArray(SPECIES, time, l);
+            var delay = DoubleVector.fromArray(SPECIES, service, l);
+            var departure = arrival.max(DoubleVector.fromArray(SPECIES, free, base + l)).add(delay);
+            DoubleVector.fromArray(SPECIES, busyTime, base + l).add(delay)
+                    .intoArray(busyTime, base + l, mask);
+            DoubleVector.fromArray(SPECIES, responseTime, base + l).add(departure.sub(arrival))
+                    .intoArray(responseTime, base + l, mask);
+            departure.intoArray(free, base + l, mask);
+            departure.intoArray(time, l, mask);
+        }
+    }
+}